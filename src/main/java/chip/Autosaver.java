@@ -0,0 +1,116 @@
+package chip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Saves the machine periodically without stalling the emulation.<br/>
+ * Between frames the emulation thread only copies the state into one of two pooled
+ * snapshots; a background thread serialises it and writes it atomically.
+ * If both snapshots are still being written the save is simply tried again next frame.
+ */
+public class Autosaver implements Closeable {
+
+    private static final int POOL_SIZE = 2;
+
+    private final Path autosaveFile;
+    private final int intervalFrames;
+    private long nextAutosave;
+
+    private final ArrayBlockingQueue<Snapshot> free = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<Snapshot> written = new ArrayBlockingQueue<>(POOL_SIZE);
+    /**
+     * A save state asked for by the user, taken at the next frame boundary
+     */
+    private final AtomicReference<Path> requested = new AtomicReference<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param autosaveFile   File the periodic saves replace
+     * @param intervalFrames Frames between two autosaves
+     */
+    public Autosaver(Path autosaveFile, int intervalFrames) {
+        this.autosaveFile = autosaveFile;
+        this.intervalFrames = intervalFrames;
+        this.nextAutosave = intervalFrames;
+        for (int i = 0; i < POOL_SIZE; i++)
+            free.add(new Snapshot());
+        writer = new Thread(this::write, "Autosave writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Called by the emulation thread between two frames, at most copies the state
+     *
+     * @param chip The running chip
+     */
+    public void onFrame(Chip chip) {
+        if (chip.getFrameCount() + intervalFrames < nextAutosave)
+            nextAutosave = chip.getFrameCount() + intervalFrames; //a program was loaded, the count restarted
+        boolean due = chip.getFrameCount() >= nextAutosave;
+        if (!due && requested.get() == null)
+            return;
+        Snapshot snapshot = free.poll();
+        if (snapshot == null)
+            return;
+        Path target = requested.getAndSet(null);
+        chip.copyState(snapshot);
+        snapshot.target = target != null ? target : autosaveFile;
+        if (target == null)
+            nextAutosave = chip.getFrameCount() + intervalFrames;
+        written.add(snapshot);
+    }
+
+    /**
+     * Saves the state to a file at the next frame boundary, off the calling thread
+     *
+     * @param file The save state file
+     */
+    public void requestSave(Path file) {
+        requested.set(file);
+    }
+
+    public Path getAutosaveFile() {
+        return autosaveFile;
+    }
+
+    private void write() {
+        while (true) {
+            Snapshot snapshot;
+            try {
+                snapshot = written.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (snapshot == null) {
+                if (closed) return;
+                continue;
+            }
+            try {
+                snapshot.writeTo(snapshot.target);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            free.add(snapshot);
+        }
+    }
+
+    /**
+     * Writes the snapshots already taken and stops the writer
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
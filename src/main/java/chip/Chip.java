@@ -1,22 +1,18 @@
 package chip;
 
-import emu.DisplayFrame;
-
 import com.google.gson.*;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class Chip {
+public class Chip implements Engine {
 
     private Memory memory;
 
@@ -34,7 +30,12 @@ public class Chip {
      * Subroutine callstack<br/>
      * Allows up to 16 levels of nesting
      */
-    private Stack<Character> stack;
+    private char[] stack;
+    private static final int STACK_DEPTH = 16;
+    /**
+     * Stack pointer, the number of return addresses on the stack
+     */
+    private int sp;
 
     /**
      * This timer is used to delay events in programs/games
@@ -54,8 +55,117 @@ public class Chip {
      */
     private byte[] display;
 
+    /**
+     * Key state when FX0A started waiting, a key counts once it goes down after that
+     */
+    private byte[] keysAtWait;
+    private boolean waitingForKey;
+
+    /**
+     * Seed and current state of the xorshift generator behind CXNN,
+     * kept in the machine so a run can be reproduced
+     */
+    private long seed;
+    private int random;
+
     private boolean drawFlag;
+    /**
+     * Frames run since the program was loaded
+     */
+    private long frames;
+    /**
+     * Interpreter differences the decoded instructions were built for
+     */
+    private transient Quirks quirks = Quirks.MODERN;
+    /**
+     * Opcodes left in the current frame, DXYN clears it when it waits for the display.<br/>
+     * With a timing model these are machine cycles, below zero when an opcode ran past the previous frame
+     */
+    private transient int remainingCycles;
+    /**
+     * Optional per-opcode costs, null runs {@link #cyclesPerFrame} opcodes a frame
+     */
+    private transient Timing timing;
+    /**
+     * Machine cycles run, one per opcode without a timing model
+     */
+    private transient long cycles;
+    /**
+     * Opcodes executed per frame
+     */
+    private transient int cyclesPerFrame = DEFAULT_CYCLES_PER_FRAME;
+    public static final int DEFAULT_CYCLES_PER_FRAME = 1;
     private static boolean beeped;
+    /**
+     * Headless machines never open an audio line
+     */
+    private transient boolean muted;
+
+    /**
+     * Decoded instructions indexed by address, filled lazily by {@link #run()}
+     * and dropped whenever the RAM under them is written
+     */
+    private transient Instruction[] decoded;
+    /**
+     * Every opcode decoded for a quirks profile, shared by all chips.
+     * Instructions take the chip they run on, so nothing is allocated when a chip meets new code
+     */
+    private static final ConcurrentHashMap<Quirks, Instruction[]> decodeTables = new ConcurrentHashMap<>();
+    /**
+     * The table of the current quirks profile
+     */
+    private transient Instruction[] decodeTable;
+
+    /**
+     * Opcodes in the longest sequence {@link #fuseAt(int)} fuses
+     */
+    private static final int MAX_FUSED = 4;
+    /**
+     * Runs common opcode sequences as one instruction, see {@link #setFusion(boolean)}
+     */
+    private transient boolean fusion;
+    /**
+     * Fusion is on and no hook needs to see every opcode, kept up by the setters
+     */
+    private transient boolean fusing;
+    /**
+     * Instruction to run at every address, a fused sequence or the lone opcode
+     */
+    private transient Instruction[] fused;
+    /**
+     * Opcodes fused at every address: 0 not looked at yet, 1 just the one
+     */
+    private transient byte[] fusedLength;
+
+    /**
+     * Optional profiler, not part of the saved state
+     */
+    private transient Profiler profiler;
+    /**
+     * Optional debugger, it instruments instructions as they are decoded
+     */
+    private transient Debugger debugger;
+    /**
+     * Optional input recorder, fed by {@link #runFrame(int[])}
+     */
+    private transient InputLog.Recorder recorder;
+    /**
+     * Optional coverage bitmaps, filled by {@link #run()}
+     */
+    private transient Coverage coverage;
+    /**
+     * Optional bitsets of the RAM read and written, for the memory inspector
+     */
+    private transient MemoryWatch memoryWatch;
+    /**
+     * Optional key press to paint measurement
+     */
+    private transient InputLatency latency;
+
+    /**
+     * Prints every executed opcode to the console
+     */
+    public static boolean trace = false;
 
     /**
      * Reset the Chip 8 memory and pointers
@@ -63,7 +173,8 @@ public class Chip {
     public void init() {
 
         memory = new Memory();
-        stack = new Stack<>();
+        stack = new char[STACK_DEPTH];
+        sp = 0;
 
         isPaused = false;
 
@@ -76,399 +187,790 @@ public class Chip {
         sound_timer = 0;
 
         keys = new byte[16];
+        keysAtWait = new byte[16];
+        waitingForKey = false;
+
+        setSeed(new Random().nextLong());
 
         display = new byte[64 * 32];
 
         drawFlag = false;
+        frames = 0;
+
+        decoded = new Instruction[4096];
+        fused = new Instruction[4096];
+        fusedLength = new byte[4096];
+        decodeTable = decodeTable(quirks);
+        if (memoryWatch != null)
+            memoryWatch.writeAll();
 
     }
 
     /**
-     * Executes a single Operation Code (Opcode)
+     * Executes a single Operation Code (Opcode)<br/>
+     * The timers are ticked by {@link #runFrame(int[])}, once per frame
+     *
+     * @throws Fault If the opcode is not supported or the call stack over/underflows
      */
     public void run() {
-        //fetch Opcode
-        char opcode = (char) ((memory.RAM[pc] << 8) | memory.RAM[pc + 1]);
-        System.out.print(Integer.toHexString(opcode).toUpperCase() + ": ");
-        //decode opcode
-        switch (opcode & 0xF000) {
+        //the address bus is 12 bits wide, running off the end wraps around
+        pc &= 0xFFF;
+        //fetch the decoded Opcode, decoding it on the first visit
+        Instruction instruction = decoded[pc];
+        if (instruction == null)
+            instruction = decodeAt(pc);
+        if (profiler == null && coverage == null && !trace) {
+            instruction.execute(this);
+            return;
+        }
+        //the hooks fire once the opcode ran, one the debugger halts before is seen when it resumes
+        int address = pc;
+        char opcode = opcodeAt(address);
+        try {
+            instruction.execute(this);
+        } catch (Fault fault) {
+            executed(address, opcode);
+            throw fault;
+        }
+        executed(address, opcode);
+    }
 
-            case 0x0000: //Multi-case
-                switch (extractKK(opcode)) {
-                    case 0x00E0: //00E0: Clear Screen
-                        display = new byte[32 * 64];
-                        nextInstruction();
-                        break;
+    private void executed(int address, char opcode) {
+        if (profiler != null)
+            profiler.onExecute(address, opcode);
+        if (coverage != null)
+            coverage.hit(address, opcode);
+        if (trace)
+            System.out.println(Integer.toHexString(address).toUpperCase() + ": "
+                    + Integer.toHexString(opcode).toUpperCase() + " " + Opcodes.name(opcode));
+    }
 
-                    case 0x00EE: //00EE: Returns from subroutine
-                        pc = (char) (stack.pop() + 2);
-                        System.out.println("Returning to " + Integer.toHexString(pc).toUpperCase());
-                        break;
+    /**
+     * Runs one frame of the main loop: executes the frame's opcodes, ticks the timers,
+     * then latches the key state seen by the next frame
+     *
+     * @param keyBuffer State of the 16 keys, 1 is pressed
+     * @throws Fault If the program hits an opcode the chip can't run
+     */
+    public void runFrame(int[] keyBuffer) {
+        try {
+            beginFrame();
+            while (step()) {
+                //step runs until the frame's cycles are spent
+            }
+        } catch (Halt halt) {
+            //The debugger stopped before an instruction, the rest of the frame waits for it
+            return;
+        }
+        endFrame(keyBuffer);
+    }
 
-                    default: //0NNN: Calls RCA 1802 Program at address NNN
-                        //Very few programs use this, and realistically
-                        //I cannot run this code on any modern CPUs, so
-                        //it will remain unsupported
-                        System.err.println("Unsupported Opcode!(0x0)");
-                        System.exit(0);
-                        break;
-                }
-                break;
+    @Override
+    public void beginFrame() {
+        if (timing == null)
+            remainingCycles = cyclesPerFrame;
+        else
+            remainingCycles = Math.min(remainingCycles, 0) + timing.getCyclesPerFrame();
+    }
 
-            case 0x1000: { //1NNN: Jumps to address NNN
-                System.out.println("Jumping to address " + Integer.toHexString(extractNNN(opcode)));
-                pc = (char) extractNNN(opcode);
-                break;
-            }
-            case 0x2000: //2NNN: Calls subroutine at NNN
-                stack.push(pc);
-                pc = (char) (opcode & 0x0FFF);
-                System.out.println("Calling " + Integer.toHexString(pc).toUpperCase() + " from " + Integer.toHexString(stack.peek()).toUpperCase());
-                break;
-
-            case 0x3000: { //3XNN: Skips the next instruction if VX equals NN
-                int nn = (opcode & 0x00FF);
-                if (memory.V[extractX(opcode)] == extractKK(opcode)) {
-                    nextInstruction();
-                    nextInstruction();
-                    System.out.println("Skipping next instruction (V[" + extractX(opcode) + "] == " + extractKK(opcode) + ")");
-                } else {
-                    nextInstruction();
-                    System.out.println("Not skipping next instruction (V[" + extractX(opcode) + "] != " + nn + ")");
+    @Override
+    public boolean step() {
+        if (remainingCycles <= 0)
+            return false;
+        if (timing == null) {
+            if (fusing && !trace) {
+                int at = pc & 0xFFF;
+                int length = fusedLength[at];
+                if (length == 0)
+                    length = fuseAt(at);
+                //a sequence only runs whole, so the frame ends on the same opcode as without fusion
+                if (remainingCycles >= length) {
+                    pc = (char) at;
+                    remainingCycles -= length;
+                    cycles += length;
+                    fused[at].execute(this);
+                    return true;
                 }
-                break;
             }
+            remainingCycles--;
+            cycles++;
+            try {
+                run();
+            } catch (Halt halt) {
+                //the opcode didn't run, it is paid for when it resumes
+                remainingCycles++;
+                cycles--;
+                throw halt;
+            }
+            return true;
+        }
+        int from = pc & 0xFFF;
+        int opcode = opcodeAt(from);
+        run();
+        int cost = timing.cost(opcode, from, pc);
+        cycles += cost;
+        //The interpreter waits for the vertical blank before it draws, so the drawing is paid by the next frame
+        if ((opcode & 0xF000) == 0xD000)
+            remainingCycles = 0;
+        remainingCycles -= cost;
+        return true;
+    }
+
+    @Override
+    public void endFrame(int[] keyBuffer) {
+        frames++;
+        tickTimers();
+        setKeyBuffer(keyBuffer);
+        if (recorder != null)
+            recorder.record(keyBuffer);
+    }
 
-            case 0x4000://4XNN: Skips the next instruction if VX does not equal NN
-            {
-                if (memory.V[extractX(opcode)] != extractKK(opcode)) {
-                    pc += 4;
-                    System.out.println("Skipping next instruction (V[" + extractX(opcode) + "] == " + extractKK(opcode) + ")");
-                } else {
-                    nextInstruction();
-                    System.out.println("Not skipping next instruction (V[" + extractX(opcode) + "] != " + extractKK(opcode) + ")");
+    @Override
+    public void capture(State state) {
+        state.pc = pc & 0xFFF;
+        state.opcode = opcodeAt(state.pc);
+        state.I = I;
+        for (int i = 0; i < 16; i++)
+            state.V[i] = memory.V[i];
+        state.depth = sp;
+        for (int i = 0; i < sp; i++)
+            state.stack[i] = stack[i];
+        state.delayTimer = delay_timer;
+        state.soundTimer = sound_timer;
+        state.displayHash = displayHash();
+    }
+
+    private void tickTimers() {
+        if (sound_timer > 0) {
+            sound_timer--;
+            if (!muted) {
+                try {
+                    Chip.tone(1200, 100);
+                } catch (Exception e) {
+                    //not naming LineUnavailableException keeps javax.sound out of headless runs
+                    e.printStackTrace();
+                    System.exit(1);
                 }
-                break;
             }
-            case 0x5000: { //5XY0 Skips the next instruction if VX equals VY.
-                if(memory.V[extractX(opcode)] == memory.V[extractY(opcode)]) {
-                    System.out.println("Skipping next instruction V[" + extractX(opcode) + "] == V[" + extractY(opcode) + "]");
-                    pc += 4;
-                } else {
-                    System.out.println("Skipping next instruction V[" + extractX(opcode) + "] =/= V[" + extractY(opcode) + "]");
-                    nextInstruction();
+        } else {
+            beeped = false;
+        }
+        if (delay_timer > 0)
+            delay_timer--;
+    }
+
+    /**
+     * Decodes the opcode at an address and stores it in the decode cache
+     *
+     * @param address Address of the opcode
+     * @return The decoded instruction
+     */
+    private Instruction decodeAt(int address) {
+        char opcode = opcodeAt(address);
+        Instruction instruction = decodeTable[opcode];
+        if (debugger != null)
+            instruction = debugger.instrument(address, opcode, instruction);
+        decoded[address] = instruction;
+        return instruction;
+    }
+
+    /**
+     * Looks for an opcode sequence at an address that runs faster as one instruction:
+     * ANNN or FX29 then DXYN, 7XNN or FX07 then 3XNN or 4XNN, and two to four 6XNN.
+     * None of them writes RAM, so a sequence can't modify itself while it runs.<br/>
+     * Loops that can't leave before the frame ends, a jump to itself, FX0A or a wait for the delay timer,
+     * use up the rest of the frame's cycles at once, stopping on the opcode they would have stopped on
+     *
+     * @param address Address of the first opcode
+     * @return Opcodes fused, 1 if there is no sequence
+     */
+    private int fuseAt(int address) {
+        Instruction instruction = null;
+        int length = 1;
+        char first = opcodeAt(address);
+        if (first == (0x1000 | address)) {
+            instruction = c -> {
+                c.cycles += c.remainingCycles;
+                c.remainingCycles = 0;
+            };
+        } else if ((first & 0xF0FF) == 0xF00A) {
+            Instruction wait = decodeTable[first];
+            instruction = c -> {
+                wait.execute(c);
+                //the keys only change between frames, a wait that went on waits out the frame
+                if (c.pc == address) {
+                    c.cycles += c.remainingCycles;
+                    c.remainingCycles = 0;
                 }
-                break;
+            };
+        } else if (address <= 0x1000 - 4) {
+            char second = opcodeAt(address + 2);
+            int x = extractX(first);
+            char nn = extractKK(first);
+            int y = extractX(second);
+            char nn2 = extractKK(second);
+            if ((first & 0xF000) == 0xA000 && (second & 0xF000) == 0xD000) {
+                char nnn = extractNNN(first);
+                Instruction draw = decodeTable[second];
+                instruction = c -> {
+                    c.I = nnn;
+                    c.pc += 2;
+                    draw.execute(c);
+                };
+                length = 2;
+            } else if ((first & 0xF0FF) == 0xF029 && (second & 0xF000) == 0xD000) {
+                Instruction draw = decodeTable[second];
+                instruction = c -> {
+                    c.I = (char) (0x050 + (c.memory.V[x] * 5));
+                    c.pc += 2;
+                    draw.execute(c);
+                };
+                length = 2;
+            } else if ((first & 0xF000) == 0x7000 && (second & 0xF000) == 0x3000) {
+                instruction = c -> {
+                    c.memory.V[x] = (char) ((c.memory.V[x] + nn) & 0xFF);
+                    c.pc += c.memory.V[y] == nn2 ? 6 : 4;
+                };
+                length = 2;
+            } else if ((first & 0xF000) == 0x7000 && (second & 0xF000) == 0x4000) {
+                instruction = c -> {
+                    c.memory.V[x] = (char) ((c.memory.V[x] + nn) & 0xFF);
+                    c.pc += c.memory.V[y] != nn2 ? 6 : 4;
+                };
+                length = 2;
+            } else if ((first & 0xF0FF) == 0xF007 && ((second & 0xF000) == 0x3000 || (second & 0xF000) == 0x4000)
+                    && address <= 0x1000 - 6 && opcodeAt(address + 4) == (0x1000 | address)) {
+                //the delay timer only ticks between frames, every turn of the loop is the same
+                boolean equal = (second & 0xF000) == 0x3000;
+                instruction = c -> {
+                    c.memory.V[x] = (char) c.delay_timer;
+                    if ((c.memory.V[y] == nn2) == equal) {
+                        //skipped the jump back, so only two opcodes ran
+                        c.pc += 6;
+                        c.remainingCycles++;
+                        c.cycles--;
+                    } else {
+                        int turns = c.remainingCycles / 3 * 3;
+                        c.remainingCycles -= turns;
+                        c.cycles += turns;
+                    }
+                };
+                length = 3;
+            } else if ((first & 0xF0FF) == 0xF007 && (second & 0xF000) == 0x3000) {
+                instruction = c -> {
+                    c.memory.V[x] = (char) c.delay_timer;
+                    c.pc += c.memory.V[y] == nn2 ? 6 : 4;
+                };
+                length = 2;
+            } else if ((first & 0xF0FF) == 0xF007 && (second & 0xF000) == 0x4000) {
+                instruction = c -> {
+                    c.memory.V[x] = (char) c.delay_timer;
+                    c.pc += c.memory.V[y] != nn2 ? 6 : 4;
+                };
+                length = 2;
+            } else if ((first & 0xF000) == 0x6000 && (second & 0xF000) == 0x6000) {
+                length = 2;
+                while (length < MAX_FUSED && address + length * 2 <= 0x1000 - 2
+                        && (opcodeAt(address + length * 2) & 0xF000) == 0x6000)
+                    length++;
+                instruction = loads(address, length);
             }
+        }
+        //a lone opcode runs from here too, which skips the hooks run() looks at
+        if (instruction == null)
+            instruction = decodeTable[opcodeAt(address)];
+        fused[address] = instruction;
+        fusedLength[address] = (byte) length;
+        return length;
+    }
 
-            case 0x6000: { //6XNN: Set VX to NN
-                memory.V[extractX(opcode)] = (char) (opcode & 0x00FF);
-                nextInstruction();
-                System.out.println("Setting V[" + extractX(opcode) + "] to " + (int) memory.V[extractX(opcode)]);
-                break;
-            }
+    /**
+     * Fuses a run of 6XNN
+     */
+    private Instruction loads(int address, int length) {
+        int x1 = extractX(opcodeAt(address));
+        char nn1 = extractKK(opcodeAt(address));
+        int x2 = extractX(opcodeAt(address + 2));
+        char nn2 = extractKK(opcodeAt(address + 2));
+        if (length == 2)
+            return c -> {
+                c.memory.V[x1] = nn1;
+                c.memory.V[x2] = nn2;
+                c.pc += 4;
+            };
+        int x3 = extractX(opcodeAt(address + 4));
+        char nn3 = extractKK(opcodeAt(address + 4));
+        if (length == 3)
+            return c -> {
+                c.memory.V[x1] = nn1;
+                c.memory.V[x2] = nn2;
+                c.memory.V[x3] = nn3;
+                c.pc += 6;
+            };
+        int x4 = extractX(opcodeAt(address + 6));
+        char nn4 = extractKK(opcodeAt(address + 6));
+        return c -> {
+            c.memory.V[x1] = nn1;
+            c.memory.V[x2] = nn2;
+            c.memory.V[x3] = nn3;
+            c.memory.V[x4] = nn4;
+            c.pc += 8;
+        };
+    }
 
-            case 0x7000: { //7XNN: Adds NN to VX
-                memory.V[extractX(opcode)] = (char) ((memory.V[extractX(opcode)] + extractKK(opcode)) & 0xFF);
-                nextInstruction();
-                System.out.println("Adding " + extractKK(opcode) + " to V[" 
-                        + extractX(opcode) + "] = " + (int) memory.V[extractX(opcode)]);
-                break;
-            }
+    /**
+     * Fuses every sequence in the RAM ahead of time, so running the program doesn't allocate
+     */
+    private void fuseAll() {
+        for (int address = 0x200; address < 0x1000; address++)
+            fuseAt(address);
+    }
 
-            case 0x8000: //Multi-case
+    /**
+     * Drops the fused sequences that contain a byte
+     */
+    private void unfuse(int address) {
+        for (int i = 0; i < MAX_FUSED * 2; i++)
+            fusedLength[(address - i) & 0xFFF] = 0;
+    }
 
-                switch (extractN(opcode)) {
-                    case 0x0000: //8XY0: Sets VX to the value of VY.
-                    {
-                        memory.V[extractX(opcode)] = memory.V[extractY(opcode)];
-                        nextInstruction();
-                        System.out.println("V[" + extractX(opcode) + "] has been set to V[" + extractY(opcode) + "]");
-                        break;
-                    }
-                    case 0x0001: { //8XY1 Sets VX to VX or VY.
-                        System.out.println("Setting V[" + extractX(opcode) + "] = V[" + extractX(opcode) + "] | V[" + extractY(opcode) + "]");
-                        memory.V[extractX(opcode)] = (char)((memory.V[extractX(opcode)] | memory.V[extractY(opcode)]) & 0xFF);
-                        nextInstruction();
-                        break;
-                    }
-                    case 0x0002: //8XY2: Sets VX to VX and VY. (Bitwise AND operation)
-                    {
-                        int vx = memory.V[extractX(opcode)];
-                        int vy = memory.V[extractY(opcode)];
-                        memory.V[(opcode & 0x0F00) >> 8] = (char) (vx & vy);
-                        System.out.println("Set V[" + extractX(opcode) + "] to V[" + extractX(opcode) + "] & V[" + extractY(opcode) + "]");
-                        nextInstruction();
-                        break;
-                    }
-                    case 0x0003: {//8XY3 Sets VX to VX xor VY.
-                        System.out.println("XOR-ing V[" + extractX(opcode) + "] and V[" + extractY(opcode) + "] and storing result to V[" + extractX(opcode) + "]");
-                        memory.V[extractX(opcode)] = (char) ((memory.V[extractX(opcode)] ^ memory.V[extractY(opcode)]) & 0xFF);
-                        nextInstruction();
-                        break;
-                    }
-                    case 0x0004: {
-                        System.out.println("Adding V[" + extractX(opcode) + "] and V[" + extractY(opcode) + "], apply carry if needed");
-                        if (memory.V[extractY(opcode)] > 255 - memory.V[extractX(opcode)]) memory.V[0xF] = 1;
-                        else memory.V[0xF] = 0;
-                        memory.V[extractX(opcode)] = (char) ((memory.V[extractX(opcode)] + memory.V[extractY(opcode)]) & 0xFF);
-                        nextInstruction();
-                        break;
-                    }
+    /**
+     * Returns the decode table of a quirks profile, building it the first time the profile is used
+     */
+    private static Instruction[] decodeTable(Quirks quirks) {
+        return decodeTables.computeIfAbsent(quirks, profile -> {
+            Instruction[] table = new Instruction[0x10000];
+            for (int opcode = 0; opcode < table.length; opcode++)
+                table[opcode] = decode((char) opcode, profile);
+            return table;
+        });
+    }
 
-                    case 0x0005: { //VY is subtracted from VX. VF is set to 0 when there is a borrow else 1
-                        System.out.print("V[" + extractX(opcode) + "] = " + (int) memory.V[extractX(opcode)] + " V["
-                                + extractY(opcode) + "] = " + (int) memory.V[extractY(opcode)] + ", ");
-                        if (memory.V[extractX(opcode)] > memory.V[extractY(opcode)]) {
-                            memory.V[0xF] = 1;
-                            System.out.println("No Borrow");
-                        } else {
-                            memory.V[0xF] = 0;
-                            System.out.println("Borrow");
-                        }
-                        memory.V[extractX(opcode)] = (char) ((memory.V[extractX(opcode)] - memory.V[extractY(opcode)]) & 0xFF);
-                        nextInstruction();
-                        break;
-                    }
-                    case 0x0006: {//8XY6 Stores the least significant bit of VX in VF and then shifts VX to the right by 1.
-                        //I don't know why they had Y in this opcode, but WikiPedia claims that the functionality
-                        //of this OpCode was unintentional, so it might have had a different implementation originally
-                        int lsb = memory.V[extractX(opcode)] & 0x1;
-                        memory.V[0xF] = (char) lsb;
-                        memory.V[extractX(opcode)] = (char) (memory.V[extractX(opcode)] >> 1);
-                        System.out.println("Stored least significant bit of V[" + extractX(opcode) +
-                                "] to V[0xF] and shifted V[" + extractX(opcode) + "] to the right");
-                        nextInstruction();
-                        break;
-                    }
-                    case 0x000E: {//8XYE Stores the most significant bit of VX in VF and then shifts VX to the left by 1.
-                        int msb = memory.V[extractX(opcode)] & 0x8000;
-                        memory.V[0xF] = (char) msb;
-                        memory.V[extractX(opcode)] = (char) (memory.V[extractX(opcode)] << 1);
-                        System.out.println("Stored most significant bit of V[" + extractX(opcode) +
-                                "] to V[0xF] and shifted V[" + extractX(opcode) + "] to the left");
-                        nextInstruction();
-                        break;
-                    }
-                    default:
-                        System.err.println("Unsupported Opcode!(0x8)");
-                        System.exit(0);
-                        break;
-                }
+    private static Instruction decode(char opcode, Quirks quirks) {
+        final int x = extractX(opcode);
+        final int y = extractY(opcode);
+        final int n = extractN(opcode);
+        final char nn = extractKK(opcode);
+        final char nnn = extractNNN(opcode);
+
+        switch (opcode & 0xF000) {
 
-                break;
+            case 0x0000: //Multi-case
+                switch (nnn) {
+                    case 0x00E0: //00E0: Clear Screen
+                        return c -> {
+                            Arrays.fill(c.display, (byte) 0);
+                            c.nextInstruction();
+                        };
 
-            case 0x9000: { //9XY0 Skips the next instruction if VX doesn't equal VY.
-                if(memory.V[extractX(opcode)] != memory.V[extractY(opcode)]) {
-                    System.out.println("Skipping next instruction V[" + extractX(opcode) + "] != V[" + extractY(opcode) + "]");
-                    pc += 4;
-                } else {
-                    System.out.println("Skipping next instruction V[" + extractX(opcode) + "] !/= V[" + extractY(opcode) + "]");
-                    nextInstruction();
+                    case 0x00EE: //00EE: Returns from subroutine
+                        return c -> {
+                            if (c.sp == 0)
+                                throw new Fault(c.pc, opcode, "Return with an empty call stack");
+                            c.pc = (char) (c.stack[--c.sp] + 2);
+                        };
+
+                    default: //0NNN: Calls RCA 1802 Program at address NNN
+                        //Very few programs use this, and realistically
+                        //I cannot run this code on any modern CPUs, so
+                        //it will remain unsupported
+                        return unsupported(opcode);
                 }
-                break;
-            }
 
-            case 0xA000: //ANNN: Set I to NNN
-                I = extractNNN(opcode);
-                nextInstruction();
-                System.out.println("Set I to " + Integer.toHexString(I).toUpperCase());
-                break;
-
-            case 0xB000: { //BNNN: Jumps to the address NNN plus V0.
-                pc = (char)(extractNNN(opcode) + extractKK(memory.V[0]));
-                break;
-            }
+            case 0x1000: //1NNN: Jumps to address NNN
+                return c -> c.pc = nnn;
 
-            case 0xC000: //Set VX to random number anded with NN (CXNN)
-            {
-                extractX(opcode);
-                int randomNumber = new Random().nextInt(256) & extractKK(opcode);
-                System.out.println("V[" + extractX(opcode) + "] has been set to (randomised) " + randomNumber);
-                memory.V[extractX(opcode)] = (char) randomNumber;
-                nextInstruction();
-                break;
-            }
-            case 0xD000: { //DXYN: Draw a sprite (X, Y) size (8, N). Sprite is located at I
-                int x = memory.V[extractX(opcode)] % 64;
-                int y = memory.V[extractY(opcode)] % 32;
-                int height = opcode & 0x000F;
-
-                memory.V[0xF] = 0;
-
-                for (int i = 0; i < height; i++) {
-                    int line = memory.RAM[I + i];
-                    for (int j = 0; j < 8; j++) {
-                        int pixel = line & (0x80 >> j);
-                        if (pixel != 0) {
-                            int totalX = x + j;
-                            int totalY = y + i;
-                            if (totalY > 31) {
-                                totalY = totalY - 31;
-                            }
-                            if (totalX > 63) {
-                                totalX = totalX - 63;
-                            }
-                            int index = (totalY * 64) + totalX;
+            case 0x2000: //2NNN: Calls subroutine at NNN
+                return c -> {
+                    if (c.sp == STACK_DEPTH)
+                        throw new Fault(c.pc, opcode, "Call stack overflow");
+                    c.stack[c.sp++] = c.pc;
+                    c.pc = nnn;
+                };
+
+            case 0x3000: //3XNN: Skips the next instruction if VX equals NN
+                return c -> c.pc += c.memory.V[x] == nn ? 4 : 2;
+
+            case 0x4000: //4XNN: Skips the next instruction if VX does not equal NN
+                return c -> c.pc += c.memory.V[x] != nn ? 4 : 2;
+
+            case 0x5000: //5XY0 Skips the next instruction if VX equals VY.
+                return c -> c.pc += c.memory.V[x] == c.memory.V[y] ? 4 : 2;
+
+            case 0x6000: //6XNN: Set VX to NN
+                return c -> {
+                    c.memory.V[x] = nn;
+                    c.nextInstruction();
+                };
+
+            case 0x7000: //7XNN: Adds NN to VX
+                return c -> {
+                    c.memory.V[x] = (char) ((c.memory.V[x] + nn) & 0xFF);
+                    c.nextInstruction();
+                };
 
-                            if (display[index] == 1)
-                                memory.V[0xF] = 1;
+            case 0x8000: //Multi-case
+                switch (n) {
+                    case 0x0000: //8XY0: Sets VX to the value of VY.
+                        return c -> {
+                            c.memory.V[x] = c.memory.V[y];
+                            c.nextInstruction();
+                        };
+
+                    case 0x0001: //8XY1 Sets VX to VX or VY.
+                        if (quirks.logicResetsVF)
+                            return c -> {
+                                c.memory.V[x] = (char) ((c.memory.V[x] | c.memory.V[y]) & 0xFF);
+                                c.memory.V[0xF] = 0;
+                                c.nextInstruction();
+                            };
+                        return c -> {
+                            c.memory.V[x] = (char) ((c.memory.V[x] | c.memory.V[y]) & 0xFF);
+                            c.nextInstruction();
+                        };
 
-                            display[index] ^= 1;
-                        }
-                    }
+                    case 0x0002: //8XY2: Sets VX to VX and VY. (Bitwise AND operation)
+                        if (quirks.logicResetsVF)
+                            return c -> {
+                                c.memory.V[x] = (char) (c.memory.V[x] & c.memory.V[y]);
+                                c.memory.V[0xF] = 0;
+                                c.nextInstruction();
+                            };
+                        return c -> {
+                            c.memory.V[x] = (char) (c.memory.V[x] & c.memory.V[y]);
+                            c.nextInstruction();
+                        };
+
+                    case 0x0003: //8XY3 Sets VX to VX xor VY.
+                        if (quirks.logicResetsVF)
+                            return c -> {
+                                c.memory.V[x] = (char) ((c.memory.V[x] ^ c.memory.V[y]) & 0xFF);
+                                c.memory.V[0xF] = 0;
+                                c.nextInstruction();
+                            };
+                        return c -> {
+                            c.memory.V[x] = (char) ((c.memory.V[x] ^ c.memory.V[y]) & 0xFF);
+                            c.nextInstruction();
+                        };
+
+                    case 0x0004: //8XY4 Adds VY to VX. VF is set to 1 when there's a carry
+                        return c -> {
+                            int sum = c.memory.V[x] + c.memory.V[y];
+                            c.memory.V[x] = (char) (sum & 0xFF);
+                            c.memory.V[0xF] = (char) (sum > 0xFF ? 1 : 0);
+                            c.nextInstruction();
+                        };
+
+                    case 0x0005: //VY is subtracted from VX. VF is set to 0 when there is a borrow else 1
+                        return c -> {
+                            int difference = c.memory.V[x] - c.memory.V[y];
+                            c.memory.V[x] = (char) (difference & 0xFF);
+                            c.memory.V[0xF] = (char) (difference >= 0 ? 1 : 0);
+                            c.nextInstruction();
+                        };
+
+                    case 0x0006: //8XY6 Stores the least significant bit of VX in VF and then shifts VX to the right by 1.
+                        //The original interpreter shifted VY into VX, later ones shift VX in place
+                        final int shiftRightSource = quirks.shiftUsesVY ? y : x;
+                        return c -> {
+                            int value = c.memory.V[shiftRightSource];
+                            c.memory.V[x] = (char) (value >> 1);
+                            c.memory.V[0xF] = (char) (value & 0x1);
+                            c.nextInstruction();
+                        };
+
+                    case 0x0007: //8XY7 Sets VX to VY minus VX. VF is set to 0 when there is a borrow else 1
+                        return c -> {
+                            int difference = c.memory.V[y] - c.memory.V[x];
+                            c.memory.V[x] = (char) (difference & 0xFF);
+                            c.memory.V[0xF] = (char) (difference >= 0 ? 1 : 0);
+                            c.nextInstruction();
+                        };
+
+                    case 0x000E: //8XYE Stores the most significant bit of VX in VF and then shifts VX to the left by 1.
+                        final int shiftLeftSource = quirks.shiftUsesVY ? y : x;
+                        return c -> {
+                            int value = c.memory.V[shiftLeftSource];
+                            c.memory.V[x] = (char) ((value << 1) & 0xFF);
+                            c.memory.V[0xF] = (char) ((value >> 7) & 0x1);
+                            c.nextInstruction();
+                        };
+
+                    default:
+                        return unsupported(opcode);
                 }
-                nextInstruction();
-                drawFlag = true;
-                System.out.println("Drawing at V[" + extractX(opcode) + "] = " + x + ", V[" + extractY(opcode) + "] = " + y);
-                break;
-            }
 
-            case 0xE000: {
-                switch (extractKK(opcode)) {
-                    case 0x009E: { //EX9E Skip the next instruction if the Key VX is pressed
-                        int key = memory.V[extractX(opcode)];
-                        if (keys[key] == 1) {
-                            nextInstruction();
-                            nextInstruction();
-                            System.out.println("Skipped instruction, V[" + extractX(opcode) + "] was pressed");
-                        } else {
-                            nextInstruction();
-                        }
-                        break;
-                    }
+            case 0x9000: //9XY0 Skips the next instruction if VX doesn't equal VY.
+                return c -> c.pc += c.memory.V[x] != c.memory.V[y] ? 4 : 2;
 
-                    case 0x00A1: { //EXA1 Skip the next instruction if the Key VX is NOT pressed
-                        int key = memory.V[extractX(opcode)];
-                        if (keys[key] == 0) {
-                            nextInstruction();
-                            nextInstruction();
-                        } else {
-                            nextInstruction();
-                        }
-                        break;
-                    }
+            case 0xA000: //ANNN: Set I to NNN
+                return c -> {
+                    c.I = nnn;
+                    c.nextInstruction();
+                };
+
+            case 0xB000: //BNNN: Jumps to the address NNN plus V0.
+                if (quirks.jumpUsesVX) //BXNN on the HP48 interpreters
+                    return c -> c.pc = (char) ((nnn + c.memory.V[x]) & 0xFFF);
+                return c -> c.pc = (char) (nnn + extractKK(c.memory.V[0]));
+
+            case 0xC000: //Set VX to random number anded with NN (CXNN)
+                return c -> {
+                    c.memory.V[x] = (char) (c.nextRandom() & nn);
+                    c.nextInstruction();
+                };
+
+            case 0xD000: //DXYN: Draw a sprite (X, Y) size (8, N). Sprite is located at I
+                if (quirks.clipSprites && quirks.displayWait)
+                    return c -> {
+                        c.drawClipped(c.memory.V[x], c.memory.V[y], n);
+                        //Waiting for the vertical blank ends the frame
+                        c.remainingCycles = 0;
+                    };
+                if (quirks.clipSprites)
+                    return c -> c.drawClipped(c.memory.V[x], c.memory.V[y], n);
+                if (quirks.displayWait)
+                    return c -> {
+                        c.drawWrapped(c.memory.V[x], c.memory.V[y], n);
+                        c.remainingCycles = 0;
+                    };
+                return c -> c.drawWrapped(c.memory.V[x], c.memory.V[y], n);
+
+            case 0xE000:
+                switch (nn) {
+                    case 0x009E: //EX9E Skip the next instruction if the Key VX is pressed
+                        return c -> {
+                            int key = c.memory.V[x] & 0xF;
+                            if (c.keys[key] == 1 && c.latency != null)
+                                c.latency.read(key);
+                            c.pc += c.keys[key] == 1 ? 4 : 2;
+                        };
+
+                    case 0x00A1: //EXA1 Skip the next instruction if the Key VX is NOT pressed
+                        return c -> {
+                            int key = c.memory.V[x] & 0xF;
+                            if (c.keys[key] == 1 && c.latency != null)
+                                c.latency.read(key);
+                            c.pc += c.keys[key] == 0 ? 4 : 2;
+                        };
 
                     default:
-                        System.err.println("Unexisting opcode 0xE");
-                        System.exit(0);
-                        return;
+                        return unsupported(opcode);
                 }
-                break;
-            }
 
             case 0xF000:
-                switch (extractKK(opcode)) {
-                    case 0xA: { //FX0A waits for user input and places input in VX
-                        int key = -1;
-                        byte[] state = keys.clone();
-                        while (!DisplayFrame.keyPressed);
-                        setKeyBuffer(DisplayFrame.getKeyBuffer());
-                        for (int i = 0; i < keys.length; i++) {
-                            if(state[i] != keys[i]){
-                                key = i;
-                                break;
+                switch (nn) {
+                    case 0xA: //FX0A waits for user input and places input in VX
+                        //The opcode is repeated until a key goes down, so the wait never blocks the caller
+                        return c -> {
+                            if (!c.waitingForKey) {
+                                System.arraycopy(c.keys, 0, c.keysAtWait, 0, c.keys.length);
+                                c.waitingForKey = true;
+                                return;
                             }
-                        }
-                        if(key != -1)
-                        memory.V[extractX(opcode)] = (char) key;
-                        nextInstruction();
-                        keys = new byte[16];
-                        break;
-                    }
-                    case 0x18: //FX18 Sets the sound timer to VX.
-                    {
-                        sound_timer = memory.V[extractX(opcode)];
-                        nextInstruction();
-                        System.out.println("Sound timer has been set to " + sound_timer);
-                        break;
-                    }
-                    case 0x7: { //FX07: Set VX to the value of delay_timer
-                        memory.V[extractX(opcode)] = (char) delay_timer;
-                        nextInstruction();
-                        System.out.println("V[" + extractX(opcode) + "] has been set to " + delay_timer);
-                        break;
-                    }
-
-                    case 0x15: { //FX15: Set delay timer to V[x]
-                        delay_timer = memory.V[extractX(opcode)];
-                        nextInstruction();
-                        System.out.println("Set delay_timer to V[" + extractX(opcode) + "] = " + (int) memory.V[extractX(opcode)]);
-                        break;
-                    }
-
-                    case 0x29: { //Sets I to the location of the sprite for the character VX (Fontset)
-                        int character = memory.V[extractX(opcode)];
-                        I = (char) (0x050 + (character * 5));
-                        System.out.println("Setting I to Character V[" + extractX(opcode) + "] = " + (int) memory.V[extractX(opcode)] +
-                                " Offset to 0x" + Integer.toHexString(I).toUpperCase());
-                        nextInstruction();
-                        break;
-                    }
+                            for (int i = 0; i < c.keys.length; i++) {
+                                if (c.keys[i] == 1 && c.keysAtWait[i] == 0) {
+                                    if (c.latency != null)
+                                        c.latency.read(i);
+                                    c.memory.V[x] = (char) i;
+                                    c.waitingForKey = false;
+                                    c.nextInstruction();
+                                    Arrays.fill(c.keys, (byte) 0);
+                                    return;
+                                }
+                            }
+                            System.arraycopy(c.keys, 0, c.keysAtWait, 0, c.keys.length);
+                        };
 
-                    case 0x33: { //FX33 Store a binary-coded decimal value VX in I, I + 1 and I + 2
-                        int value = memory.V[extractX(opcode)];
-                        int hundreds = (value - (value % 100)) / 100;
-                        value -= hundreds * 100;
-                        int tens = (value - (value % 10)) / 10;
-                        value -= tens * 10;
-                        memory.RAM[I] = (char) hundreds;
-                        memory.RAM[I + 1] = (char) tens;
-                        memory.RAM[I + 2] = (char) value;
-                        System.out.println("Storing Binary-Coded Decimal V[" + extractX(opcode) + "] = " + (int) (memory.V[(opcode & 0x0F00) >> 8]) + " as { " + hundreds + ", " + tens + ", " + value + "}");
-                        nextInstruction();
-                        break;
-                    }
-                    case 0x55: { //FX35 Stores from V0 to VX (including VX) in memory, starting at address I.
-                        for (int i = 0; i <= extractX(opcode); i++) {
-                            memory.RAM[I + i] = memory.V[i];
-                        }
-                        System.out.println("Setting the values of memory from " +
-                                Integer.toHexString(I) + " to " + Integer.toHexString(I + extractX(opcode)) + " from the registers " +
-                                "V[0] to V[" + Integer.toHexString(extractX(opcode)) + "]");
-                        nextInstruction();
-                        break;
-                    }
-                    case 0x65: { //FX65 Fills V0 to VX with values from I
-                        for (int i = 0; i <= extractX(opcode); i++) {
-                            memory.V[i] = memory.RAM[I + i];
-                        }
-                        System.out.println("Setting V[0] to V[" + extractX(opcode) + "] to the values of memory[0x" + Integer.toHexString(I & 0xFFFF).toUpperCase() + "]");
-                        nextInstruction();
-                        break;
-                    }
+                    case 0x18: //FX18 Sets the sound timer to VX.
+                        return c -> {
+                            c.sound_timer = c.memory.V[x];
+                            c.nextInstruction();
+                        };
+
+                    case 0x7: //FX07: Set VX to the value of delay_timer
+                        return c -> {
+                            c.memory.V[x] = (char) c.delay_timer;
+                            c.nextInstruction();
+                        };
+
+                    case 0x15: //FX15: Set delay timer to V[x]
+                        return c -> {
+                            c.delay_timer = c.memory.V[x];
+                            c.nextInstruction();
+                        };
+
+                    case 0x29: //Sets I to the location of the sprite for the character VX (Fontset)
+                        return c -> {
+                            c.I = (char) (0x050 + (c.memory.V[x] * 5));
+                            c.nextInstruction();
+                        };
+
+                    case 0x33: //FX33 Store a binary-coded decimal value VX in I, I + 1 and I + 2
+                        return c -> {
+                            int value = c.memory.V[x];
+                            int hundreds = (value - (value % 100)) / 100;
+                            value -= hundreds * 100;
+                            int tens = (value - (value % 10)) / 10;
+                            value -= tens * 10;
+                            c.writeRam(c.I, hundreds);
+                            c.writeRam(c.I + 1, tens);
+                            c.writeRam(c.I + 2, value);
+                            c.nextInstruction();
+                        };
+
+                    case 0x55: //FX55 Stores from V0 to VX (including VX) in memory, starting at address I.
+                        if (quirks.loadStoreIncrementsI)
+                            return c -> {
+                                for (int i = 0; i <= x; i++) {
+                                    c.writeRam(c.I + i, c.memory.V[i]);
+                                }
+                                c.I += x + 1;
+                                c.nextInstruction();
+                            };
+                        return c -> {
+                            for (int i = 0; i <= x; i++) {
+                                c.writeRam(c.I + i, c.memory.V[i]);
+                            }
+                            c.nextInstruction();
+                        };
+
+                    case 0x65: //FX65 Fills V0 to VX with values from I
+                        if (quirks.loadStoreIncrementsI)
+                            return c -> {
+                                for (int i = 0; i <= x; i++) {
+                                    c.memory.V[i] = c.memory.RAM[(c.I + i) & 0xFFF];
+                                }
+                                if (c.memoryWatch != null)
+                                    c.memoryWatch.read(c.I, x + 1);
+                                c.I += x + 1;
+                                c.nextInstruction();
+                            };
+                        return c -> {
+                            for (int i = 0; i <= x; i++) {
+                                c.memory.V[i] = c.memory.RAM[(c.I + i) & 0xFFF];
+                            }
+                            if (c.memoryWatch != null)
+                                c.memoryWatch.read(c.I, x + 1);
+                            c.nextInstruction();
+                        };
 
                     case 0x1E: //Add VX to I (FX1E)
-                    {
-                        I += memory.V[extractX(opcode)];
-                        System.out.println("Added V[" + extractX(opcode) + "] to I");
-                        pc += 0x2;
-                        break;
-                    }
+                        return c -> {
+                            c.I += c.memory.V[x];
+                            c.nextInstruction();
+                        };
+
                     default:
-                        System.err.println("Unsupported Opcode!(0xF)");
-                        System.exit(0);
+                        return unsupported(opcode);
                 }
-                break;
 
             default:
-                System.err.println("Unsupported Opcode!");
-                System.exit(0);
+                return unsupported(opcode);
         }
-        if (sound_timer > 0) {
-            sound_timer--;
-            try {
-                Chip.tone(1200, 100);
-                System.out.println("Beep!");
-            } catch (LineUnavailableException e) {
-                e.printStackTrace();
-                System.exit(1);
+    }
+
+    /**
+     * An opcode this chip can't run, it faults when executed so merely decoding data is harmless
+     */
+    private static Instruction unsupported(char opcode) {
+        return c -> {
+            throw new Fault(c.pc, opcode, "Unsupported opcode");
+        };
+    }
+
+    /**
+     * Draws a sprite that wraps around the screen edges
+     */
+    private void drawWrapped(int vx, int vy, int height) {
+        memory.V[0xF] = 0;
+        if (memoryWatch != null)
+            memoryWatch.read(I, height);
+        for (int i = 0; i < height; i++) {
+            int line = memory.RAM[(I + i) & 0xFFF];
+            int row = ((vy + i) & 31) * 64;
+            for (int j = 0; j < 8; j++) {
+                if ((line & (0x80 >> j)) != 0) {
+                    int index = row + ((vx + j) & 63);
+                    if (display[index] == 1)
+                        memory.V[0xF] = 1;
+                    display[index] ^= 1;
+                }
             }
-        } else {
-            beeped = false;
         }
-        if (delay_timer > 0)
-            delay_timer--;
+        nextInstruction();
+        drawFlag = true;
+    }
+
+    /**
+     * Draws a sprite whose start position wraps, but whose pixels past the edges are cut off
+     */
+    private void drawClipped(int vx, int vy, int height) {
+        memory.V[0xF] = 0;
+        int x0 = vx & 63;
+        int y0 = vy & 31;
+        int rows = Math.min(height, 32 - y0);
+        int columns = Math.min(8, 64 - x0);
+        if (memoryWatch != null)
+            memoryWatch.read(I, rows);
+        for (int i = 0; i < rows; i++) {
+            int line = memory.RAM[(I + i) & 0xFFF];
+            int row = (y0 + i) * 64 + x0;
+            for (int j = 0; j < columns; j++) {
+                if ((line & (0x80 >> j)) != 0) {
+                    if (display[row + j] == 1)
+                        memory.V[0xF] = 1;
+                    display[row + j] ^= 1;
+                }
+            }
+        }
+        nextInstruction();
+        drawFlag = true;
+    }
+
+    /**
+     * Writes a byte to the RAM and drops the cached decodes that overlap it,
+     * addresses past the end wrap around like they do on the 12-bit bus
+     */
+    private void writeRam(int address, int value) {
+        address &= 0xFFF;
+        memory.RAM[address] = (char) (value & 0xFF);
+        if (memoryWatch != null)
+            memoryWatch.write(address);
+        decoded[address] = null;
+        decoded[(address - 1) & 0xFFF] = null;
+        unfuse(address);
+    }
+
+    /**
+     * Drops the cached decode of the opcode starting at an address,
+     * it will be decoded again the next time it runs
+     *
+     * @param address Address of the opcode
+     */
+    public void invalidate(int address) {
+        decoded[address] = null;
+        unfuse(address);
+    }
+
+    /**
+     * Drops every cached decode
+     */
+    public void flushDecodeCache() {
+        Arrays.fill(decoded, null);
+        Arrays.fill(fusedLength, (byte) 0);
+        if (fusion)
+            fuseAll();
+    }
+
+    /**
+     * Returns the raw opcode stored at an address
+     *
+     * @param address Address of the opcode
+     * @return The 16-bit opcode
+     */
+    public char opcodeAt(int address) {
+        return (char) ((memory.RAM[address] << 8) | memory.RAM[(address + 1) & 0xFFF]);
     }
 
     /**
@@ -489,6 +991,13 @@ public class Chip {
         return drawFlag;
     }
 
+    /**
+     * @return True while FX0A waits for a key, until one goes down only the timers change
+     */
+    public boolean isWaitingForKey() {
+        return waitingForKey;
+    }
+
     /**
      * Notify the chip that is has been redrawn
      */
@@ -502,40 +1011,105 @@ public class Chip {
      * @param file The location of the program
      */
     public void loadProgram(String file) {
-        init();
-        DataInputStream input = null;
         try {
-            input = new DataInputStream(new FileInputStream(new File(file)));
-
-            int offset = 0;
-            while (input.available() > 0) {
-                memory.RAM[0x200 + offset] = (char) (input.readByte() & 0xFF);
-                offset++;
-            }
-
+            loadProgram(RomImage.load(file));
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException ex) {
-                }
+        }
+    }
+
+    /**
+     * Resets the chip and copies a shared ROM image into the memory
+     *
+     * @param rom The program
+     */
+    @Override
+    public void loadProgram(RomImage rom) {
+        init();
+        rom.copyInto(memory.RAM);
+        if (fusion)
+            fuseAll();
+    }
+
+    /**
+     * Fills what {@link #step()} dispatches through at every instruction a static analysis found,
+     * so the first frames don't stop to decode: the fused sequences when it runs them, the decoded
+     * instructions otherwise. Anything the analysis missed is still decoded when it first runs.<br/>
+     * Changing the quirks or attaching a debugger, profiler or coverage drops the caches, so it is called after
+     *
+     * @param analysis Analysis of the loaded program
+     */
+    public void prewarm(RomAnalysis analysis) {
+        boolean fused = fusing && !trace && timing == null;
+        for (int address = 0x200; address < 4095; address++) {
+            if (!analysis.isInstruction(address))
+                continue;
+            if (fused) {
+                if (fusedLength[address] == 0)
+                    fuseAt(address);
+            } else if (decoded[address] == null) {
+                decodeAt(address);
             }
         }
     }
 
+    /**
+     * Restarts the CXNN random number generator
+     *
+     * @param seed Seed of the generator, the same seed gives the same numbers
+     */
+    @Override
+    public void setSeed(long seed) {
+        this.seed = seed;
+        random = (int) (seed ^ (seed >>> 32));
+        if (random == 0)
+            random = 0x2545F491;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    private int nextRandom() {
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        return random & 0xFF;
+    }
 
+    /**
+     * Hashes the display with 64-bit FNV-1a
+     *
+     * @return Hash of the current display
+     */
+    public long displayHash() {
+        long hash = 0xcbf29ce484222325L;
+        for (byte pixel : display) {
+            hash ^= pixel;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
 
     public void setKeyBuffer(int[] keyBuffer) {
         for (int i = 0; i < keys.length; i++) {
             keys[i] = (byte) keyBuffer[i];
         }
+        if (latency != null)
+            latency.latch(keys);
     }
 
     //Sound
     public static float SAMPLE_RATE = 8000f;
+    /**
+     * Audio line opened by the first beep and kept open, with the samples of the last tone
+     */
+    private static SourceDataLine line;
+    private static byte[] toneSamples;
+    private static int toneHz;
+    private static int toneMsecs;
+    private static double toneVolume;
 
     public static void tone(int hz, int msecs)
             throws LineUnavailableException {
@@ -543,28 +1117,97 @@ public class Chip {
             tone(hz, msecs, 1.0);
     }
 
-    public static void tone(int hz, int msecs, double vol)
+    /**
+     * Queues a tone on the audio line, the samples are only computed again when the tone changes
+     */
+    public static synchronized void tone(int hz, int msecs, double vol)
             throws LineUnavailableException {
-        byte[] buf = new byte[1];
-        AudioFormat af = new AudioFormat(SAMPLE_RATE, 8, 1, true, false);
-        SourceDataLine sdl = AudioSystem.getSourceDataLine(af);
-        sdl.open(af);
-        sdl.start();
-        for (int i = 0; i < msecs * 8; i++) {
-            double angle = i / (SAMPLE_RATE / hz) * 2.0 * Math.PI;
-            buf[0] = (byte) (Math.sin(angle) * 127.0 * vol);
-            sdl.write(buf, 0, 1);
+        if (line == null) {
+            AudioFormat af = new AudioFormat(SAMPLE_RATE, 8, 1, true, false);
+            SourceDataLine sdl = AudioSystem.getSourceDataLine(af);
+            sdl.open(af);
+            sdl.start();
+            line = sdl;
         }
-        sdl.drain();
-        sdl.stop();
-        sdl.close();
+        if (toneSamples == null || hz != toneHz || msecs != toneMsecs || vol != toneVolume) {
+            toneSamples = new byte[msecs * 8];
+            for (int i = 0; i < toneSamples.length; i++) {
+                double angle = i / (SAMPLE_RATE / hz) * 2.0 * Math.PI;
+                toneSamples[i] = (byte) (Math.sin(angle) * 127.0 * vol);
+            }
+            toneHz = hz;
+            toneMsecs = msecs;
+            toneVolume = vol;
+        }
+        line.write(toneSamples, 0, toneSamples.length);
         beeped = true;
     }
 
+    /**
+     * Copies the machine state into a preallocated snapshot, nothing is allocated
+     *
+     * @param snapshot The snapshot to overwrite
+     */
+    public void copyState(Snapshot snapshot) {
+        System.arraycopy(memory.RAM, 0, snapshot.memory.RAM, 0, memory.RAM.length);
+        System.arraycopy(memory.V, 0, snapshot.memory.V, 0, memory.V.length);
+        snapshot.I = I;
+        snapshot.pc = pc;
+        System.arraycopy(stack, 0, snapshot.stack, 0, STACK_DEPTH);
+        snapshot.sp = sp;
+        snapshot.delay_timer = delay_timer;
+        snapshot.sound_timer = sound_timer;
+        System.arraycopy(keys, 0, snapshot.keys, 0, keys.length);
+        System.arraycopy(display, 0, snapshot.display, 0, display.length);
+        System.arraycopy(keysAtWait, 0, snapshot.keysAtWait, 0, keysAtWait.length);
+        snapshot.waitingForKey = waitingForKey;
+        snapshot.seed = seed;
+        snapshot.random = random;
+        snapshot.drawFlag = drawFlag;
+        snapshot.frames = frames;
+    }
+
+    /**
+     * Puts the machine back into a copied state, the loaded program is replaced by the snapshot's RAM.<br/>
+     * Only the bytes that differ are written, so going back and forth between states of one program
+     * keeps the opcodes decoded everywhere else
+     *
+     * @param snapshot The state to restore
+     */
+    public void restoreState(Snapshot snapshot) {
+        char[] ram = snapshot.memory.RAM;
+        for (int address = 0; address < ram.length; address++) {
+            if (memory.RAM[address] != ram[address]) {
+                memory.RAM[address] = ram[address];
+                decoded[address] = null;
+                decoded[(address - 1) & 0xFFF] = null;
+                unfuse(address);
+            }
+        }
+        System.arraycopy(snapshot.memory.V, 0, memory.V, 0, memory.V.length);
+        I = snapshot.I;
+        pc = snapshot.pc;
+        System.arraycopy(snapshot.stack, 0, stack, 0, STACK_DEPTH);
+        sp = snapshot.sp;
+        delay_timer = snapshot.delay_timer;
+        sound_timer = snapshot.sound_timer;
+        System.arraycopy(snapshot.keys, 0, keys, 0, keys.length);
+        System.arraycopy(snapshot.display, 0, display, 0, display.length);
+        System.arraycopy(snapshot.keysAtWait, 0, keysAtWait, 0, keysAtWait.length);
+        waitingForKey = snapshot.waitingForKey;
+        seed = snapshot.seed;
+        random = snapshot.random;
+        drawFlag = true;
+        frames = snapshot.frames;
+        if (memoryWatch != null)
+            memoryWatch.writeAll();
+    }
+
     public void saveState(String filepath){
-        String state = new Gson().toJson(this);
+        Snapshot snapshot = new Snapshot();
+        copyState(snapshot);
         try {
-            Files.writeString(Paths.get(filepath), state);
+            snapshot.writeTo(Paths.get(filepath));
         } catch (IOException e){
             e.printStackTrace();
             System.exit(1);
@@ -585,7 +1228,21 @@ public class Chip {
         this.I = temp.getI();
         this.drawFlag = temp.needsRedraw();
         this.pc = temp.getPc();
-        this.stack = temp.getStack();
+        //Older states stored only the return addresses that were on the stack
+        this.sp = temp.stack.length == STACK_DEPTH ? temp.sp : temp.stack.length;
+        System.arraycopy(temp.stack, 0, this.stack, 0, Math.min(temp.stack.length, STACK_DEPTH));
+        //States saved before these fields existed keep the fresh values from init()
+        if (temp.keysAtWait != null) {
+            this.keysAtWait = temp.keysAtWait;
+            this.waitingForKey = temp.waitingForKey;
+        }
+        if (temp.random != 0) {
+            this.seed = temp.seed;
+            this.random = temp.random;
+        }
+        this.frames = temp.frames;
+        if (fusion)
+            fuseAll();
         } catch (IOException e){
             e.printStackTrace();
             System.exit(1);
@@ -593,27 +1250,27 @@ public class Chip {
     }
 
     //nnn are the 12 lowest bits (oNNN)
-    private char extractNNN(char instruction){
+    private static char extractNNN(char instruction){
         return (char)(instruction & 0xFFF);
     }
 
     //kk are the 8 lowest bits (ookk)
-    private char extractKK(char instruction){
+    private static char extractKK(char instruction){
         return (char)(instruction & 0xFF);
     }
 
     //x are the oXoo
-    private char extractX(char instruction){
+    private static char extractX(char instruction){
         return (char) ( (instruction & 0x0F00) >>> 8);
     }
 
     //y are the ooYo
-    private char extractY(char instruction){
+    private static char extractY(char instruction){
         return (char) ( (instruction & 0x00F0) >>> 4);
     }
 
     //n are the oooN
-    private char extractN(char instruction){
+    private static char extractN(char instruction){
         return (char) (instruction & 0x00F);
     }
     
@@ -630,8 +1287,16 @@ public class Chip {
     public char getPc() {
         return pc;
     }
-    public Stack<Character> getStack() {
-        return stack;
+
+    /**
+     * @return The return addresses on the stack, the innermost last
+     */
+    public char[] getStack() {
+        return Arrays.copyOf(stack, sp);
+    }
+
+    public int getStackDepth() {
+        return sp;
     }
     public int getDelay_timer() {
         return delay_timer;
@@ -642,5 +1307,203 @@ public class Chip {
     public byte[] getKeys() {
         return keys;
     }
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Attaches a profiler to the dispatch loop
+     *
+     * @param profiler The profiler, or null to detach it
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        updateFusing();
+    }
+    public Quirks getQuirks() {
+        return quirks;
+    }
+
+    /**
+     * Switches the interpreter differences, every cached decode is rebuilt for them
+     *
+     * @param quirks The profile
+     */
+    @Override
+    public void setQuirks(Quirks quirks) {
+        this.quirks = quirks;
+        decodeTable = decodeTable(quirks);
+        flushDecodeCache();
+    }
+
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    public boolean isFusion() {
+        return fusion;
+    }
+
+    /**
+     * Runs ANNN or FX29 then DXYN, 7XNN or FX07 then a skip on a constant, and runs of 6XNN as single instructions.
+     * The state after every frame is the same, but {@link #step()} can run several opcodes.
+     * Sequences are found when a program is loaded and again wherever the RAM is written, and the
+     * debugger, the profiler, coverage, tracing and timing models see every opcode on its own
+     *
+     * @param fusion True to fuse
+     */
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+        updateFusing();
+        if (fusedLength == null)
+            return; //fused when a program is loaded
+        Arrays.fill(fusedLength, (byte) 0);
+        if (fusion)
+            fuseAll();
+    }
+
+    private void updateFusing() {
+        fusing = fusion && debugger == null && profiler == null && coverage == null;
+    }
+
+    /**
+     * @param cyclesPerFrame Opcodes executed by every {@link #runFrame(int[])}
+     */
+    @Override
+    public void setCyclesPerFrame(int cyclesPerFrame) {
+        if (cyclesPerFrame < 1)
+            throw new IllegalArgumentException("A frame needs at least one cycle");
+        this.cyclesPerFrame = cyclesPerFrame;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return Machine cycles run since the chip was created, one per opcode without a timing model
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    public Timing getTiming() {
+        return timing;
+    }
+
+    /**
+     * @param timing Cycle costs to pace the frames with, or null to run {@link #getCyclesPerFrame()} opcodes a frame
+     */
+    public void setTiming(Timing timing) {
+        this.timing = timing;
+        remainingCycles = 0;
+    }
+    public InputLog.Recorder getRecorder() {
+        return recorder;
+    }
+    public void setRecorder(InputLog.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * @param muted True to never play the sound timer beep
+     */
+    public void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+
+    public Coverage getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * @param coverage Bitmaps to mark every executed address and opcode in, or null to stop
+     */
+    public void setCoverage(Coverage coverage) {
+        this.coverage = coverage;
+        updateFusing();
+    }
+
+    public MemoryWatch getMemoryWatch() {
+        return memoryWatch;
+    }
+
+    /**
+     * @param memoryWatch Bitsets to mark every RAM read and write in, or null to stop
+     */
+    public void setMemoryWatch(MemoryWatch memoryWatch) {
+        this.memoryWatch = memoryWatch;
+    }
+
+    public InputLatency getLatency() {
+        return latency;
+    }
+
+    /**
+     * @param latency Measurement to stamp key reads in, or null to stop
+     */
+    public void setLatency(InputLatency latency) {
+        this.latency = latency;
+    }
+
+    public Debugger getDebugger() {
+        return debugger;
+    }
+
+    /**
+     * Attaches a debugger, every cached decode is dropped so its breakpoints get armed
+     *
+     * @param debugger The debugger, or null to detach it
+     */
+    public void setDebugger(Debugger debugger) {
+        this.debugger = debugger;
+        updateFusing();
+        flushDecodeCache();
+    }
+
+    /**
+     * A decoded opcode with its operands already extracted
+     */
+    interface Instruction {
+        void execute(Chip chip);
+    }
+
+    /**
+     * Thrown when the program does something the chip can't run,
+     * the machine is left as it was before the faulting opcode
+     */
+    public static final class Fault extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int pc;
+        private final int opcode;
+
+        Fault(int pc, int opcode, String message) {
+            super(String.format("%s %04X at %03X", message, opcode, pc), null, false, false);
+            this.pc = pc;
+            this.opcode = opcode;
+        }
+
+        public int getPc() {
+            return pc;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+    }
+
+    /**
+     * Thrown by an instrumented instruction to stop before it executes
+     */
+    static final class Halt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final Halt INSTANCE = new Halt();
+
+        private Halt() {
+            super(null, null, false, false);
+        }
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package chip;
+
+import java.util.Arrays;
+
+/**
+ * Bitmaps of the addresses and raw opcodes a chip executed, attached to {@link Chip#run()}.<br/>
+ * Marking an instruction is two array stores, so it can stay attached to every fuzzing run.
+ */
+public class Coverage {
+
+    private final long[] pcs = new long[4096 / 64];
+    private final long[] opcodes = new long[0x10000 / 64];
+
+    /**
+     * Marks an executed instruction
+     *
+     * @param pc     Address of the instruction
+     * @param opcode The 16-bit opcode
+     */
+    public void hit(int pc, int opcode) {
+        pcs[pc >>> 6] |= 1L << pc;
+        opcodes[opcode >>> 6] |= 1L << opcode;
+    }
+
+    /**
+     * Clears both bitmaps
+     */
+    public void reset() {
+        Arrays.fill(pcs, 0);
+        Arrays.fill(opcodes, 0);
+    }
+
+    /**
+     * Adds the bits of a run to this coverage
+     *
+     * @param run Coverage of a single run
+     * @return How many bits were not set here yet
+     */
+    public synchronized int merge(Coverage run) {
+        return merge(pcs, run.pcs) + merge(opcodes, run.opcodes);
+    }
+
+    private static int merge(long[] into, long[] from) {
+        int added = 0;
+        for (int i = 0; i < into.length; i++) {
+            long fresh = from[i] & ~into[i];
+            if (fresh != 0) {
+                added += Long.bitCount(fresh);
+                into[i] |= fresh;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return How many distinct addresses were executed
+     */
+    public synchronized int pcCount() {
+        return count(pcs);
+    }
+
+    /**
+     * @return How many distinct opcodes were executed
+     */
+    public synchronized int opcodeCount() {
+        return count(opcodes);
+    }
+
+    private static int count(long[] bits) {
+        int count = 0;
+        for (long word : bits)
+            count += Long.bitCount(word);
+        return count;
+    }
+}
@@ -0,0 +1,353 @@
+package chip;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Breakpoint and watchpoint debugger for a {@link Chip}.<br/>
+ * Breakpoints are armed by wrapping the cached decode of their address,
+ * watchpoints by wrapping the opcodes that touch the RAM through I.
+ * Nothing is checked on instructions that are not instrumented.
+ */
+public class Debugger {
+
+    /**
+     * Receives the reason every time the debugger stops the chip
+     */
+    public interface Listener {
+        void onBreak(String reason);
+    }
+
+    /**
+     * A breakpoint on an address, optionally only taken when its condition holds
+     */
+    public static class Breakpoint {
+        public final int address;
+        public final Condition condition;
+
+        public Breakpoint(int address, Condition condition) {
+            this.address = address;
+            this.condition = condition;
+        }
+
+        @Override
+        public String toString() {
+            return "0x" + Integer.toHexString(address).toUpperCase() + (condition == null ? "" : " if " + condition);
+        }
+    }
+
+    /**
+     * A comparison of V0-VF or I against a constant, such as "V3 == 5" or "I >= 0x300"
+     */
+    public static class Condition {
+        private static final String[] OPERATORS = {"==", "!=", "<=", ">=", "<", ">"};
+
+        /**
+         * 0-15 for V0-VF, 16 for I
+         */
+        private final int register;
+        private final String operator;
+        private final int value;
+
+        private Condition(int register, String operator, int value) {
+            this.register = register;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        /**
+         * Parses a condition
+         *
+         * @param text Condition such as "VA != 0x1F"
+         * @return The condition
+         * @throws IllegalArgumentException If the text is not a valid condition
+         */
+        public static Condition parse(String text) {
+            String s = text.trim().toUpperCase();
+            for (String operator : OPERATORS) {
+                int at = s.indexOf(operator);
+                if (at < 0) continue;
+                String left = s.substring(0, at).trim();
+                String right = s.substring(at + operator.length()).trim();
+                int register;
+                if (left.equals("I")) register = 16;
+                else if (left.length() == 2 && left.charAt(0) == 'V') register = Character.digit(left.charAt(1), 16);
+                else register = -1;
+                if (register < 0)
+                    throw new IllegalArgumentException("Unknown register " + left);
+                return new Condition(register, operator, parseNumber(right));
+            }
+            throw new IllegalArgumentException("No comparison in " + text);
+        }
+
+        boolean holds(Chip chip) {
+            int actual = register == 16 ? chip.getI() : chip.getMemory().V[register];
+            switch (operator) {
+                case "==": return actual == value;
+                case "!=": return actual != value;
+                case "<=": return actual <= value;
+                case ">=": return actual >= value;
+                case "<": return actual < value;
+                default: return actual > value;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (register == 16 ? "I" : "V" + Integer.toHexString(register).toUpperCase()) + " " + operator + " " + value;
+        }
+    }
+
+    /**
+     * A range of RAM addresses, both ends included
+     */
+    public static class Watchpoint {
+        public final int start;
+        public final int end;
+        public final boolean onRead;
+        public final boolean onWrite;
+
+        public Watchpoint(int start, int end, boolean onRead, boolean onWrite) {
+            this.start = Math.min(start, end);
+            this.end = Math.max(start, end);
+            this.onRead = onRead;
+            this.onWrite = onWrite;
+        }
+
+        @Override
+        public String toString() {
+            return "0x" + Integer.toHexString(start).toUpperCase() + "-0x" + Integer.toHexString(end).toUpperCase()
+                    + (onRead ? " R" : "") + (onWrite ? " W" : "");
+        }
+    }
+
+    private final Chip chip;
+    private final Breakpoint[] breakpoints = new Breakpoint[4096];
+    private final List<Watchpoint> watchpoints = new ArrayList<>();
+    private Listener listener;
+
+    /**
+     * One-shot breakpoint used by step over and run to return,
+     * only taken at the given stack depth
+     */
+    private int tempAddress = -1;
+    private int tempDepth;
+
+    /**
+     * Address whose trap is ignored once, so resuming does not stop on the same instruction
+     */
+    private int skipAddress = -1;
+
+    public Debugger(Chip chip) {
+        this.chip = chip;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Wraps a freshly decoded instruction if it has a breakpoint or accesses watched memory
+     */
+    Chip.Instruction instrument(int address, char opcode, Chip.Instruction instruction) {
+        boolean trapped = breakpoints[address] != null || tempAddress == address;
+        int length = 0;
+        boolean write = false;
+        if (hasWatchpoints()) {
+            switch (Opcodes.name(opcode)) {
+                case "DXYN": length = opcode & 0xF; break;
+                case "FX33": length = 3; write = true; break;
+                case "FX55": length = ((opcode & 0x0F00) >>> 8) + 1; write = true; break;
+                case "FX65": length = ((opcode & 0x0F00) >>> 8) + 1; break;
+            }
+        }
+        if (!trapped && length == 0)
+            return instruction;
+
+        final int accessLength = length;
+        final boolean accessWrite = write;
+        return target -> {
+            int skip = skipAddress;
+            skipAddress = -1;
+            if (skip != address) {
+                if (trapped && shouldBreak(address))
+                    throw Chip.Halt.INSTANCE;
+                if (accessLength > 0) {
+                    Watchpoint hit = findWatchpoint(chip.getI(), chip.getI() + accessLength - 1, accessWrite);
+                    if (hit != null) {
+                        stop((accessWrite ? "Write to " : "Read from ") + hit + " at " + hex(address));
+                        throw Chip.Halt.INSTANCE;
+                    }
+                }
+            }
+            instruction.execute(target);
+        };
+    }
+
+    private synchronized boolean hasWatchpoints() {
+        return !watchpoints.isEmpty();
+    }
+
+    private synchronized Watchpoint findWatchpoint(int start, int end, boolean write) {
+        for (Watchpoint watchpoint : watchpoints) {
+            if ((write ? watchpoint.onWrite : watchpoint.onRead) && start <= watchpoint.end && end >= watchpoint.start)
+                return watchpoint;
+        }
+        return null;
+    }
+
+    private boolean shouldBreak(int address) {
+        if (tempAddress == address && chip.getStackDepth() == tempDepth) {
+            clearTemporary();
+            stop("Stepped to " + hex(address));
+            return true;
+        }
+        Breakpoint breakpoint = breakpoints[address];
+        if (breakpoint != null && (breakpoint.condition == null || breakpoint.condition.holds(chip))) {
+            stop("Breakpoint " + breakpoint);
+            return true;
+        }
+        return false;
+    }
+
+    private void stop(String reason) {
+        chip.isPaused = true;
+        if (listener != null)
+            listener.onBreak(reason);
+    }
+
+    public void addBreakpoint(Breakpoint breakpoint) {
+        breakpoints[breakpoint.address] = breakpoint;
+        chip.invalidate(breakpoint.address);
+    }
+
+    public void removeBreakpoint(int address) {
+        breakpoints[address] = null;
+        chip.invalidate(address);
+    }
+
+    public List<Breakpoint> getBreakpoints() {
+        List<Breakpoint> result = new ArrayList<>();
+        for (Breakpoint breakpoint : breakpoints) {
+            if (breakpoint != null) result.add(breakpoint);
+        }
+        return result;
+    }
+
+    public synchronized void addWatchpoint(Watchpoint watchpoint) {
+        watchpoints.add(watchpoint);
+        chip.flushDecodeCache();
+    }
+
+    public synchronized void removeWatchpoint(Watchpoint watchpoint) {
+        watchpoints.remove(watchpoint);
+        chip.flushDecodeCache();
+    }
+
+    public synchronized List<Watchpoint> getWatchpoints() {
+        return new ArrayList<>(watchpoints);
+    }
+
+    /**
+     * Stops the chip at the next instruction boundary
+     */
+    public void pause() {
+        stop("Paused at " + hex(chip.getPc()));
+    }
+
+    /**
+     * Continues running until the next breakpoint
+     */
+    public void resume() {
+        skipAddress = chip.getPc();
+        chip.isPaused = false;
+    }
+
+    /**
+     * Executes exactly one instruction, does nothing unless the chip is paused
+     *
+     * @throws Chip.Fault If the instruction faults, the chip stays paused before it
+     */
+    public void step() {
+        if (!isPaused())
+            return;
+        skipAddress = chip.getPc();
+        try {
+            chip.run();
+        } finally {
+            skipAddress = -1;
+        }
+        if (listener != null)
+            listener.onBreak("Stepped to " + hex(chip.getPc()));
+    }
+
+    /**
+     * Like {@link #step()}, but a 2NNN call runs until it returns
+     */
+    public void stepOver() {
+        if (!isPaused())
+            return;
+        if ((chip.opcodeAt(chip.getPc()) & 0xF000) != 0x2000) {
+            step();
+            return;
+        }
+        runTo(chip.getPc() + 2, chip.getStackDepth());
+    }
+
+    /**
+     * Runs until the current subroutine returns to its caller
+     */
+    public void runToReturn() {
+        if (chip.getStackDepth() == 0) {
+            if (listener != null)
+                listener.onBreak("Not inside a subroutine");
+            return;
+        }
+        runTo(chip.getStack()[chip.getStackDepth() - 1] + 2, chip.getStackDepth() - 1);
+    }
+
+    /**
+     * Stepping while the emulation thread runs the chip would have two threads change it at once
+     */
+    private boolean isPaused() {
+        if (chip.isPaused)
+            return true;
+        if (listener != null)
+            listener.onBreak("Pause before stepping");
+        return false;
+    }
+
+    private void runTo(int address, int depth) {
+        clearTemporary();
+        tempAddress = address;
+        tempDepth = depth;
+        chip.invalidate(address);
+        resume();
+    }
+
+    private void clearTemporary() {
+        if (tempAddress != -1) {
+            int address = tempAddress;
+            tempAddress = -1;
+            chip.invalidate(address);
+        }
+    }
+
+    /**
+     * Parses a decimal or 0x prefixed hexadecimal number
+     *
+     * @param text The number
+     * @return Its value
+     * @throws NumberFormatException If the text is not a number
+     */
+    public static int parseNumber(String text) {
+        String s = text.trim();
+        if (s.startsWith("0x") || s.startsWith("0X"))
+            return Integer.parseInt(s.substring(2), 16);
+        return Integer.parseInt(s);
+    }
+
+    private static String hex(int address) {
+        return "0x" + Integer.toHexString(address).toUpperCase();
+    }
+}
@@ -0,0 +1,363 @@
+package chip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Runs two engines in lockstep on the same ROM and keys and reports the first point where
+ * their registers, I, PC, stack, timers or display differ.<br/>
+ * Usage: DiffTest [--engines a,b] [--every instruction|frame] [--frames n] [--cycles n]
+ * [--log input.log] [--library] [rom or folder...]
+ */
+public class DiffTest {
+
+    /**
+     * Engines that can be compared, by name
+     */
+    public static final Map<String, Supplier<Engine>> ENGINES = new LinkedHashMap<>();
+
+    static {
+        ENGINES.put("chip", () -> {
+            Chip chip = new Chip();
+            chip.setMuted(true);
+            return chip;
+        });
+        ENGINES.put("reference", ReferenceChip::new);
+        //steps run whole fused sequences, so it only lines up with the others at frame ends
+        ENGINES.put("fused", () -> {
+            Chip chip = new Chip();
+            chip.setMuted(true);
+            chip.setFusion(true);
+            return chip;
+        });
+    }
+
+    /**
+     * Instructions kept as context for a divergence report
+     */
+    private static final int HISTORY = 16;
+
+    /**
+     * Supplies the keys of every frame
+     */
+    public interface Keys {
+        /**
+         * @param keyBuffer Filled with the keys of the next frame
+         * @return False once there are no more frames
+         */
+        boolean next(int[] keyBuffer) throws IOException;
+    }
+
+    /**
+     * How a program is run on both engines
+     */
+    public static class Setup {
+        public final String name;
+        public final RomImage rom;
+        public final long seed;
+        public final Quirks quirks;
+        public final int cyclesPerFrame;
+
+        public Setup(String name, RomImage rom, long seed, Quirks quirks, int cyclesPerFrame) {
+            this.name = name;
+            this.rom = rom;
+            this.seed = seed;
+            this.quirks = quirks;
+            this.cyclesPerFrame = cyclesPerFrame;
+        }
+    }
+
+    /**
+     * Outcome of one comparison
+     */
+    public static class Result {
+        public final String name;
+        public final long frames;
+        public final long instructions;
+        /**
+         * Report of the first divergence, null if the engines agreed
+         */
+        public final String divergence;
+        /**
+         * Fault both engines stopped at, null if they ran to the end
+         */
+        public final String fault;
+
+        Result(String name, long frames, long instructions, String divergence, String fault) {
+            this.name = name;
+            this.frames = frames;
+            this.instructions = instructions;
+            this.divergence = divergence;
+            this.fault = fault;
+        }
+
+        @Override
+        public String toString() {
+            String summary = name + ": " + frames + " frames, " + instructions + " instructions";
+            if (divergence != null)
+                return summary + ", DIVERGED\n" + divergence;
+            return summary + (fault != null ? ", both faulted: " + fault : ", identical");
+        }
+    }
+
+    private final String nameA;
+    private final String nameB;
+    private final boolean everyInstruction;
+    private final long maxFrames;
+
+    /**
+     * @param nameA            First engine, a key of {@link #ENGINES}
+     * @param nameB            Second engine
+     * @param everyInstruction Compare after every instruction instead of after every frame
+     * @param maxFrames        Frames to run at most
+     */
+    public DiffTest(String nameA, String nameB, boolean everyInstruction, long maxFrames) {
+        if (!ENGINES.containsKey(nameA) || !ENGINES.containsKey(nameB))
+            throw new IllegalArgumentException("Engines are " + ENGINES.keySet());
+        if (everyInstruction && (nameA.equals("fused") || nameB.equals("fused")))
+            throw new IllegalArgumentException("The fused engine can only be compared --every frame");
+        this.nameA = nameA;
+        this.nameB = nameB;
+        this.everyInstruction = everyInstruction;
+        this.maxFrames = maxFrames;
+    }
+
+    /**
+     * Runs both engines until the keys run out, the frame limit, a fault or the first divergence
+     *
+     * @param setup The program and how to run it
+     * @param keys  The keys of every frame
+     * @return What happened
+     */
+    public Result compare(Setup setup, Keys keys) throws IOException {
+        Engine a = create(nameA, setup);
+        Engine b = create(nameB, setup);
+        Engine.State stateA = new Engine.State();
+        Engine.State stateB = new Engine.State();
+        a.capture(stateA);
+        b.capture(stateB);
+        String field = stateA.difference(stateB);
+        if (field != null)
+            return new Result(setup.name, 0, 0, report(field, "after loading", stateA, stateB, null, 0), null);
+
+        int[] history = everyInstruction ? new int[HISTORY * 2] : null;
+        long instructions = 0;
+        long frame = 0;
+        int[] keyBuffer = new int[16];
+        for (; frame < maxFrames && keys.next(keyBuffer); frame++) {
+            a.beginFrame();
+            b.beginFrame();
+            //Frames are compared whole, so engines whose steps run several opcodes can take part
+            if (!everyInstruction) {
+                String faultA = null;
+                String faultB = null;
+                try {
+                    while (a.step())
+                        instructions++;
+                } catch (Chip.Fault fault) {
+                    faultA = fault.getMessage();
+                }
+                try {
+                    while (b.step()) {
+                        //a's opcodes are counted
+                    }
+                } catch (Chip.Fault fault) {
+                    faultB = fault.getMessage();
+                }
+                if (faultA != null || faultB != null) {
+                    if (faultA != null && faultA.equals(faultB))
+                        return new Result(setup.name, frame, instructions, null, faultA);
+                    a.capture(stateA);
+                    b.capture(stateB);
+                    String where = "in frame " + frame + ", " + nameA + " fault: " + faultA + ", " + nameB + " fault: " + faultB;
+                    return new Result(setup.name, frame, instructions,
+                            report("fault", where, stateA, stateB, null, instructions), null);
+                }
+            }
+            while (everyInstruction) {
+                int slot = (int) (instructions % HISTORY) * 2;
+                history[slot] = stateA.pc;
+                history[slot + 1] = stateA.opcode;
+
+                String faultA = null;
+                String faultB = null;
+                boolean ranA;
+                boolean ranB;
+                try {
+                    ranA = a.step();
+                } catch (Chip.Fault fault) {
+                    faultA = fault.getMessage();
+                    ranA = true;
+                }
+                try {
+                    ranB = b.step();
+                } catch (Chip.Fault fault) {
+                    faultB = fault.getMessage();
+                    ranB = true;
+                }
+                if (faultA != null || faultB != null) {
+                    if (faultA != null && faultA.equals(faultB))
+                        return new Result(setup.name, frame, instructions, null, faultA);
+                    String where = "in frame " + frame + ", " + nameA + " fault: " + faultA + ", " + nameB + " fault: " + faultB;
+                    return new Result(setup.name, frame, instructions,
+                            report("fault", where, stateA, stateB, history, instructions + 1), null);
+                }
+                if (ranA != ranB) {
+                    String where = "in frame " + frame + ", " + (ranA ? nameB : nameA) + " ended the frame early";
+                    return new Result(setup.name, frame, instructions,
+                            report("frame length", where, stateA, stateB, history, instructions), null);
+                }
+                if (!ranA)
+                    break;
+                instructions++;
+                a.capture(stateA);
+                b.capture(stateB);
+                field = stateA.difference(stateB);
+                if (field != null)
+                    return new Result(setup.name, frame, instructions, report(field,
+                            "in frame " + frame + " after instruction " + instructions,
+                            stateA, stateB, history, instructions), null);
+            }
+            a.endFrame(keyBuffer);
+            b.endFrame(keyBuffer);
+            a.capture(stateA);
+            b.capture(stateB);
+            field = stateA.difference(stateB);
+            if (field != null)
+                return new Result(setup.name, frame, instructions, report(field, "at the end of frame " + frame,
+                        stateA, stateB, history, instructions), null);
+        }
+        return new Result(setup.name, frame, instructions, null, null);
+    }
+
+    private static Engine create(String name, Setup setup) {
+        Engine engine = ENGINES.get(name).get();
+        engine.loadProgram(setup.rom);
+        engine.setSeed(setup.seed);
+        engine.setQuirks(setup.quirks);
+        engine.setCyclesPerFrame(setup.cyclesPerFrame);
+        return engine;
+    }
+
+    private String report(String field, String where, Engine.State stateA, Engine.State stateB,
+                          int[] history, long instructions) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("  ").append(field).append(" differs ").append(where).append('\n');
+        builder.append("  ").append(nameA).append(":\n    ").append(stateA.toString().replace("\n", "\n    ")).append('\n');
+        builder.append("  ").append(nameB).append(":\n    ").append(stateB.toString().replace("\n", "\n    ")).append('\n');
+        if (history != null) {
+            builder.append("  last instructions:");
+            //the slot of the instruction that ran last, it was recorded before instructions was counted up
+            long last = Math.max(0, instructions - 1);
+            for (long i = Math.max(0, last - HISTORY + 1); i <= last; i++) {
+                int slot = (int) (i % HISTORY) * 2;
+                builder.append(String.format(" %03X:%04X", history[slot], history[slot + 1]));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Keys for runs without an input log: every few frames a random key is held for a while,
+     * the same seed always gives the same presses
+     */
+    static Keys randomKeys(long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] held = {0, 0};
+        return keyBuffer -> {
+            if (held[1] == 0) {
+                held[0] = random.nextInt(3) == 0 ? 0 : 1 << random.nextInt(16);
+                held[1] = 1 + random.nextInt(30);
+            }
+            held[1]--;
+            InputLog.unmask(held[0], keyBuffer);
+            return true;
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] engines = {"chip", "reference"};
+        boolean everyInstruction = true;
+        long frames = 3600;
+        int cycles = 10;
+        Path log = null;
+        boolean library = false;
+        List<Path> roms = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--engines": engines = args[++i].split(","); break;
+                case "--every": everyInstruction = args[++i].equals("instruction"); break;
+                case "--frames": frames = Long.parseLong(args[++i]); break;
+                case "--cycles": cycles = Integer.parseInt(args[++i]); break;
+                case "--log": log = Path.of(args[++i]); break;
+                case "--library": library = true; break;
+                default: roms.add(Path.of(args[i]));
+            }
+        }
+        DiffTest test = new DiffTest(engines[0], engines[1], everyInstruction, frames);
+
+        if (log != null) {
+            try (InputLog.Player player = new InputLog.Player(log)) {
+                RomImage rom = RomImage.load(roms.isEmpty() ? player.getRomPath() : roms.get(0).toString());
+                if (player.getTiming() != null)
+                    System.err.println(log + " was recorded with the " + player.getTiming()
+                            + " timing model, the engines run " + player.getCyclesPerFrame() + " opcodes a frame instead");
+                Setup setup = new Setup(log.toString(), rom, player.getSeed(), player.getQuirks(), player.getCyclesPerFrame());
+                Result result = test.compare(setup, player::nextFrame);
+                System.out.println(result);
+                System.exit(result.divergence != null ? 1 : 0);
+            }
+        }
+
+        //Every ROM gets its library preferences if it has any, else the profile of its platform
+        List<Setup> setups = new ArrayList<>();
+        RomLibrary index = RomLibrary.load(RomLibrary.defaultIndex());
+        if (library) {
+            for (RomLibrary.Entry entry : index.getEntries()) {
+                setups.add(new Setup(entry.getName(), RomImage.load(entry.path), 0,
+                        Quirks.named(entry.getQuirks()), entry.getCyclesPerFrame()));
+            }
+        }
+        for (Path root : roms) {
+            try (Stream<Path> files = Files.isDirectory(root) ? Files.list(root) : Stream.of(root)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (!Files.isRegularFile(file) || Files.size(file) > RomImage.MAX_SIZE) continue;
+                    RomImage rom = RomImage.load(file.toString());
+                    RomLibrary.Entry entry = index.find(file.toAbsolutePath().normalize().toString());
+                    Quirks quirks = entry != null ? Quirks.named(entry.getQuirks())
+                            : Quirks.forPlatform(RomLibrary.detectPlatform(Files.readAllBytes(file)));
+                    setups.add(new Setup(file.getFileName().toString(), rom, 0, quirks, cycles));
+                }
+            }
+        }
+        if (setups.isEmpty()) {
+            System.err.println("Usage: DiffTest [--engines a,b] [--every instruction|frame] [--frames n] [--cycles n]"
+                    + " [--log input.log] [--library] [rom or folder...]");
+            System.exit(1);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<Result>> results = new ArrayList<>();
+        for (Setup setup : setups)
+            results.add(pool.submit(() -> test.compare(setup, randomKeys(setup.rom.getHash().hashCode()))));
+        int diverged = 0;
+        for (Future<Result> result : results) {
+            System.out.println(result.get());
+            if (result.get().divergence != null) diverged++;
+        }
+        pool.shutdown();
+        System.out.println(diverged + " of " + setups.size() + " diverged");
+        System.exit(diverged > 0 ? 1 : 0);
+    }
+}
@@ -0,0 +1,99 @@
+package chip;
+
+/**
+ * An interpreter that can be driven one opcode at a time,
+ * so {@link DiffTest} can run two of them in lockstep and compare them.
+ */
+public interface Engine {
+
+    /**
+     * Resets the machine and copies a program into it
+     *
+     * @param rom The program
+     */
+    void loadProgram(RomImage rom);
+
+    void setSeed(long seed);
+
+    void setQuirks(Quirks quirks);
+
+    void setCyclesPerFrame(int cyclesPerFrame);
+
+    /**
+     * Starts a frame with its full budget of opcodes
+     */
+    void beginFrame();
+
+    /**
+     * Executes the next opcode of the frame
+     *
+     * @return False without executing anything if the frame is over
+     * @throws Chip.Fault If the opcode can't be run
+     */
+    boolean step();
+
+    /**
+     * Ticks the timers and latches the keys seen by the next frame
+     *
+     * @param keyBuffer State of the 16 keys, 1 is pressed
+     */
+    void endFrame(int[] keyBuffer);
+
+    /**
+     * Copies the architectural state into a snapshot
+     *
+     * @param state Snapshot to overwrite
+     */
+    void capture(State state);
+
+    /**
+     * The architectural state two engines must agree on
+     */
+    final class State {
+        public int pc;
+        /**
+         * Opcode at PC, the next one to run
+         */
+        public int opcode;
+        public int I;
+        public final int[] V = new int[16];
+        public final int[] stack = new int[16];
+        public int depth;
+        public int delayTimer;
+        public int soundTimer;
+        public long displayHash;
+
+        /**
+         * @return The first field that differs, or null if the states are equal
+         */
+        public String difference(State other) {
+            if (pc != other.pc) return "PC";
+            if (opcode != other.opcode) return "opcode at PC";
+            if (I != other.I) return "I";
+            for (int i = 0; i < V.length; i++) {
+                if (V[i] != other.V[i]) return "V" + Integer.toHexString(i).toUpperCase();
+            }
+            if (depth != other.depth) return "stack depth";
+            for (int i = 0; i < depth; i++) {
+                if (stack[i] != other.stack[i]) return "stack[" + i + "]";
+            }
+            if (delayTimer != other.delayTimer) return "delay timer";
+            if (soundTimer != other.soundTimer) return "sound timer";
+            if (displayHash != other.displayHash) return "display";
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("PC=%03X (%04X) I=%04X DT=%02X ST=%02X display=%016X%n",
+                    pc, opcode, I, delayTimer, soundTimer, displayHash));
+            for (int i = 0; i < V.length; i++)
+                builder.append(String.format("V%X=%02X ", i, V[i]));
+            builder.append(String.format("%nstack:"));
+            for (int i = 0; i < depth; i++)
+                builder.append(String.format(" %03X", stack[i]));
+            return builder.toString();
+        }
+    }
+}
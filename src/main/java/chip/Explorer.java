@@ -0,0 +1,676 @@
+package chip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Explores every state a ROM can reach when, for a few frames at a time, one key or none is held.<br/>
+ * Breadth first finds the shortest way to a goal, depth first holds fewer states at once. Either way the
+ * states are expanded on a work-stealing pool and one whose 128-bit hash is in the {@link StateSet} already
+ * is not expanded again. The hash covers the RAM, the registers, I, PC, the stack, the timers, the display,
+ * the FX0A wait and the random generator: everything that decides what the next frames do.
+ * A state waiting to be expanded is a {@link Node} that shares the RAM pages and display it didn't change
+ * with its parent, a worker unpacks it into a {@link Snapshot} and restores it into its own {@link Chip}.<br/>
+ * Reported are goals, dead ends where no input changes anything and faults, each with an input log
+ * that replays the way there.<br/>
+ * Usage: Explorer [--bfs|--dfs] [--depth n] [--hold n] [--keys 0123456789ABCDEF] [--cycles n] [--quirks name]
+ * [--seed n] [--states n] [--threads n] [--goal address=value|Vx=value] [--out dir] rom
+ */
+public class Explorer {
+
+    private static final String USAGE = "Usage: Explorer [--bfs|--dfs] [--depth n] [--hold n] [--keys 0123456789ABCDEF]"
+            + " [--cycles n] [--quirks name] [--seed n] [--states n] [--threads n] [--goal address=value|Vx=value]"
+            + " [--out dir] rom";
+    /**
+     * Logs written of each kind, the rest are only counted
+     */
+    private static final int MAX_LOGS = 20;
+    private static final int PAGE_SIZE = 256;
+    private static final int PAGES = 4096 / PAGE_SIZE;
+    /**
+     * Smallest slice of a breadth first level a worker expands without splitting it
+     */
+    private static final int LEVEL_SLICE = 8;
+
+    /**
+     * One step of a path, the states of a subtree share the steps to its root
+     */
+    static final class Step {
+        final Step previous;
+        /**
+         * Index of the input held
+         */
+        final byte input;
+        final int depth;
+
+        Step(Step previous, int input) {
+            this.previous = previous;
+            this.input = (byte) input;
+            this.depth = previous == null ? 1 : previous.depth + 1;
+        }
+
+        /**
+         * @return The inputs of the steps from the first state to this one
+         */
+        byte[] inputs() {
+            byte[] inputs = new byte[depth];
+            for (Step step = this; step != null; step = step.previous)
+                inputs[step.depth - 1] = step.input;
+            return inputs;
+        }
+    }
+
+    /**
+     * A state waiting to be expanded and the inputs that lead to it
+     */
+    static final class Node {
+        final byte[][] pages;
+        /**
+         * The display, one word per row with column 0 in the top bit
+         */
+        final long[] rows;
+        final char[] v;
+        final char[] stack;
+        final char i;
+        final char pc;
+        final int sp;
+        final int delayTimer;
+        final int soundTimer;
+        final int keysAtWait;
+        final boolean waitingForKey;
+        final int random;
+        /**
+         * Last step of the way here, null for the first state
+         */
+        final Step path;
+        final long high;
+        final long low;
+
+        Node(Snapshot state, long[] rows, Node parent, Step path, long[] hash) {
+            pages = new byte[PAGES][];
+            for (int page = 0; page < PAGES; page++) {
+                pages[page] = parent != null && samePage(parent.pages[page], state.memory.RAM, page)
+                        ? parent.pages[page] : page(state.memory.RAM, page);
+            }
+            this.rows = parent != null && Arrays.equals(parent.rows, rows) ? parent.rows : rows.clone();
+            v = state.memory.V.clone();
+            stack = state.stack.clone();
+            i = state.I;
+            pc = state.pc;
+            sp = state.sp;
+            delayTimer = state.delay_timer;
+            soundTimer = state.sound_timer;
+            keysAtWait = keyMask(state.keysAtWait);
+            waitingForKey = state.waitingForKey;
+            random = state.random;
+            this.path = path;
+            high = hash[0];
+            low = hash[1];
+        }
+
+        private static boolean samePage(byte[] page, char[] ram, int number) {
+            int base = number * PAGE_SIZE;
+            for (int j = 0; j < PAGE_SIZE; j++) {
+                if ((page[j] & 0xFF) != ram[base + j])
+                    return false;
+            }
+            return true;
+        }
+
+        private static byte[] page(char[] ram, int number) {
+            byte[] page = new byte[PAGE_SIZE];
+            for (int j = 0; j < PAGE_SIZE; j++)
+                page[j] = (byte) ram[number * PAGE_SIZE + j];
+            return page;
+        }
+
+        /**
+         * Writes the state into a snapshot for {@link Chip#restoreState(Snapshot)}
+         */
+        void unpack(Snapshot into, long seed, long frames) {
+            for (int page = 0; page < PAGES; page++) {
+                for (int j = 0; j < PAGE_SIZE; j++)
+                    into.memory.RAM[page * PAGE_SIZE + j] = (char) (pages[page][j] & 0xFF);
+            }
+            for (int row = 0; row < 32; row++) {
+                for (int column = 0; column < 64; column++)
+                    into.display[row * 64 + column] = (byte) (rows[row] >>> (63 - column) & 1);
+            }
+            System.arraycopy(v, 0, into.memory.V, 0, v.length);
+            System.arraycopy(stack, 0, into.stack, 0, stack.length);
+            into.I = i;
+            into.pc = pc;
+            into.sp = sp;
+            into.delay_timer = delayTimer;
+            into.sound_timer = soundTimer;
+            for (int key = 0; key < 16; key++)
+                into.keysAtWait[key] = (byte) (keysAtWait >> key & 1);
+            into.waitingForKey = waitingForKey;
+            into.seed = seed;
+            into.random = random;
+            into.frames = frames;
+        }
+    }
+
+    /**
+     * The chip and scratch state of one pool thread
+     */
+    private final class Worker {
+        final Chip chip = newChip();
+        final Snapshot start = new Snapshot();
+        final Snapshot after = new Snapshot();
+        final long[] rows = new long[32];
+        final long[] hash = new long[2];
+        final int[] keys = new int[16];
+
+        /**
+         * Runs every input from a state and hands on the states not seen before
+         *
+         * @param node     The state
+         * @param children Takes the new states that are to be expanded in turn
+         */
+        void expand(Node node, Consumer<Node> children) {
+            node.unpack(start, seed, frames(node.path == null ? 0 : node.path.depth));
+            boolean stuck = true;
+            for (int input = 0; input < inputs.length; input++) {
+                chip.restoreState(start);
+                InputLog.unmask(inputs[input], keys);
+                //the keys of a frame are latched by the frame before, here that is the node's
+                chip.setKeyBuffer(keys);
+                try {
+                    for (int frame = 0; frame < hold; frame++)
+                        chip.runFrame(keys);
+                } catch (Chip.Fault fault) {
+                    stuck = false;
+                    if (faultMessages.add(fault.getMessage()))
+                        report("fault", new Step(node.path, input), fault.getMessage());
+                    faults.increment();
+                    continue;
+                }
+                chip.copyState(after);
+                packRows(after.display, rows);
+                hash(after, rows, hash);
+                if (hash[0] != node.high || hash[1] != node.low)
+                    stuck = false;
+                if (!visited.add(hash[0], hash[1]))
+                    continue;
+                Step path = new Step(node.path, input);
+                if (path.depth > deepest.get())
+                    deepest.accumulateAndGet(path.depth, Math::max);
+                if (isGoal(after)) {
+                    goals.increment();
+                    report("goal", path, null);
+                    stopped = true;
+                }
+                if (path.depth < maxDepth)
+                    children.accept(new Node(after, rows, node, path, hash));
+            }
+            expanded.increment();
+            if (stuck) {
+                deadEnds.increment();
+                report("deadend", node.path, null);
+            }
+        }
+    }
+
+    /**
+     * Expands a state and, as they are forked, its children, completing once the whole subtree is done.
+     * Workers take the newest task first, so each runs depth first while idle ones steal near the root
+     */
+    private final class Expand extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+
+        Expand(CountedCompleter<?> parent, Node node) {
+            super(parent);
+            this.node = node;
+        }
+
+        @Override
+        public void compute() {
+            if (!stop())
+                workers.get().expand(node, child -> {
+                    addToPendingCount(1);
+                    new Expand(this, child).fork();
+                });
+            tryComplete();
+        }
+    }
+
+    /**
+     * Expands a slice of a breadth first level, splitting it while it is large
+     */
+    private final class Level extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Node> nodes;
+        private final int from;
+        private final int to;
+        private final Queue<Node> next;
+
+        Level(List<Node> nodes, int from, int to, Queue<Node> next) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+            this.next = next;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEVEL_SLICE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Level(nodes, from, middle, next), new Level(nodes, middle, to, next));
+                return;
+            }
+            Worker worker = workers.get();
+            for (int index = from; index < to && !stop(); index++) {
+                worker.expand(nodes.get(index), next::add);
+                nodes.set(index, null); //expanded states can go
+            }
+        }
+    }
+
+    private final String romPath;
+    private final RomImage rom;
+    private final Quirks quirks;
+    private final int cyclesPerFrame;
+    private final long seed;
+    private final StateSet visited;
+    private final Path out;
+
+    /**
+     * Key masks a step can hold, the first is no key
+     */
+    private int[] inputs = new int[17];
+    private int hold = 4;
+    private int maxDepth = 1000;
+    private boolean breadthFirst = true;
+    /**
+     * RAM address or register the goal checks, -1 for none
+     */
+    private int goalAddress = -1;
+    private int goalRegister = -1;
+    private int goalValue;
+
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+    private final LongAdder expanded = new LongAdder();
+    private final LongAdder goals = new LongAdder();
+    private final LongAdder deadEnds = new LongAdder();
+    private final LongAdder faults = new LongAdder();
+    private final Set<String> faultMessages = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger deepest = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> logs = new ConcurrentHashMap<>();
+    private volatile boolean stopped;
+
+    /**
+     * @param romPath        The ROM
+     * @param quirks         Interpreter quirks to run it with
+     * @param cyclesPerFrame Opcodes every frame runs
+     * @param seed           Seed of CXNN
+     * @param visited        Hashes of the states seen, normally empty
+     * @param out            Folder the input logs of what was found go to
+     */
+    public Explorer(String romPath, Quirks quirks, int cyclesPerFrame, long seed, StateSet visited, Path out)
+            throws IOException {
+        this.romPath = romPath;
+        this.rom = RomImage.load(romPath);
+        this.quirks = quirks;
+        this.cyclesPerFrame = cyclesPerFrame;
+        this.seed = seed;
+        this.visited = visited;
+        this.out = out;
+        for (int key = 0; key < 16; key++)
+            inputs[key + 1] = 1 << key;
+    }
+
+    /**
+     * @param keys Keys a step can hold, as hex digits. A step can also hold no key
+     */
+    public void setKeys(String keys) {
+        int[] inputs = new int[keys.length() + 1];
+        for (int index = 0; index < keys.length(); index++) {
+            int key = Character.digit(keys.charAt(index), 16);
+            if (key < 0)
+                throw new IllegalArgumentException(keys.charAt(index) + " is not a key");
+            inputs[index + 1] = 1 << key;
+        }
+        this.inputs = inputs;
+    }
+
+    /**
+     * @param hold Frames every step holds its input, more makes the tree shallower
+     */
+    public void setHold(int hold) {
+        if (hold < 1)
+            throw new IllegalArgumentException("A step holds its input at least one frame");
+        this.hold = hold;
+    }
+
+    /**
+     * @param maxDepth Steps a path can take at most
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @param breadthFirst True to expand the states level by level, false to go deep first
+     */
+    public void setBreadthFirst(boolean breadthFirst) {
+        this.breadthFirst = breadthFirst;
+    }
+
+    /**
+     * Looks for states where a RAM byte or register holds a value, and stops at the first one
+     *
+     * @param goal address=value or Vx=value, numbers in Java notation so 0x2F0=3 works
+     */
+    public void setGoal(String goal) {
+        int equals = goal.indexOf('=');
+        if (equals < 0)
+            throw new IllegalArgumentException("A goal is address=value or Vx=value, not " + goal);
+        String target = goal.substring(0, equals).trim();
+        goalValue = Integer.decode(goal.substring(equals + 1).trim());
+        if (target.length() == 2 && Character.toUpperCase(target.charAt(0)) == 'V') {
+            goalRegister = Character.digit(target.charAt(1), 16);
+            goalAddress = -1;
+        } else {
+            goalAddress = Integer.decode(target) & 0xFFF;
+            goalRegister = -1;
+        }
+    }
+
+    private boolean isGoal(Snapshot state) {
+        if (goalAddress >= 0)
+            return state.memory.RAM[goalAddress] == goalValue;
+        return goalRegister >= 0 && state.memory.V[goalRegister] == goalValue;
+    }
+
+    private boolean stop() {
+        return stopped || visited.isFull();
+    }
+
+    private Chip newChip() {
+        Chip chip = new Chip();
+        chip.setMuted(true);
+        chip.loadProgram(rom);
+        chip.setSeed(seed);
+        chip.setQuirks(quirks);
+        chip.setCyclesPerFrame(cyclesPerFrame);
+        chip.setFusion(true);
+        return chip;
+    }
+
+    /**
+     * Frames run to reach a state, the first frame runs without keys like it does in a replay
+     */
+    private long frames(int steps) {
+        return 1 + (long) steps * hold;
+    }
+
+    /**
+     * Explores until every reachable state is seen, the depth limit, the state set is full or a goal is found
+     *
+     * @param threads Threads of the pool
+     */
+    public void run(int threads) throws InterruptedException {
+        Worker first = workers.get();
+        try {
+            first.chip.runFrame(new int[16]);
+        } catch (Chip.Fault fault) {
+            faults.increment();
+            report("fault", null, fault.getMessage());
+            workers.remove();
+            return;
+        }
+        first.chip.copyState(first.after);
+        packRows(first.after.display, first.rows);
+        hash(first.after, first.rows, first.hash);
+        visited.add(first.hash[0], first.hash[1]);
+        Node root = new Node(first.after, first.rows, null, null, first.hash);
+
+        long start = System.nanoTime();
+        Thread status = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(5000);
+                    System.out.println(status(start));
+                }
+            } catch (InterruptedException e) {
+                //done
+            }
+        }, "explorer status");
+        status.setDaemon(true);
+        status.start();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            if (breadthFirst) {
+                List<Node> level = new ArrayList<>(List.of(root));
+                while (!level.isEmpty() && !stop()) {
+                    Queue<Node> next = new ConcurrentLinkedQueue<>();
+                    pool.invoke(new Level(level, 0, level.size(), next));
+                    level = new ArrayList<>(next);
+                }
+            } else {
+                pool.invoke(new Expand(null, root));
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            status.interrupt();
+            //the worker of this thread would keep the explorer, and the memory of the set, alive
+            workers.remove();
+        }
+        System.out.println(status(start));
+        if (visited.isFull())
+            System.out.println("The state set is full, not every state was explored, try a larger --states");
+    }
+
+    private String status(long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return String.format("%5.0fs %,12d states %,12d expanded (%,.0f/s) depth %d, %d goals %d dead ends %d faults,"
+                        + " set %d%% full", seconds, visited.size(), expanded.sum(), expanded.sum() / Math.max(seconds, 1e-3),
+                deepest.get(), goals.sum(), deadEnds.sum(), faults.sum(), visited.size() * 100 / visited.getCapacity());
+    }
+
+    public long getGoals() {
+        return goals.sum();
+    }
+
+    /**
+     * Writes the input log of a path and prints where it went
+     *
+     * @param kind   goal, deadend or fault
+     * @param step   Last step of the path, null for the first state
+     * @param detail Printed after the path, or null
+     */
+    private void report(String kind, Step step, String detail) {
+        int number = logs.computeIfAbsent(kind, k -> new AtomicInteger()).incrementAndGet();
+        if (number > MAX_LOGS)
+            return;
+        byte[] path = step == null ? new byte[0] : step.inputs();
+        Path log = out.resolve(kind + "-" + number + ".log");
+        try {
+            Files.createDirectories(out);
+            writeLog(log, path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        StringBuilder keys = new StringBuilder();
+        for (byte input : path)
+            keys.append(inputs[input] == 0 ? '-' : Character.toUpperCase(Character.forDigit(
+                    Integer.numberOfTrailingZeros(inputs[input]), 16)));
+        System.out.println(kind + " " + number + " after " + frames(path.length) + " frames, keys " + keys
+                + (detail != null ? ": " + detail : "") + ", replay " + log);
+    }
+
+    /**
+     * Writes a log that replays a path: frame 0 runs without keys and latches the input of the first step
+     */
+    private void writeLog(Path log, byte[] path) throws IOException {
+        int[] keys = new int[16];
+        long frames = (long) path.length * hold;
+        try (InputLog.Recorder recorder = new InputLog.Recorder(log, romPath, newChip())) {
+            for (long frame = 0; frame <= frames; frame++) {
+                InputLog.unmask(frame < frames ? inputs[path[(int) (frame / hold)]] : 0, keys);
+                recorder.record(keys);
+            }
+        }
+    }
+
+    private static void packRows(byte[] display, long[] rows) {
+        for (int row = 0; row < 32; row++) {
+            long bits = 0;
+            for (int column = 0; column < 64; column++)
+                bits = bits << 1 | (display[row * 64 + column] & 1);
+            rows[row] = bits;
+        }
+    }
+
+    /**
+     * 128-bit hash of the state that decides the next frames, two 64-bit lanes mixed differently.
+     * The keys are left out, every step latches its own
+     *
+     * @param state The state
+     * @param rows  Its display, packed
+     * @param into  Takes the two halves
+     */
+    static void hash(Snapshot state, long[] rows, long[] into) {
+        long a = 0x243F6A8885A308D3L;
+        long b = 0x13198A2E03707344L;
+        char[] ram = state.memory.RAM;
+        for (int address = 0; address < ram.length; address += 8) {
+            long word = 0;
+            for (int j = 0; j < 8; j++)
+                word = word << 8 | ram[address + j];
+            a = Long.rotateLeft(a ^ word, 29) * 0x9E3779B97F4A7C15L;
+            b = Long.rotateLeft(b + word, 37) * 0xC2B2AE3D27D4EB4FL;
+        }
+        for (long word : rows) {
+            a = Long.rotateLeft(a ^ word, 29) * 0x9E3779B97F4A7C15L;
+            b = Long.rotateLeft(b + word, 37) * 0xC2B2AE3D27D4EB4FL;
+        }
+        for (int index = 0; index < 8; index++) {
+            long word = registers(state, index);
+            a = Long.rotateLeft(a ^ word, 29) * 0x9E3779B97F4A7C15L;
+            b = Long.rotateLeft(b + word, 37) * 0xC2B2AE3D27D4EB4FL;
+        }
+        into[0] = finish(a ^ Long.rotateLeft(b, 17));
+        into[1] = finish(b + a);
+    }
+
+    /**
+     * Word of the registers: V in 0 and 1, the stack in 2 to 5, then I, PC, the stack pointer and the timers,
+     * then the FX0A wait and the random generator
+     */
+    private static long registers(Snapshot state, int index) {
+        long word = 0;
+        switch (index) {
+            case 0:
+            case 1:
+                for (int register = index * 8; register < index * 8 + 8; register++)
+                    word = word << 8 | state.memory.V[register];
+                return word;
+            case 6:
+                return state.I | (long) state.pc << 16 | (long) state.sp << 32
+                        | (long) state.delay_timer << 40 | (long) state.sound_timer << 48;
+            case 7:
+                return keyMask(state.keysAtWait) | (state.waitingForKey ? 1L << 16 : 0) | (long) state.random << 32;
+            default:
+                //slots above the stack pointer are overwritten before they are read
+                for (int slot = (index - 2) * 4; slot < (index - 2) * 4 + 4; slot++)
+                    word = word << 16 | (slot < state.sp ? state.stack[slot] : 0);
+                return word;
+        }
+    }
+
+    private static int keyMask(byte[] keys) {
+        int mask = 0;
+        for (int key = 0; key < keys.length; key++)
+            mask |= (keys[key] & 1) << key;
+        return mask;
+    }
+
+    /**
+     * MurmurHash3's finaliser, every input bit flips about half of the output bits
+     */
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean breadthFirst = true;
+        int depth = 1000;
+        int hold = 4;
+        String keys = null;
+        int cycles = 10;
+        String quirksName = null;
+        long seed = 0;
+        long states = 1 << 22;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String goal = null;
+        Path out = Path.of("explore");
+        String romPath = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--bfs": breadthFirst = true; break;
+                case "--dfs": breadthFirst = false; break;
+                case "--depth": depth = Integer.parseInt(args[++i]); break;
+                case "--hold": hold = Integer.parseInt(args[++i]); break;
+                case "--keys": keys = args[++i]; break;
+                case "--cycles": cycles = Integer.parseInt(args[++i]); break;
+                case "--quirks": quirksName = args[++i]; break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--states": states = Long.parseLong(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--goal": goal = args[++i]; break;
+                case "--out": out = Path.of(args[++i]); break;
+                default: romPath = args[i];
+            }
+        }
+        if (romPath == null) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        Quirks quirks = quirksName != null ? Quirks.named(quirksName)
+                : Quirks.forPlatform(RomLibrary.detectPlatform(Files.readAllBytes(Path.of(romPath))));
+
+        StateSet visited = new StateSet(states);
+        Explorer explorer = new Explorer(romPath, quirks, cycles, seed, visited, out);
+        explorer.setBreadthFirst(breadthFirst);
+        explorer.setMaxDepth(depth);
+        explorer.setHold(hold);
+        if (keys != null)
+            explorer.setKeys(keys);
+        if (goal != null)
+            explorer.setGoal(goal);
+        System.out.println("Exploring " + romPath + " " + (breadthFirst ? "breadth" : "depth") + " first on "
+                + threads + " threads, room for " + states + " states in " + (visited.getBytes() >> 20) + " MB off the heap");
+        explorer.run(threads);
+        //a goal that was asked for and never reached
+        System.exit(goal != null && explorer.getGoals() == 0 ? 2 : 0);
+    }
+}
@@ -0,0 +1,178 @@
+package chip;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Reference viewer for a {@link FrameServer}: keeps a copy of the streamed display up to date.<br/>
+ * Usage: FrameClient [--frames n] [--quiet] [host[:port]], prints every frame as text
+ * and the bytes it took, then a summary
+ */
+public class FrameClient implements Closeable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final long[] rows = new long[FrameServer.ROWS];
+    private final byte[] run = new byte[FrameServer.ROWS * 8];
+    private long bytesReceived;
+    private long frames;
+    private long keyframes;
+
+    /**
+     * Connects and reads the stream header
+     *
+     * @param host Host of the server
+     * @param port Its port
+     */
+    public FrameClient(String host, int port) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port));
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        if (in.readInt() != FrameServer.MAGIC || in.readUnsignedByte() != FrameServer.VERSION) {
+            socket.close();
+            throw new IOException(host + ":" + port + " is not a frame server");
+        }
+        if (in.readUnsignedByte() != 64 || in.readUnsignedByte() != FrameServer.ROWS) {
+            socket.close();
+            throw new IOException("Unexpected display size");
+        }
+        bytesReceived = 7;
+    }
+
+    /**
+     * Waits for the next frame and applies it
+     *
+     * @return Bytes the frame took
+     * @throws EOFException if the server went away
+     */
+    public int next() throws IOException {
+        int type = in.readUnsignedByte();
+        int size = 1;
+        if (type == FrameServer.KEYFRAME) {
+            for (int row = 0; row < rows.length; row++)
+                rows[row] = in.readLong();
+            size += rows.length * 8;
+            keyframes++;
+        } else if (type == FrameServer.DELTA) {
+            int mask = in.readInt();
+            size += 4;
+            int length = Integer.bitCount(mask) * 8;
+            for (int filled = 0; filled < length; ) {
+                int value = in.readUnsignedByte();
+                size++;
+                if (value != 0) {
+                    run[filled++] = (byte) value;
+                    continue;
+                }
+                int zeros = in.readUnsignedByte();
+                size++;
+                if (zeros == 0 || filled + zeros > length)
+                    throw new IOException("Corrupt delta");
+                for (int i = 0; i < zeros; i++)
+                    run[filled++] = 0;
+            }
+            int offset = 0;
+            for (int row = 0; row < rows.length; row++) {
+                if ((mask & 1 << row) == 0)
+                    continue;
+                long xor = 0;
+                for (int i = 0; i < 8; i++)
+                    xor = xor << 8 | (run[offset++] & 0xFF);
+                rows[row] ^= xor;
+            }
+        } else {
+            throw new IOException("Unknown message " + type);
+        }
+        bytesReceived += size;
+        frames++;
+        return size;
+    }
+
+    /**
+     * Copies the current frame into a display
+     *
+     * @param display 64x32 bytes, one per pixel
+     */
+    public void copyTo(byte[] display) {
+        for (int row = 0; row < rows.length; row++)
+            for (int column = 0; column < 64; column++)
+                display[row * 64 + column] = (byte) (rows[row] >>> (63 - column) & 1);
+    }
+
+    /**
+     * @return The current frame, one long per row with the leftmost pixel in the high bit
+     */
+    public long[] getRows() {
+        return rows;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getKeyframes() {
+        return keyframes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (long row : rows) {
+            for (int column = 0; column < 64; column++)
+                sb.append((row >>> (63 - column) & 1) != 0 ? '#' : ' ');
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = "localhost";
+        int port = FrameServer.DEFAULT_PORT;
+        long limit = Long.MAX_VALUE;
+        boolean quiet = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--frames": limit = Long.parseLong(args[++i]); break;
+                case "--quiet": quiet = true; break;
+                default:
+                    String[] parts = args[i].split(":");
+                    host = parts[0];
+                    if (parts.length > 1)
+                        port = Integer.parseInt(parts[1]);
+            }
+        }
+
+        long start = System.nanoTime();
+        try (FrameClient client = new FrameClient(host, port)) {
+            try {
+                while (client.getFrames() < limit) {
+                    int size = client.next();
+                    if (!quiet)
+                        System.out.print("\033[H" + client + size + " bytes\033[K\n");
+                }
+            } catch (EOFException e) {
+                System.err.println("The server closed the stream");
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%d frames (%d keyframes), %d bytes, %.1f bytes a frame, %.0f bytes/s",
+                    client.getFrames(), client.getKeyframes(), client.getBytesReceived(),
+                    client.getBytesReceived() / (double) Math.max(1, client.getFrames()),
+                    client.getBytesReceived() / seconds));
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package chip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Streams a display over TCP to any number of spectators, all served by one selector thread.<br/>
+ * A viewer first gets a keyframe, then only the rows that changed, XORed with what it has and
+ * run-length encoded, so a moving sprite costs a handful of bytes and a still screen nothing.
+ * A viewer that can't keep up is never queued more than one message: once its socket drains it gets a
+ * single delta from what it has to the newest frame, skipping the ones in between.<br/>
+ * The protocol, after a header of the magic "C8FS", a version byte, the width and the height:
+ * <ul>
+ * <li>'K' followed by 32 rows of 8 bytes, the leftmost pixel in the high bit of the first byte</li>
+ * <li>'D' followed by a 32-bit mask of the changed rows, then the XOR of those rows, 8 bytes each,
+ * where a 0 byte is followed by how many 0 bytes it stands for</li>
+ * </ul>
+ * Usage: FrameServer [--port n] [--cycles n] rom, runs the ROM headless and streams it
+ */
+public class FrameServer implements Closeable {
+
+    static final int MAGIC = 0x43384653; // "C8FS"
+    static final int VERSION = 1;
+    static final byte KEYFRAME = 'K';
+    static final byte DELTA = 'D';
+    static final int ROWS = 32;
+
+    public static final int DEFAULT_PORT = 8064;
+
+    /**
+     * What is known about one spectator, only touched by the selector thread
+     */
+    private static final class Viewer {
+        final SocketChannel channel;
+        /**
+         * The frame the viewer has once everything in out is sent
+         */
+        final long[] rows = new long[ROWS];
+        /**
+         * Largest message: a delta of 32 rows that alternate single 0 bytes with others, 12 bytes a row
+         */
+        final ByteBuffer out = ByteBuffer.allocate(1 + 4 + ROWS * 12);
+        final ByteBuffer in = ByteBuffer.allocate(64);
+        long sequence = -1;
+
+        Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread;
+
+    /**
+     * Newest frame, written by the emulation thread under the lock
+     */
+    private final long[] latest = new long[ROWS];
+    private long latestSequence;
+    private final Object lock = new Object();
+    /**
+     * The emulation thread's packed copy of the display, to see if a frame changed without taking the lock
+     */
+    private final long[] packed = new long[ROWS];
+    private final long[] published = new long[ROWS];
+
+    /**
+     * Selector thread's copy of the newest frame
+     */
+    private final long[] current = new long[ROWS];
+    private long currentSequence;
+
+    private volatile int viewers;
+    private volatile long bytesSent;
+    private volatile boolean closed;
+
+    /**
+     * Starts serving on a port of every interface
+     *
+     * @param port TCP port, 0 for any free one
+     */
+    public FrameServer(int port) throws IOException {
+        this(new InetSocketAddress(port));
+    }
+
+    /**
+     * Starts serving on an address
+     *
+     * @param address Address to listen on
+     */
+    public FrameServer(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::serve, "Frame server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The port viewers connect to
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getViewers() {
+        return viewers;
+    }
+
+    /**
+     * @return Bytes written to all viewers so far, headers included
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Offers the display to the viewers, called by the emulation thread.<br/>
+     * Doesn't allocate and returns at once if nothing changed since the last call
+     *
+     * @param display The 64x32 display, one byte per pixel
+     */
+    public void publish(byte[] display) {
+        pack(display, packed);
+        boolean changed = false;
+        for (int row = 0; row < ROWS; row++) {
+            if (packed[row] != published[row]) {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed)
+            return;
+        System.arraycopy(packed, 0, published, 0, ROWS);
+        synchronized (lock) {
+            System.arraycopy(packed, 0, latest, 0, ROWS);
+            latestSequence++;
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Packs a display into one long per row, the leftmost pixel in the high bit
+     */
+    static void pack(byte[] display, long[] rows) {
+        for (int row = 0; row < ROWS; row++) {
+            long bits = 0;
+            int offset = row * 64;
+            for (int column = 0; column < 64; column++)
+                bits = bits << 1 | (display[offset + column] & 1);
+            rows[row] = bits;
+        }
+    }
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+                synchronized (lock) {
+                    if (currentSequence != latestSequence) {
+                        System.arraycopy(latest, 0, current, 0, ROWS);
+                        currentSequence = latestSequence;
+                    }
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Viewer viewer = (Viewer) key.attachment();
+                    if (key.isReadable() && !drainInput(viewer))
+                        drop(key);
+                }
+                //Every viewer that isn't still sending its last message gets the newest frame
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && key.attachment() != null)
+                        send(key);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            //closed while selecting
+        } catch (IOException e) {
+            if (!closed)
+                e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Viewer viewer = new Viewer(channel);
+        viewer.out.putInt(MAGIC).put((byte) VERSION).put((byte) 64).put((byte) ROWS).flip();
+        channel.register(selector, SelectionKey.OP_READ, viewer);
+        viewers++;
+    }
+
+    /**
+     * Viewers have nothing to say, their input is only read to notice when they leave
+     *
+     * @return False once the viewer closed the connection
+     */
+    private boolean drainInput(Viewer viewer) {
+        try {
+            int read;
+            do {
+                viewer.in.clear();
+                read = viewer.channel.read(viewer.in);
+            } while (read > 0);
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void send(SelectionKey key) {
+        Viewer viewer = (Viewer) key.attachment();
+        try {
+            while (true) {
+                if (viewer.out.hasRemaining()) {
+                    bytesSent += viewer.channel.write(viewer.out);
+                    if (viewer.out.hasRemaining()) {
+                        //the socket is full, carry on when it drains
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (viewer.sequence == currentSequence)
+                    break;
+                encode(viewer);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            drop(key);
+        }
+    }
+
+    /**
+     * Writes what takes a viewer from the frame it has to the newest one
+     */
+    private void encode(Viewer viewer) {
+        ByteBuffer out = viewer.out;
+        out.clear();
+        if (viewer.sequence < 0) {
+            out.put(KEYFRAME);
+            for (int row = 0; row < ROWS; row++)
+                out.putLong(current[row]);
+        } else {
+            int mask = 0;
+            for (int row = 0; row < ROWS; row++)
+                if (current[row] != viewer.rows[row])
+                    mask |= 1 << row;
+            out.put(DELTA).putInt(mask);
+            int zeros = 0;
+            for (int row = 0; row < ROWS; row++) {
+                if ((mask & 1 << row) == 0)
+                    continue;
+                long xor = current[row] ^ viewer.rows[row];
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    int value = (int) (xor >>> shift) & 0xFF;
+                    if (value == 0) {
+                        zeros++;
+                        continue;
+                    }
+                    if (zeros > 0) {
+                        out.put((byte) 0).put((byte) zeros);
+                        zeros = 0;
+                    }
+                    out.put((byte) value);
+                }
+            }
+            //a changed row has a byte that isn't 0, so a run is at most 14 bytes long
+            if (zeros > 0)
+                out.put((byte) 0).put((byte) zeros);
+            if (out.position() > 1 + ROWS * 8) {
+                //most of the screen changed, a keyframe is smaller
+                out.clear();
+                out.put(KEYFRAME);
+                for (int row = 0; row < ROWS; row++)
+                    out.putLong(current[row]);
+            }
+        }
+        out.flip();
+        System.arraycopy(current, 0, viewer.rows, 0, ROWS);
+        viewer.sequence = currentSequence;
+    }
+
+    private void drop(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        viewers--;
+    }
+
+    /**
+     * Disconnects every viewer and stops listening
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+        server.close();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = DEFAULT_PORT;
+        int cycles = 10;
+        String romPath = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--cycles": cycles = Integer.parseInt(args[++i]); break;
+                default: romPath = args[i];
+            }
+        }
+        if (romPath == null) {
+            System.err.println("Usage: FrameServer [--port n] [--cycles n] rom");
+            System.exit(1);
+        }
+
+        Chip chip = new Chip();
+        chip.setMuted(true);
+        chip.loadProgram(RomImage.load(romPath));
+        chip.setQuirks(Quirks.forPlatform(RomLibrary.detectPlatform(Files.readAllBytes(Path.of(romPath)))));
+        chip.setCyclesPerFrame(cycles);
+        FrameServer server = new FrameServer(port);
+        System.out.println("Streaming " + Path.of(romPath).getFileName() + " on port " + server.getPort());
+
+        int[] keys = new int[16];
+        long next = System.nanoTime();
+        while (true) {
+            try {
+                chip.runFrame(keys);
+            } catch (Chip.Fault fault) {
+                System.err.println(fault.getMessage());
+                break;
+            }
+            server.publish(chip.getDisplay());
+            next += 1_000_000_000L / 60;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0)
+                Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+        }
+        //keep showing the last frame
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,432 @@
+package chip;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Coverage guided fuzzer for the core.<br/>
+ * Mutates ROMs and key sequences on headless chips, keeps every input that executes
+ * a new address or opcode, and minimises the inputs that crash the chip.
+ * A {@link Chip.Fault} is the chip refusing a bad program and is not a crash, anything else thrown is.<br/>
+ * Usage: Fuzzer [--seconds n] [--cycles n] [--threads n] [--out dir] [rom or folder...]
+ */
+public class Fuzzer {
+
+    private static final int CYCLES_PER_FRAME = 16;
+    /**
+     * Runs allowed to minimise one crash
+     */
+    private static final int MINIMISE_ATTEMPTS = 5000;
+    /**
+     * Operand values that hit the edges of the RAM and the registers
+     */
+    private static final int[] INTERESTING = {0x000, 0x001, 0x050, 0x0FF, 0x200, 0xFFD, 0xFFE, 0xFFF};
+
+    /**
+     * Base opcode and the bits that are operands, for every known opcode family
+     */
+    private static final int[] TEMPLATE_BASES = new int[Opcodes.FAMILY_COUNT - 1];
+    private static final int[] TEMPLATE_OPERANDS = new int[Opcodes.FAMILY_COUNT - 1];
+
+    static {
+        for (int family = 0; family < TEMPLATE_BASES.length; family++) {
+            String name = Opcodes.NAMES[family];
+            for (int digit = 0; digit < 4; digit++) {
+                char c = name.charAt(digit);
+                int shift = (3 - digit) * 4;
+                if (Character.digit(c, 16) >= 0)
+                    TEMPLATE_BASES[family] |= Character.digit(c, 16) << shift;
+                else
+                    TEMPLATE_OPERANDS[family] |= 0xF << shift;
+            }
+        }
+    }
+
+    /**
+     * One fuzzing input: a program, the keys of every frame and how the chip is set up
+     */
+    static final class Input {
+        final byte[] rom;
+        final short[] keys;
+        final long seed;
+        final Quirks quirks;
+
+        Input(byte[] rom, short[] keys, long seed, Quirks quirks) {
+            this.rom = rom;
+            this.keys = keys;
+            this.seed = seed;
+            this.quirks = quirks;
+        }
+    }
+
+    /**
+     * What a run ended with
+     */
+    static final class Outcome {
+        final Throwable crash;
+        final long frame;
+
+        Outcome(Throwable crash, long frame) {
+            this.crash = crash;
+            this.frame = frame;
+        }
+    }
+
+    private final int frames;
+    private final Path out;
+
+    private final List<Input> corpus = new ArrayList<>();
+    private final Coverage total = new Coverage();
+    private final ConcurrentHashMap<String, Input> crashes = new ConcurrentHashMap<>();
+    private final AtomicInteger crashCount = new AtomicInteger();
+    private final LongAdder executions = new LongAdder();
+
+    /**
+     * @param cycles Opcodes every run may execute
+     * @param out    Folder the crash reproducers are written to
+     */
+    public Fuzzer(int cycles, Path out) {
+        this.frames = Math.max(1, cycles / CYCLES_PER_FRAME);
+        this.out = out;
+    }
+
+    /**
+     * Adds a program to the corpus
+     *
+     * @param rom The ROM bytes
+     */
+    public void addSeed(byte[] rom) {
+        if (rom.length > RomImage.MAX_SIZE) return;
+        synchronized (corpus) {
+            corpus.add(new Input(rom, new short[0], 0, Quirks.MODERN));
+        }
+    }
+
+    /**
+     * Fuzzes on a number of threads until the time is up
+     *
+     * @param threads Headless chips to run in parallel
+     * @param seconds How long to fuzz
+     */
+    public void run(int threads, int seconds) throws InterruptedException {
+        synchronized (corpus) {
+            if (corpus.isEmpty())
+                corpus.add(randomInput(new SplittableRandom()));
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++)
+            pool.execute(() -> work(deadline));
+        pool.shutdown();
+        while (!pool.awaitTermination(5, TimeUnit.SECONDS))
+            System.out.println(status(start));
+        System.out.println(status(start));
+    }
+
+    private String status(long start) {
+        int inputs;
+        synchronized (corpus) {
+            inputs = corpus.size();
+        }
+        return String.format("%5ds %,12d runs %6d inputs %5d/4096 addresses %6d opcodes %3d crashes",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), executions.sum(), inputs,
+                total.pcCount(), total.opcodeCount(), crashCount.get());
+    }
+
+    private void work(long deadline) {
+        SplittableRandom random = new SplittableRandom();
+        Coverage coverage = new Coverage();
+        while (System.nanoTime() < deadline) {
+            Input input = mutate(pick(random), random);
+            coverage.reset();
+            Outcome outcome = execute(input, coverage, null);
+            executions.increment();
+            if (total.merge(coverage) > 0) {
+                synchronized (corpus) {
+                    corpus.add(input);
+                }
+            }
+            if (outcome.crash != null)
+                onCrash(input, outcome);
+        }
+    }
+
+    private Input pick(SplittableRandom random) {
+        synchronized (corpus) {
+            return corpus.get(random.nextInt(corpus.size()));
+        }
+    }
+
+    /**
+     * Runs an input on a fresh chip for the whole cycle budget
+     *
+     * @param input    The input
+     * @param coverage Bitmaps to fill, or null
+     * @param recorder Records the keys of every frame that was run, or null
+     * @return The crash and the frame it happened in, the crash is null if there was none
+     */
+    Outcome execute(Input input, Coverage coverage, InputLog.Recorder recorder) {
+        Chip chip = new Chip();
+        chip.setMuted(true);
+        try {
+            chip.loadProgram(RomImage.unshared(input.rom));
+        } catch (IOException e) {
+            return new Outcome(null, 0);
+        }
+        chip.setSeed(input.seed);
+        chip.setCyclesPerFrame(CYCLES_PER_FRAME);
+        chip.setQuirks(input.quirks);
+        chip.setCoverage(coverage);
+        chip.setRecorder(recorder);
+
+        int[] keys = new int[16];
+        for (int frame = 0; frame < frames; frame++) {
+            InputLog.unmask(frame < input.keys.length ? input.keys[frame] : 0, keys);
+            try {
+                chip.runFrame(keys);
+            } catch (Chip.Fault fault) {
+                break;
+            } catch (RuntimeException e) {
+                //The frame did not finish, record it anyway so a replay runs into the same crash
+                if (recorder != null)
+                    recorder.record(keys);
+                return new Outcome(e, frame);
+            }
+        }
+        return new Outcome(null, frames);
+    }
+
+    private void onCrash(Input input, Outcome outcome) {
+        String signature = signature(outcome.crash);
+        //Hot throw sites lose their stack trace in the JIT, those are a crash that was already seen
+        String type = outcome.crash.getClass().getName();
+        if (outcome.crash.getStackTrace().length == 0 && crashes.keySet().stream().anyMatch(seen -> seen.startsWith(type)))
+            return;
+        if (crashes.putIfAbsent(signature, input) != null)
+            return;
+        Input minimal = minimise(input, outcome, signature);
+        int number = crashCount.incrementAndGet();
+        try {
+            Files.createDirectories(out);
+            Path rom = out.resolve("crash-" + number + ".ch8");
+            Path log = out.resolve("crash-" + number + ".log");
+            Files.write(rom, minimal.rom);
+            Outcome replayed;
+            try (InputLog.Recorder recorder = new InputLog.Recorder(log, rom.toString(), setUp(minimal))) {
+                replayed = execute(minimal, null, recorder);
+            }
+            StringWriter trace = new StringWriter();
+            (replayed.crash != null ? replayed.crash : outcome.crash).printStackTrace(new PrintWriter(trace));
+            Files.writeString(out.resolve("crash-" + number + ".txt"), trace.toString());
+            System.out.println("Crash " + number + ": " + signature + " (" + minimal.rom.length
+                    + " byte ROM, " + (replayed.frame + 1) + " frames), replay " + log);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A chip set up like {@link #execute} does, for the header of a reproducer log
+     */
+    private static Chip setUp(Input input) throws IOException {
+        Chip chip = new Chip();
+        chip.loadProgram(RomImage.unshared(input.rom));
+        chip.setSeed(input.seed);
+        chip.setCyclesPerFrame(CYCLES_PER_FRAME);
+        chip.setQuirks(input.quirks);
+        return chip;
+    }
+
+    /**
+     * Crashes with the same exception thrown from the same place are the same bug
+     */
+    static String signature(Throwable crash) {
+        StackTraceElement[] trace = crash.getStackTrace();
+        return crash.getClass().getName() + (trace.length > 0 ? " at " + trace[0] : "");
+    }
+
+    /**
+     * Shrinks a crashing input while it still crashes the same way:
+     * drops the frames after the crash, then removes ever smaller chunks of the ROM
+     * and releases the keys of ever smaller frame ranges
+     */
+    private Input minimise(Input input, Outcome outcome, String signature) {
+        Input best = new Input(input.rom, Arrays.copyOf(input.keys, (int) Math.min(input.keys.length, outcome.frame + 1)),
+                input.seed, input.quirks);
+        int attempts = 0;
+
+        for (int chunk = Math.max(1, Integer.highestOneBit(best.rom.length)); chunk >= 1; chunk /= 2) {
+            for (int start = 0; start < best.rom.length && attempts < MINIMISE_ATTEMPTS; attempts++) {
+                byte[] rom = new byte[best.rom.length - Math.min(chunk, best.rom.length - start)];
+                System.arraycopy(best.rom, 0, rom, 0, start);
+                System.arraycopy(best.rom, best.rom.length - (rom.length - start), rom, start, rom.length - start);
+                Input candidate = new Input(rom, best.keys, best.seed, best.quirks);
+                if (crashesLike(candidate, signature)) best = candidate;
+                else start += chunk;
+            }
+        }
+
+        for (int chunk = Math.max(1, Integer.highestOneBit(best.keys.length)); chunk >= 1; chunk /= 2) {
+            for (int start = 0; start < best.keys.length && attempts < MINIMISE_ATTEMPTS; start += chunk) {
+                int end = Math.min(best.keys.length, start + chunk);
+                if (allReleased(best.keys, start, end)) continue;
+                short[] keys = best.keys.clone();
+                Arrays.fill(keys, start, end, (short) 0);
+                Input candidate = new Input(best.rom, keys, best.seed, best.quirks);
+                attempts++;
+                if (crashesLike(candidate, signature)) best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static boolean allReleased(short[] keys, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (keys[i] != 0) return false;
+        }
+        return true;
+    }
+
+    private boolean crashesLike(Input input, String signature) {
+        Outcome outcome = execute(input, null, null);
+        return outcome.crash != null && signature(outcome.crash).equals(signature);
+    }
+
+    private Input randomInput(SplittableRandom random) {
+        byte[] rom = new byte[64 * 2];
+        for (int i = 0; i < rom.length; i += 2)
+            writeOpcode(rom, i, randomOpcode(random));
+        return new Input(rom, new short[0], random.nextLong(), Quirks.MODERN);
+    }
+
+    /**
+     * Opcode of a random known family with random operands, sometimes ones at the edges
+     */
+    private static int randomOpcode(SplittableRandom random) {
+        int family = random.nextInt(TEMPLATE_BASES.length);
+        int operands = TEMPLATE_OPERANDS[family];
+        int value = random.nextInt(4) == 0 ? INTERESTING[random.nextInt(INTERESTING.length)] : random.nextInt(0x10000);
+        return TEMPLATE_BASES[family] | (value & operands);
+    }
+
+    private static void writeOpcode(byte[] rom, int offset, int opcode) {
+        rom[offset] = (byte) (opcode >> 8);
+        if (offset + 1 < rom.length)
+            rom[offset + 1] = (byte) opcode;
+    }
+
+    /**
+     * Applies one to four random mutations to a copy of an input
+     */
+    private Input mutate(Input parent, SplittableRandom random) {
+        byte[] rom = parent.rom;
+        short[] keys = parent.keys;
+        long seed = parent.seed;
+        Quirks quirks = parent.quirks;
+
+        int count = 1 + random.nextInt(4);
+        for (int m = 0; m < count; m++) {
+            switch (random.nextInt(10)) {
+                case 0: //flip a bit
+                    if (rom.length == 0) break;
+                    rom = rom == parent.rom ? rom.clone() : rom;
+                    rom[random.nextInt(rom.length)] ^= 1 << random.nextInt(8);
+                    break;
+                case 1: //random byte
+                    if (rom.length == 0) break;
+                    rom = rom == parent.rom ? rom.clone() : rom;
+                    rom[random.nextInt(rom.length)] = (byte) random.nextInt(256);
+                    break;
+                case 2: //overwrite an opcode
+                case 3:
+                    if (rom.length < 2) break;
+                    rom = rom == parent.rom ? rom.clone() : rom;
+                    writeOpcode(rom, random.nextInt(rom.length / 2) * 2, randomOpcode(random));
+                    break;
+                case 4: { //insert an opcode
+                    if (rom.length + 2 > RomImage.MAX_SIZE) break;
+                    int at = random.nextInt(rom.length / 2 + 1) * 2;
+                    byte[] grown = new byte[rom.length + 2];
+                    System.arraycopy(rom, 0, grown, 0, at);
+                    System.arraycopy(rom, at, grown, at + 2, rom.length - at);
+                    writeOpcode(grown, at, randomOpcode(random));
+                    rom = grown;
+                    break;
+                }
+                case 5: { //delete an opcode
+                    if (rom.length < 2) break;
+                    int at = random.nextInt(rom.length / 2) * 2;
+                    byte[] shrunk = new byte[rom.length - 2];
+                    System.arraycopy(rom, 0, shrunk, 0, at);
+                    System.arraycopy(rom, at + 2, shrunk, at, shrunk.length - at);
+                    rom = shrunk;
+                    break;
+                }
+                case 6: { //splice in a chunk of another input
+                    byte[] other = pick(random).rom;
+                    if (other.length == 0 || rom.length == 0) break;
+                    int length = 1 + random.nextInt(Math.min(other.length, rom.length));
+                    rom = rom == parent.rom ? rom.clone() : rom;
+                    System.arraycopy(other, random.nextInt(other.length - length + 1), rom,
+                            random.nextInt(rom.length - length + 1), length);
+                    break;
+                }
+                case 7: //hold some keys over a range of frames
+                case 8: {
+                    keys = keys == parent.keys || keys.length < frames ? Arrays.copyOf(keys, frames) : keys;
+                    int start = random.nextInt(frames);
+                    int end = Math.min(frames, start + 1 + random.nextInt(60));
+                    Arrays.fill(keys, start, end, random.nextInt(4) == 0 ? 0 : (short) (1 << random.nextInt(16)));
+                    break;
+                }
+                default: //change how the chip is set up
+                    seed = random.nextLong();
+                    quirks = Quirks.PRESETS[random.nextInt(Quirks.PRESETS.length)];
+            }
+        }
+        return new Input(rom, keys, seed, quirks);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = 60;
+        int cycles = 20000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path out = Path.of("fuzz");
+        List<Path> seeds = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--cycles": cycles = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--out": out = Path.of(args[++i]); break;
+                default: seeds.add(Path.of(args[i]));
+            }
+        }
+
+        Fuzzer fuzzer = new Fuzzer(cycles, out);
+        for (Path seed : seeds) {
+            try (Stream<Path> files = Files.isDirectory(seed) ? Files.list(seed) : Stream.of(seed)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (Files.isRegularFile(file) && Files.size(file) <= RomImage.MAX_SIZE)
+                        fuzzer.addSeed(Files.readAllBytes(file));
+                }
+            }
+        }
+        fuzzer.run(threads, seconds);
+    }
+}
@@ -0,0 +1,128 @@
+package chip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Runs a ROM for a number of frames without a window, for batch jobs.<br/>
+ * Only the core is touched, no AWT, Swing or sound class is ever loaded, so with the class-data-sharing
+ * archive the Gradle build makes (headlessCds, build/cds/chip8-headless) a run starts in a few tens of milliseconds.<br/>
+ * Prints the frames run, the hash of the display and the final registers, and exits with 2 on a fault.<br/>
+ * Usage: Headless [--engine chip|reference] [--frames n] [--cycles n] [--quirks name] [--timing name]
+ * [--seed n] [--log input.log] [--snapshot file] [--hash] [rom]
+ */
+public class Headless {
+
+    private static final String USAGE = "Usage: Headless [--engine chip|reference] [--frames n] [--cycles n]"
+            + " [--quirks name] [--timing name] [--seed n] [--log input.log] [--snapshot file] [--hash] [rom]";
+
+    public static void main(String[] args) throws IOException {
+        String engineName = "chip";
+        long frames = 600;
+        Integer cycles = null;
+        String quirksName = null;
+        String timingName = null;
+        Long seed = null;
+        Path log = null;
+        Path snapshot = null;
+        boolean hashOnly = false;
+        String romPath = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--engine": engineName = args[++i]; break;
+                case "--frames": frames = Long.parseLong(args[++i]); break;
+                case "--cycles": cycles = Integer.parseInt(args[++i]); break;
+                case "--quirks": quirksName = args[++i]; break;
+                case "--timing": timingName = args[++i]; break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--log": log = Path.of(args[++i]); break;
+                case "--snapshot": snapshot = Path.of(args[++i]); break;
+                case "--hash": hashOnly = true; break;
+                default: romPath = args[i];
+            }
+        }
+        if (!DiffTest.ENGINES.containsKey(engineName)) {
+            System.err.println("Engines are " + DiffTest.ENGINES.keySet());
+            System.exit(1);
+        }
+
+        InputLog.Player player = log != null ? new InputLog.Player(log) : null;
+        if (romPath == null && player != null)
+            romPath = player.getRomPath();
+        if (romPath == null) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        RomImage rom = RomImage.load(romPath);
+        if (player != null && !Arrays.equals(player.getRomHash(), rom.getSha1())) {
+            System.err.println(romPath + " is not the ROM " + log + " was recorded with");
+            System.exit(1);
+        }
+
+        //What the log recorded, unless the command line says otherwise
+        Quirks quirks = quirksName != null ? Quirks.named(quirksName)
+                : player != null ? player.getQuirks()
+                : Quirks.forPlatform(RomLibrary.detectPlatform(Files.readAllBytes(Path.of(romPath))));
+        Timing timing = timingName != null ? Timing.named(timingName) : player != null ? player.getTiming() : null;
+        if (timingName != null && timing == null) {
+            System.err.println("Timing models are " + Arrays.toString(Timing.MODELS));
+            System.exit(1);
+        }
+        int cyclesPerFrame = cycles != null ? cycles : player != null ? player.getCyclesPerFrame() : 10;
+        long rngSeed = seed != null ? seed : player != null ? player.getSeed() : 0;
+
+        Engine engine = DiffTest.ENGINES.get(engineName).get();
+        engine.loadProgram(rom);
+        engine.setSeed(rngSeed);
+        engine.setQuirks(quirks);
+        engine.setCyclesPerFrame(cyclesPerFrame);
+        if (timing != null) {
+            if (!(engine instanceof Chip)) {
+                System.err.println("Only the chip engine has timing models");
+                System.exit(1);
+            }
+            ((Chip) engine).setTiming(timing);
+        }
+
+        int[] keys = new int[16];
+        long frame = 0;
+        String fault = null;
+        try {
+            for (; frame < frames; frame++) {
+                if (player != null && !player.nextFrame(keys))
+                    break;
+                engine.beginFrame();
+                while (engine.step()) {
+                    //the engine ends the frame
+                }
+                engine.endFrame(keys);
+            }
+        } catch (Chip.Fault e) {
+            fault = e.getMessage();
+        }
+        if (player != null)
+            player.close();
+
+        Engine.State state = new Engine.State();
+        engine.capture(state);
+        if (hashOnly) {
+            System.out.println(String.format("%016x", state.displayHash));
+        } else {
+            System.out.println(Path.of(romPath).getFileName() + ": " + frame + " frames"
+                    + (fault != null ? ", faulted: " + fault : ""));
+            System.out.println(state);
+        }
+        if (snapshot != null) {
+            if (!(engine instanceof Chip)) {
+                System.err.println("Only the chip engine writes snapshots");
+                System.exit(1);
+            }
+            Snapshot copy = new Snapshot();
+            ((Chip) engine).copyState(copy);
+            copy.writeTo(snapshot);
+        }
+        System.exit(fault != null ? 2 : 0);
+    }
+}
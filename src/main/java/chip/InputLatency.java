@@ -0,0 +1,244 @@
+package chip;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how long a key press takes to show on screen, attached to {@link Chip}.<br/>
+ * A press is stamped when the window gets the key event, again when {@link Chip#setKeyBuffer(int[])}
+ * latches it into the chip, when EX9E, EXA1 or FX0A first reads the key as down, when the next frame
+ * is handed to the display and when that frame is painted. Presses the program doesn't read before the key
+ * goes up or within a second, and reads that are never painted, are counted but not measured.<br/>
+ * The stamps arrive from three threads: the event thread presses and paints, the emulation thread
+ * latches and reads, and whichever thread renders publishes.
+ */
+public class InputLatency {
+
+    /**
+     * Older stamps are dropped, the program ignored the key or the window is minimised
+     */
+    static final long EXPIRY_NANOS = 1_000_000_000L;
+    private static final int PENDING = 64;
+    /**
+     * Half millisecond buckets up to 250 ms, then one for everything slower
+     */
+    private static final int BUCKETS = 501;
+    private static final long BUCKET_NANOS = 500_000;
+
+    /**
+     * Time of the first press of every key the chip hasn't latched yet, 0 for none
+     */
+    private final AtomicLongArray pressed = new AtomicLongArray(16);
+    /**
+     * Latched presses the program hasn't read yet, only touched by the emulation thread
+     */
+    private final long[] inputAt = new long[16];
+    private final long[] latchedAt = new long[16];
+
+    //Presses read but not painted yet, under the lock of this object
+    private final long[] pendingInput = new long[PENDING];
+    private final long[] pendingLatched = new long[PENDING];
+    private final long[] pendingRead = new long[PENDING];
+    private final long[] pendingPublished = new long[PENDING];
+    /**
+     * Frame the read went out with, -1 until one is published
+     */
+    private final long[] pendingFrame = new long[PENDING];
+    private int pendingCount;
+
+    private final long[] histogram = new long[BUCKETS];
+    private long samples;
+    private long totalNanos;
+    private long maxNanos;
+    private long lastNanos;
+    /**
+     * Sums of the stages: press to latch, latch to read, read to publish, publish to paint
+     */
+    private final long[] stageNanos = new long[4];
+    private long unread;
+    private long unpainted;
+
+    /**
+     * A key went down, called by the thread that got the key event
+     *
+     * @param key   The chip key, 0 to F
+     * @param nanos System.nanoTime of the event
+     */
+    public void press(int key, long nanos) {
+        pressed.compareAndSet(key, 0, nanos);
+    }
+
+    /**
+     * The chip latched its keys for the next frame
+     */
+    void latch(byte[] keys) {
+        long now = System.nanoTime();
+        for (int key = 0; key < 16; key++) {
+            //released, or held for so long, without the program reading it
+            if (inputAt[key] != 0 && (keys[key] == 0 || now - inputAt[key] > EXPIRY_NANOS)) {
+                inputAt[key] = 0;
+                synchronized (this) {
+                    unread++;
+                }
+            }
+            long pressedAt = pressed.get(key);
+            if (pressedAt != 0 && now - pressedAt > EXPIRY_NANOS && pressed.compareAndSet(key, pressedAt, 0)) {
+                //released before a frame saw it
+                synchronized (this) {
+                    unread++;
+                }
+                continue;
+            }
+            if (keys[key] == 0 || inputAt[key] != 0 || pressedAt == 0)
+                continue;
+            inputAt[key] = pressed.getAndSet(key, 0);
+            latchedAt[key] = now;
+        }
+    }
+
+    /**
+     * The program read a key as down, cheap unless the key has a press waiting to be read
+     */
+    void read(int key) {
+        if (inputAt[key] == 0)
+            return;
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (pendingCount == PENDING) {
+                unpainted++;
+            } else {
+                pendingInput[pendingCount] = inputAt[key];
+                pendingLatched[pendingCount] = latchedAt[key];
+                pendingRead[pendingCount] = now;
+                pendingFrame[pendingCount] = -1;
+                pendingCount++;
+            }
+        }
+        inputAt[key] = 0;
+    }
+
+    /**
+     * A frame was handed to the display, it carries every read before it
+     *
+     * @param frame Sequence number of the frame, increasing
+     */
+    public synchronized void published(long frame) {
+        long now = System.nanoTime();
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingFrame[i] < 0) {
+                pendingFrame[i] = frame;
+                pendingPublished[i] = now;
+            }
+        }
+    }
+
+    /**
+     * A frame is on screen, the reads it carries are measured
+     *
+     * @param frame Sequence number of the frame painted
+     */
+    public synchronized void painted(long frame) {
+        long now = System.nanoTime();
+        int kept = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingFrame[i] >= 0 && pendingFrame[i] <= frame) {
+                record(pendingInput[i], pendingLatched[i], pendingRead[i], pendingPublished[i], now);
+                continue;
+            }
+            if (now - pendingRead[i] > EXPIRY_NANOS) {
+                unpainted++;
+                continue;
+            }
+            pendingInput[kept] = pendingInput[i];
+            pendingLatched[kept] = pendingLatched[i];
+            pendingRead[kept] = pendingRead[i];
+            pendingPublished[kept] = pendingPublished[i];
+            pendingFrame[kept] = pendingFrame[i];
+            kept++;
+        }
+        pendingCount = kept;
+    }
+
+    private void record(long input, long latched, long read, long published, long painted) {
+        long latency = painted - input;
+        histogram[(int) Math.min(BUCKETS - 1, latency / BUCKET_NANOS)]++;
+        samples++;
+        totalNanos += latency;
+        maxNanos = Math.max(maxNanos, latency);
+        lastNanos = latency;
+        stageNanos[0] += latched - input;
+        stageNanos[1] += read - latched;
+        stageNanos[2] += published - read;
+        stageNanos[3] += painted - published;
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return Milliseconds of the last press measured
+     */
+    public synchronized double getLastMillis() {
+        return lastNanos / 1e6;
+    }
+
+    /**
+     * @param fraction 0.5 for the median
+     * @return Upper edge of the bucket the percentile falls in, in milliseconds
+     */
+    public synchronized double percentile(double fraction) {
+        if (samples == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * samples);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS - 1; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank)
+                return (bucket + 1) * BUCKET_NANOS / 1e6;
+        }
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * Forgets every measurement
+     */
+    public synchronized void reset() {
+        Arrays.fill(histogram, 0);
+        Arrays.fill(stageNanos, 0);
+        samples = totalNanos = maxNanos = lastNanos = unread = unpainted = 0;
+        pendingCount = 0;
+    }
+
+    /**
+     * @return The histogram as text, one line per millisecond bucket that has samples
+     */
+    public synchronized String histogram() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(this).append('\n');
+        long most = 1;
+        long[] millis = new long[BUCKETS / 2 + 1];
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            millis[bucket / 2] += histogram[bucket];
+        for (long count : millis)
+            most = Math.max(most, count);
+        for (int ms = 0; ms < millis.length; ms++) {
+            if (millis[ms] == 0)
+                continue;
+            sb.append(String.format("%s%3d ms %6d %s%n", ms == millis.length - 1 ? ">" : " ", ms, millis[ms],
+                    "#".repeat((int) (millis[ms] * 50 / most))));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (samples == 0)
+            return "No key press measured yet, " + unread + " unread, " + unpainted + " never painted";
+        return String.format("%d presses: mean %.1f ms, p50 %.1f, p90 %.1f, p99 %.1f, max %.1f"
+                        + " (key to latch %.1f, latch to read %.1f, read to frame %.1f, frame to paint %.1f), %d unread, %d never painted",
+                samples, totalNanos / 1e6 / samples, percentile(0.5), percentile(0.9), percentile(0.99), maxNanos / 1e6,
+                stageNanos[0] / 1e6 / samples, stageNanos[1] / 1e6 / samples,
+                stageNanos[2] / 1e6 / samples, stageNanos[3] / 1e6 / samples, unread, unpainted);
+    }
+}
@@ -0,0 +1,246 @@
+package chip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Binary log of the key state of every frame, enough to replay a session exactly.<br/>
+ * Layout: the header (magic, version, RNG seed, cycles per frame, quirks, timing model, SHA-1 and path of the ROM),
+ * then one record per key change holding the frames since the previous record
+ * and the new 16-bit key mask. A last record holds the trailing frame count.
+ * Frame counts are varints with the lowest bit marking the last record.
+ */
+public final class InputLog {
+
+    private static final int MAGIC = 0x43384C47; // "C8LG"
+    private static final int VERSION = 1;
+
+    private InputLog() {
+    }
+
+    /**
+     * Packs a key buffer into a mask, bit n is key n
+     */
+    public static int mask(int[] keyBuffer) {
+        int mask = 0;
+        for (int i = 0; i < 16; i++) {
+            if (keyBuffer[i] != 0) mask |= 1 << i;
+        }
+        return mask;
+    }
+
+    /**
+     * Unpacks a mask produced by {@link #mask(int[])} into a key buffer
+     */
+    public static void unmask(int mask, int[] keyBuffer) {
+        for (int i = 0; i < 16; i++) {
+            keyBuffer[i] = (mask >>> i) & 1;
+        }
+    }
+
+    /**
+     * Hashes a ROM image
+     *
+     * @param rom The ROM bytes
+     * @return The 20-byte SHA-1 digest
+     */
+    public static byte[] sha1(byte[] rom) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(rom);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Streams the key state of every frame to a file
+     */
+    public static class Recorder implements Closeable {
+        private final DataOutputStream out;
+        private int lastMask;
+        private int framesSinceRecord;
+        private boolean failed;
+
+        /**
+         * Creates the log and writes its header
+         *
+         * @param log     Where to write the log
+         * @param romPath The ROM that is being played
+         * @param chip    The chip, freshly loaded with the ROM and seeded
+         */
+        public Recorder(Path log, String romPath, Chip chip) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(log)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(chip.getSeed());
+            out.writeShort(chip.getCyclesPerFrame());
+            out.writeUTF(chip.getQuirks().name);
+            out.writeUTF(chip.getTiming() == null ? "" : chip.getTiming().name);
+            out.write(RomImage.load(romPath).getSha1());
+            out.writeUTF(romPath);
+            lastMask = 0;
+        }
+
+        /**
+         * Records the keys of one frame, only changes are written
+         *
+         * @param keyBuffer State of the 16 keys
+         */
+        public synchronized void record(int[] keyBuffer) {
+            if (failed) return;
+            int mask = mask(keyBuffer);
+            framesSinceRecord++;
+            if (mask == lastMask) return;
+            try {
+                writeVarint(framesSinceRecord << 1);
+                out.writeShort(mask);
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                failed = true;
+            }
+            lastMask = mask;
+            framesSinceRecord = 0;
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        /**
+         * Writes the trailing frame count and closes the file
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (!failed)
+                writeVarint(framesSinceRecord << 1 | 1);
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a log back one frame at a time
+     */
+    public static class Player implements Closeable {
+        private final DataInputStream in;
+        private final long seed;
+        private final int cyclesPerFrame;
+        private final Quirks quirks;
+        private final Timing timing;
+        private final byte[] romHash = new byte[20];
+        private final String romPath;
+
+        private int mask;
+        /**
+         * Frames left until the next record applies
+         */
+        private int pending;
+        private int pendingMask;
+        private boolean last;
+        private boolean finished;
+
+        public Player(Path log) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)));
+            if (in.readInt() != MAGIC)
+                throw new IOException(log + " is not an input log");
+            int version = in.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException("Unsupported input log version " + version);
+            seed = in.readLong();
+            cyclesPerFrame = in.readUnsignedShort();
+            quirks = Quirks.named(in.readUTF());
+            timing = Timing.named(in.readUTF());
+            in.readFully(romHash);
+            romPath = in.readUTF();
+            readRecord();
+        }
+
+        private void readRecord() throws IOException {
+            try {
+                int value = readVarint();
+                pending = value >>> 1;
+                last = (value & 1) != 0;
+                if (!last)
+                    pendingMask = in.readUnsignedShort();
+            } catch (EOFException e) {
+                //The recording was cut short, it ends with the last complete record
+                finished = true;
+            }
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        /**
+         * Reads the keys of the next frame
+         *
+         * @param keyBuffer Receives the state of the 16 keys
+         * @return False once every recorded frame has been read
+         */
+        public boolean nextFrame(int[] keyBuffer) throws IOException {
+            if (finished) return false;
+            if (pending == 0 && last) {
+                finished = true;
+                return false;
+            }
+            pending--;
+            if (pending == 0 && !last) {
+                mask = pendingMask;
+                readRecord();
+            }
+            unmask(mask, keyBuffer);
+            return true;
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        public int getCyclesPerFrame() {
+            return cyclesPerFrame;
+        }
+
+        public Quirks getQuirks() {
+            return quirks;
+        }
+
+        /**
+         * @return The timing model the log was recorded with, null for a fixed number of opcodes per frame
+         */
+        public Timing getTiming() {
+            return timing;
+        }
+
+        public byte[] getRomHash() {
+            return romHash.clone();
+        }
+
+        public String getRomPath() {
+            return romPath;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package chip;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Bitsets of the RAM addresses a chip read or wrote since a viewer last looked, attached to {@link Chip}.<br/>
+ * The chip only sets bits, in the paths that store to RAM (FX33, FX55) and read data from it (FX65, DXYN).
+ * A viewer on another thread takes the bits with {@link #drainWrites(long[])} and {@link #drainReads(long[])}.
+ * Each word is swapped out atomically, so a bit set while the viewer drains is at worst reported twice, never lost.
+ */
+public class MemoryWatch {
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] written = new long[4096 / 64];
+    private final long[] read = new long[4096 / 64];
+
+    /**
+     * Marks a stored byte
+     *
+     * @param address Wrapped address
+     */
+    void write(int address) {
+        written[address >>> 6] |= 1L << address;
+    }
+
+    /**
+     * Marks bytes read as data
+     *
+     * @param address First address, wraps at the end of the RAM
+     * @param length  Number of bytes
+     */
+    void read(int address, int length) {
+        for (int i = 0; i < length; i++) {
+            int wrapped = (address + i) & 0xFFF;
+            read[wrapped >>> 6] |= 1L << wrapped;
+        }
+    }
+
+    /**
+     * Marks the whole RAM as written, for when a program or a state replaced it
+     */
+    void writeAll() {
+        for (int i = 0; i < written.length; i++)
+            WORDS.setVolatile(written, i, -1L);
+    }
+
+    /**
+     * Moves the written bits into a bitset and clears them
+     *
+     * @param into 64 words, bit n of word n / 64 is set for every address written since the last call
+     * @return True if any bit was set
+     */
+    public boolean drainWrites(long[] into) {
+        return drain(written, into);
+    }
+
+    /**
+     * Moves the read bits into a bitset and clears them
+     *
+     * @param into 64 words, as for {@link #drainWrites(long[])}
+     * @return True if any bit was set
+     */
+    public boolean drainReads(long[] into) {
+        return drain(read, into);
+    }
+
+    private static boolean drain(long[] from, long[] into) {
+        long any = 0;
+        for (int i = 0; i < from.length; i++) {
+            into[i] = (long) WORDS.getAndSet(from, i, 0L);
+            any |= into[i];
+        }
+        return any != 0;
+    }
+}
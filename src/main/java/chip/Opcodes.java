@@ -0,0 +1,158 @@
+package chip;
+
+/**
+ * Static opcode metadata shared by the tooling around the core
+ * (profiler, debugger, analyzers).
+ */
+public final class Opcodes {
+
+    /**
+     * Mnemonic of every opcode family, indexed by {@link #family(int)}
+     */
+    public static final String[] NAMES = {
+            "00E0", "00EE", "0NNN", "1NNN", "2NNN", "3XNN", "4XNN", "5XY0",
+            "6XNN", "7XNN", "8XY0", "8XY1", "8XY2", "8XY3", "8XY4", "8XY5",
+            "8XY6", "8XY7", "8XYE", "9XY0", "ANNN", "BNNN", "CXNN", "DXYN",
+            "EX9E", "EXA1", "FX07", "FX0A", "FX15", "FX18", "FX1E", "FX29",
+            "FX33", "FX55", "FX65", "????"
+    };
+
+    public static final int FAMILY_COUNT = NAMES.length;
+    public static final int UNKNOWN = FAMILY_COUNT - 1;
+
+    /**
+     * Family index of every 16-bit opcode, so lookups on the hot path are a single array load
+     */
+    private static final byte[] FAMILY = new byte[0x10000];
+
+    static {
+        for (int opcode = 0; opcode < FAMILY.length; opcode++) {
+            FAMILY[opcode] = (byte) computeFamily(opcode);
+        }
+    }
+
+    private Opcodes() {
+    }
+
+    /**
+     * Returns the family index of an opcode
+     *
+     * @param opcode The 16-bit opcode
+     * @return Index into {@link #NAMES}
+     */
+    public static int family(int opcode) {
+        return FAMILY[opcode & 0xFFFF];
+    }
+
+    /**
+     * Returns the mnemonic of the family an opcode belongs to
+     *
+     * @param opcode The 16-bit opcode
+     * @return The family mnemonic, e.g. "DXYN"
+     */
+    public static String name(int opcode) {
+        return NAMES[family(opcode)];
+    }
+
+    /**
+     * Returns an opcode as assembly, e.g. "DRW V1, V2, 5"
+     *
+     * @param opcode The 16-bit opcode
+     * @return The instruction with its operands, or the raw word for an unknown opcode
+     */
+    public static String disassemble(int opcode) {
+        String x = "V" + Integer.toHexString((opcode >> 8) & 0xF).toUpperCase();
+        String y = "V" + Integer.toHexString((opcode >> 4) & 0xF).toUpperCase();
+        String nn = String.format("0x%02X", opcode & 0xFF);
+        String nnn = String.format("0x%03X", opcode & 0xFFF);
+        switch (NAMES[family(opcode)]) {
+            case "00E0": return "CLS";
+            case "00EE": return "RET";
+            case "0NNN": return "SYS " + nnn;
+            case "1NNN": return "JP " + nnn;
+            case "2NNN": return "CALL " + nnn;
+            case "3XNN": return "SE " + x + ", " + nn;
+            case "4XNN": return "SNE " + x + ", " + nn;
+            case "5XY0": return "SE " + x + ", " + y;
+            case "6XNN": return "LD " + x + ", " + nn;
+            case "7XNN": return "ADD " + x + ", " + nn;
+            case "8XY0": return "LD " + x + ", " + y;
+            case "8XY1": return "OR " + x + ", " + y;
+            case "8XY2": return "AND " + x + ", " + y;
+            case "8XY3": return "XOR " + x + ", " + y;
+            case "8XY4": return "ADD " + x + ", " + y;
+            case "8XY5": return "SUB " + x + ", " + y;
+            case "8XY6": return "SHR " + x + ", " + y;
+            case "8XY7": return "SUBN " + x + ", " + y;
+            case "8XYE": return "SHL " + x + ", " + y;
+            case "9XY0": return "SNE " + x + ", " + y;
+            case "ANNN": return "LD I, " + nnn;
+            case "BNNN": return "JP V0, " + nnn;
+            case "CXNN": return "RND " + x + ", " + nn;
+            case "DXYN": return "DRW " + x + ", " + y + ", " + (opcode & 0xF);
+            case "EX9E": return "SKP " + x;
+            case "EXA1": return "SKNP " + x;
+            case "FX07": return "LD " + x + ", DT";
+            case "FX0A": return "LD " + x + ", K";
+            case "FX15": return "LD DT, " + x;
+            case "FX18": return "LD ST, " + x;
+            case "FX1E": return "ADD I, " + x;
+            case "FX29": return "LD F, " + x;
+            case "FX33": return "LD B, " + x;
+            case "FX55": return "LD [I], " + x;
+            case "FX65": return "LD " + x + ", [I]";
+            default: return String.format("DW 0x%04X", opcode);
+        }
+    }
+
+    private static int computeFamily(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                if (opcode == 0x00E0) return 0;
+                if (opcode == 0x00EE) return 1;
+                return 2;
+            case 0x1000: return 3;
+            case 0x2000: return 4;
+            case 0x3000: return 5;
+            case 0x4000: return 6;
+            case 0x5000: return (opcode & 0xF) == 0 ? 7 : UNKNOWN;
+            case 0x6000: return 8;
+            case 0x7000: return 9;
+            case 0x8000:
+                switch (opcode & 0xF) {
+                    case 0x0: return 10;
+                    case 0x1: return 11;
+                    case 0x2: return 12;
+                    case 0x3: return 13;
+                    case 0x4: return 14;
+                    case 0x5: return 15;
+                    case 0x6: return 16;
+                    case 0x7: return 17;
+                    case 0xE: return 18;
+                    default: return UNKNOWN;
+                }
+            case 0x9000: return (opcode & 0xF) == 0 ? 19 : UNKNOWN;
+            case 0xA000: return 20;
+            case 0xB000: return 21;
+            case 0xC000: return 22;
+            case 0xD000: return 23;
+            case 0xE000:
+                if ((opcode & 0xFF) == 0x9E) return 24;
+                if ((opcode & 0xFF) == 0xA1) return 25;
+                return UNKNOWN;
+            default:
+                switch (opcode & 0xFF) {
+                    case 0x07: return 26;
+                    case 0x0A: return 27;
+                    case 0x15: return 28;
+                    case 0x18: return 29;
+                    case 0x1E: return 30;
+                    case 0x29: return 31;
+                    case 0x33: return 32;
+                    case 0x55: return 33;
+                    case 0x65: return 34;
+                    default: return UNKNOWN;
+                }
+        }
+    }
+}
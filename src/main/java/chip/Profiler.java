@@ -0,0 +1,234 @@
+package chip;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Counting profiler attached to {@link Chip#run()}.<br/>
+ * Records how often every address, opcode family and subroutine executes.
+ * All counters are primitive arrays so it can stay attached during long runs.
+ */
+public class Profiler {
+
+    private static final int MAX_DEPTH = 64;
+    private static final int ROOT = 0;
+
+    /**
+     * Only every n-th instruction is counted, the call stack is tracked on every one
+     */
+    private final int sampleInterval;
+    private int countdown;
+
+    private final long[] pcCounts = new long[4096];
+    private final char[] pcOpcodes = new char[4096];
+    private final long[] familyCounts = new long[Opcodes.FAMILY_COUNT];
+    /**
+     * Self counts of every subroutine, indexed by its entry address
+     */
+    private final long[] subroutineCounts = new long[4096];
+
+    /**
+     * Calling context tree, one node per distinct call path
+     */
+    private int[] nodeParent = new int[256];
+    private int[] nodeAddress = new int[256];
+    private long[] nodeCounts = new long[256];
+    private int nodeCount;
+
+    /**
+     * Open addressing table from (parent node, callee address) to node
+     */
+    private int[] slotKeys = new int[512];
+    private int[] slotNodes = new int[512];
+
+    private final int[] callStack = new int[MAX_DEPTH];
+    private int depth;
+    /**
+     * Calls made past MAX_DEPTH, counted so the returns stay balanced
+     */
+    private int overflow;
+
+    private long instructions;
+
+    public Profiler() {
+        this(1);
+    }
+
+    /**
+     * @param sampleInterval Count every n-th instruction, 1 counts all of them
+     */
+    public Profiler(int sampleInterval) {
+        if (sampleInterval < 1)
+            throw new IllegalArgumentException("Sample interval must be at least 1");
+        this.sampleInterval = sampleInterval;
+        reset();
+    }
+
+    /**
+     * Clears every counter
+     */
+    public synchronized void reset() {
+        Arrays.fill(pcCounts, 0);
+        Arrays.fill(pcOpcodes, (char) 0);
+        Arrays.fill(familyCounts, 0);
+        Arrays.fill(subroutineCounts, 0);
+        Arrays.fill(slotKeys, -1);
+        nodeParent[ROOT] = -1;
+        nodeAddress[ROOT] = 0x200;
+        nodeCounts[ROOT] = 0;
+        nodeCount = 1;
+        callStack[0] = ROOT;
+        depth = 0;
+        overflow = 0;
+        instructions = 0;
+        countdown = sampleInterval;
+    }
+
+    /**
+     * Records one executed opcode, called once it ran
+     *
+     * @param pc     Address the opcode ran from
+     * @param opcode The opcode as it was before it ran
+     */
+    public void onExecute(int pc, int opcode) {
+        instructions++;
+        if (--countdown == 0) {
+            countdown = sampleInterval;
+            int node = callStack[depth];
+            pcCounts[pc]++;
+            pcOpcodes[pc] = (char) opcode;
+            familyCounts[Opcodes.family(opcode)]++;
+            subroutineCounts[nodeAddress[node]]++;
+            nodeCounts[node]++;
+        }
+
+        if ((opcode & 0xF000) == 0x2000) {
+            if (depth + 1 < MAX_DEPTH) {
+                callStack[depth + 1] = child(callStack[depth], opcode & 0x0FFF);
+                depth++;
+            } else {
+                overflow++;
+            }
+        } else if (opcode == 0x00EE) {
+            if (overflow > 0) overflow--;
+            else if (depth > 0) depth--;
+        }
+    }
+
+    private int child(int parent, int address) {
+        int key = parent * 4096 + address;
+        int mask = slotKeys.length - 1;
+        int slot = (key * 0x9E3779B1) >>> 7 & mask;
+        while (slotKeys[slot] != -1) {
+            if (slotKeys[slot] == key)
+                return slotNodes[slot];
+            slot = (slot + 1) & mask;
+        }
+        return addNode(parent, address, key, slot);
+    }
+
+    private synchronized int addNode(int parent, int address, int key, int slot) {
+        if (nodeCount == nodeParent.length) {
+            nodeParent = Arrays.copyOf(nodeParent, nodeCount * 2);
+            nodeAddress = Arrays.copyOf(nodeAddress, nodeCount * 2);
+            nodeCounts = Arrays.copyOf(nodeCounts, nodeCount * 2);
+        }
+        int node = nodeCount++;
+        nodeParent[node] = parent;
+        nodeAddress[node] = address;
+        slotKeys[slot] = key;
+        slotNodes[slot] = node;
+        if (nodeCount * 2 > slotKeys.length)
+            rehash();
+        return node;
+    }
+
+    private void rehash() {
+        int[] keys = new int[slotKeys.length * 2];
+        int[] nodes = new int[keys.length];
+        Arrays.fill(keys, -1);
+        int mask = keys.length - 1;
+        for (int i = 0; i < slotKeys.length; i++) {
+            if (slotKeys[i] == -1) continue;
+            int slot = (slotKeys[i] * 0x9E3779B1) >>> 7 & mask;
+            while (keys[slot] != -1)
+                slot = (slot + 1) & mask;
+            keys[slot] = slotKeys[i];
+            nodes[slot] = slotNodes[i];
+        }
+        slotKeys = keys;
+        slotNodes = nodes;
+    }
+
+    public long getInstructions() {
+        return instructions;
+    }
+
+    public long getPcCount(int pc) {
+        return pcCounts[pc];
+    }
+
+    public long getFamilyCount(int family) {
+        return familyCounts[family];
+    }
+
+    public long getSubroutineCount(int address) {
+        return subroutineCounts[address];
+    }
+
+    /**
+     * Writes the call paths in the collapsed stack format read by flamegraph.pl and speedscope
+     *
+     * @param out Where the lines are written to
+     */
+    public synchronized void writeCollapsed(Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int[] path = new int[MAX_DEPTH];
+        for (int node = 0; node < nodeCount; node++) {
+            if (nodeCounts[node] == 0) continue;
+            int length = 0;
+            for (int n = node; n != -1; n = nodeParent[n])
+                path[length++] = nodeAddress[n];
+            sb.setLength(0);
+            for (int i = length - 1; i >= 0; i--) {
+                sb.append(hex(path[i]));
+                if (i > 0) sb.append(';');
+            }
+            sb.append(' ').append(nodeCounts[node]).append('\n');
+            out.write(sb.toString());
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes every counter as CSV with the columns section, key, label and count
+     *
+     * @param out Where the rows are written to
+     */
+    public synchronized void writeCsv(Writer out) throws IOException {
+        out.write("section,key,label,count\n");
+        for (int pc = 0; pc < pcCounts.length; pc++) {
+            if (pcCounts[pc] == 0) continue;
+            out.write("pc," + hex(pc) + "," + hex4(pcOpcodes[pc]) + " " + Opcodes.name(pcOpcodes[pc]) + "," + pcCounts[pc] + "\n");
+        }
+        for (int family = 0; family < familyCounts.length; family++) {
+            if (familyCounts[family] == 0) continue;
+            out.write("family," + family + "," + Opcodes.NAMES[family] + "," + familyCounts[family] + "\n");
+        }
+        for (int address = 0; address < subroutineCounts.length; address++) {
+            if (subroutineCounts[address] == 0) continue;
+            out.write("subroutine," + hex(address) + ",," + subroutineCounts[address] + "\n");
+        }
+        out.flush();
+    }
+
+    private static String hex(int address) {
+        return "0x" + Integer.toHexString(address).toUpperCase();
+    }
+
+    private static String hex4(int opcode) {
+        String digits = Integer.toHexString(opcode).toUpperCase();
+        return "0000".substring(digits.length()) + digits;
+    }
+}
@@ -0,0 +1,95 @@
+package chip;
+
+import java.util.Locale;
+
+/**
+ * The behaviors that differ between CHIP-8 interpreters.<br/>
+ * A profile is applied when opcodes are decoded, so each quirk picks a handler
+ * once instead of being tested every time the opcode runs.
+ */
+public final class Quirks {
+
+    /**
+     * The original COSMAC VIP interpreter
+     */
+    public static final Quirks COSMAC = new Quirks("cosmac", true, true, false, true, true, true);
+    /**
+     * What this emulator has always done, and what most modern ROMs expect
+     */
+    public static final Quirks MODERN = new Quirks("modern", false, false, false, false, false, false);
+    public static final Quirks SCHIP = new Quirks("schip", false, false, true, true, false, false);
+    public static final Quirks XOCHIP = new Quirks("xochip", true, true, false, false, false, false);
+
+    public static final Quirks[] PRESETS = {MODERN, COSMAC, SCHIP, XOCHIP};
+
+    public final String name;
+    /**
+     * 8XY6/8XYE shift VY into VX instead of shifting VX in place
+     */
+    public final boolean shiftUsesVY;
+    /**
+     * FX55/FX65 leave I pointing past the last register
+     */
+    public final boolean loadStoreIncrementsI;
+    /**
+     * BNNN jumps to XNN plus VX instead of NNN plus V0
+     */
+    public final boolean jumpUsesVX;
+    /**
+     * DXYN clips sprites at the screen edges instead of wrapping them around
+     */
+    public final boolean clipSprites;
+    /**
+     * 8XY1/8XY2/8XY3 clear VF
+     */
+    public final boolean logicResetsVF;
+    /**
+     * DXYN waits for the vertical blank, which ends the frame
+     */
+    public final boolean displayWait;
+
+    /**
+     * Only the presets exist, chips share a decode table per preset
+     */
+    private Quirks(String name, boolean shiftUsesVY, boolean loadStoreIncrementsI, boolean jumpUsesVX,
+                   boolean clipSprites, boolean logicResetsVF, boolean displayWait) {
+        this.name = name;
+        this.shiftUsesVY = shiftUsesVY;
+        this.loadStoreIncrementsI = loadStoreIncrementsI;
+        this.jumpUsesVX = jumpUsesVX;
+        this.clipSprites = clipSprites;
+        this.logicResetsVF = logicResetsVF;
+        this.displayWait = displayWait;
+    }
+
+    /**
+     * Looks up a preset by name
+     *
+     * @param name Name of the preset, case insensitive
+     * @return The preset, or {@link #MODERN} if there is none by that name
+     */
+    public static Quirks named(String name) {
+        for (Quirks preset : PRESETS) {
+            if (preset.name.equals(name.toLowerCase(Locale.ROOT)))
+                return preset;
+        }
+        return MODERN;
+    }
+
+    /**
+     * @param platform The platform a ROM was detected as
+     * @return The preset such ROMs usually expect
+     */
+    public static Quirks forPlatform(RomLibrary.Platform platform) {
+        switch (platform) {
+            case SCHIP: return SCHIP;
+            case XOCHIP: return XOCHIP;
+            default: return MODERN;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,304 @@
+package chip;
+
+import java.util.Arrays;
+
+/**
+ * A deliberately plain CHIP-8 interpreter: fetch, decode and execute in one switch,
+ * with no caches and quirks tested on every opcode.<br/>
+ * It is slow on purpose, it is the reference {@link DiffTest} checks the faster engines against.
+ */
+public class ReferenceChip implements Engine {
+
+    private final int[] ram = new int[4096];
+    private final int[] v = new int[16];
+    private final int[] stack = new int[16];
+    private int depth;
+    private int pc;
+    private int I;
+    private int delayTimer;
+    private int soundTimer;
+    private final byte[] display = new byte[64 * 32];
+    private final byte[] keys = new byte[16];
+    private final byte[] keysAtWait = new byte[16];
+    private boolean waitingForKey;
+    private int random;
+
+    private Quirks quirks = Quirks.MODERN;
+    private int cyclesPerFrame = Chip.DEFAULT_CYCLES_PER_FRAME;
+    private int remainingCycles;
+
+    @Override
+    public void loadProgram(RomImage rom) {
+        Arrays.fill(ram, 0);
+        for (int i = 0; i < Memory.fontset.length; i++)
+            ram[0x50 + i] = Memory.fontset[i] & 0xFF;
+        for (int i = 0; i < rom.size(); i++)
+            ram[0x200 + i] = rom.byteAt(i);
+        Arrays.fill(v, 0);
+        depth = 0;
+        pc = 0x200;
+        I = 0;
+        delayTimer = 0;
+        soundTimer = 0;
+        Arrays.fill(display, (byte) 0);
+        Arrays.fill(keys, (byte) 0);
+        Arrays.fill(keysAtWait, (byte) 0);
+        waitingForKey = false;
+    }
+
+    @Override
+    public void setSeed(long seed) {
+        random = (int) (seed ^ (seed >>> 32));
+        if (random == 0)
+            random = 0x2545F491;
+    }
+
+    @Override
+    public void setQuirks(Quirks quirks) {
+        this.quirks = quirks;
+    }
+
+    @Override
+    public void setCyclesPerFrame(int cyclesPerFrame) {
+        this.cyclesPerFrame = cyclesPerFrame;
+    }
+
+    @Override
+    public void beginFrame() {
+        remainingCycles = cyclesPerFrame;
+    }
+
+    @Override
+    public boolean step() {
+        if (remainingCycles <= 0)
+            return false;
+        remainingCycles--;
+        execute();
+        return true;
+    }
+
+    @Override
+    public void endFrame(int[] keyBuffer) {
+        if (soundTimer > 0) soundTimer--;
+        if (delayTimer > 0) delayTimer--;
+        for (int i = 0; i < 16; i++)
+            keys[i] = (byte) keyBuffer[i];
+    }
+
+    @Override
+    public void capture(State state) {
+        state.pc = pc;
+        state.opcode = ram[pc] << 8 | ram[(pc + 1) & 0xFFF];
+        state.I = I;
+        System.arraycopy(v, 0, state.V, 0, 16);
+        System.arraycopy(stack, 0, state.stack, 0, depth);
+        state.depth = depth;
+        state.delayTimer = delayTimer;
+        state.soundTimer = soundTimer;
+        long hash = 0xcbf29ce484222325L;
+        for (byte pixel : display) {
+            hash ^= pixel;
+            hash *= 0x100000001b3L;
+        }
+        state.displayHash = hash;
+    }
+
+    private void execute() {
+        int opcode = ram[pc] << 8 | ram[(pc + 1) & 0xFFF];
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int n = opcode & 0xF;
+        int nn = opcode & 0xFF;
+        int nnn = opcode & 0xFFF;
+        int next = pc + 2;
+
+        switch (opcode >> 12) {
+            case 0x0:
+                if (opcode == 0x00E0) {
+                    Arrays.fill(display, (byte) 0);
+                } else if (opcode == 0x00EE) {
+                    if (depth == 0) throw new Chip.Fault(pc, opcode, "Return with an empty call stack");
+                    next = stack[--depth] + 2;
+                } else {
+                    throw new Chip.Fault(pc, opcode, "Unsupported opcode");
+                }
+                break;
+            case 0x1:
+                next = nnn;
+                break;
+            case 0x2:
+                if (depth == stack.length) throw new Chip.Fault(pc, opcode, "Call stack overflow");
+                stack[depth++] = pc;
+                next = nnn;
+                break;
+            case 0x3:
+                if (v[x] == nn) next += 2;
+                break;
+            case 0x4:
+                if (v[x] != nn) next += 2;
+                break;
+            case 0x5:
+                if (v[x] == v[y]) next += 2;
+                break;
+            case 0x6:
+                v[x] = nn;
+                break;
+            case 0x7:
+                v[x] = (v[x] + nn) & 0xFF;
+                break;
+            case 0x8:
+                arithmetic(opcode, x, y, n);
+                break;
+            case 0x9:
+                if (v[x] != v[y]) next += 2;
+                break;
+            case 0xA:
+                I = nnn;
+                break;
+            case 0xB:
+                next = quirks.jumpUsesVX ? nnn + v[x] : nnn + v[0];
+                break;
+            case 0xC:
+                random ^= random << 13;
+                random ^= random >>> 17;
+                random ^= random << 5;
+                v[x] = random & 0xFF & nn;
+                break;
+            case 0xD:
+                draw(v[x], v[y], n);
+                if (quirks.displayWait) remainingCycles = 0;
+                break;
+            case 0xE:
+                if (nn == 0x9E) {
+                    if (keys[v[x] & 0xF] == 1) next += 2;
+                } else if (nn == 0xA1) {
+                    if (keys[v[x] & 0xF] == 0) next += 2;
+                } else {
+                    throw new Chip.Fault(pc, opcode, "Unsupported opcode");
+                }
+                break;
+            case 0xF:
+                next = misc(opcode, x, nn, next);
+                break;
+        }
+        pc = next & 0xFFF;
+    }
+
+    private void arithmetic(int opcode, int x, int y, int n) {
+        int result;
+        int flag;
+        switch (n) {
+            case 0x0: v[x] = v[y]; return;
+            case 0x1: v[x] |= v[y]; if (quirks.logicResetsVF) v[0xF] = 0; return;
+            case 0x2: v[x] &= v[y]; if (quirks.logicResetsVF) v[0xF] = 0; return;
+            case 0x3: v[x] ^= v[y]; if (quirks.logicResetsVF) v[0xF] = 0; return;
+            case 0x4:
+                result = v[x] + v[y];
+                flag = result > 0xFF ? 1 : 0;
+                break;
+            case 0x5:
+                result = v[x] - v[y];
+                flag = result >= 0 ? 1 : 0;
+                break;
+            case 0x6: {
+                int value = quirks.shiftUsesVY ? v[y] : v[x];
+                result = value >> 1;
+                flag = value & 1;
+                break;
+            }
+            case 0x7:
+                result = v[y] - v[x];
+                flag = result >= 0 ? 1 : 0;
+                break;
+            case 0xE: {
+                int value = quirks.shiftUsesVY ? v[y] : v[x];
+                result = value << 1;
+                flag = (value >> 7) & 1;
+                break;
+            }
+            default:
+                throw new Chip.Fault(pc, opcode, "Unsupported opcode");
+        }
+        v[x] = result & 0xFF;
+        v[0xF] = flag;
+    }
+
+    private int misc(int opcode, int x, int nn, int next) {
+        switch (nn) {
+            case 0x07:
+                v[x] = delayTimer;
+                break;
+            case 0x0A:
+                if (!waitingForKey) {
+                    System.arraycopy(keys, 0, keysAtWait, 0, 16);
+                    waitingForKey = true;
+                    return pc;
+                }
+                for (int i = 0; i < 16; i++) {
+                    if (keys[i] == 1 && keysAtWait[i] == 0) {
+                        v[x] = i;
+                        waitingForKey = false;
+                        Arrays.fill(keys, (byte) 0);
+                        return next;
+                    }
+                }
+                System.arraycopy(keys, 0, keysAtWait, 0, 16);
+                return pc;
+            case 0x15:
+                delayTimer = v[x];
+                break;
+            case 0x18:
+                soundTimer = v[x];
+                break;
+            case 0x1E:
+                I = (I + v[x]) & 0xFFFF;
+                break;
+            case 0x29:
+                I = 0x50 + v[x] * 5;
+                break;
+            case 0x33:
+                ram[I & 0xFFF] = v[x] / 100;
+                ram[(I + 1) & 0xFFF] = v[x] / 10 % 10;
+                ram[(I + 2) & 0xFFF] = v[x] % 10;
+                break;
+            case 0x55:
+                for (int i = 0; i <= x; i++)
+                    ram[(I + i) & 0xFFF] = v[i];
+                if (quirks.loadStoreIncrementsI) I = (I + x + 1) & 0xFFFF;
+                break;
+            case 0x65:
+                for (int i = 0; i <= x; i++)
+                    v[i] = ram[(I + i) & 0xFFF];
+                if (quirks.loadStoreIncrementsI) I = (I + x + 1) & 0xFFFF;
+                break;
+            default:
+                throw new Chip.Fault(pc, opcode, "Unsupported opcode");
+        }
+        return next;
+    }
+
+    private void draw(int vx, int vy, int height) {
+        v[0xF] = 0;
+        int x0 = vx & 63;
+        int y0 = vy & 31;
+        for (int row = 0; row < height; row++) {
+            int line = ram[(I + row) & 0xFFF];
+            int y = y0 + row;
+            if (y > 31) {
+                if (quirks.clipSprites) break;
+                y &= 31;
+            }
+            for (int column = 0; column < 8; column++) {
+                if ((line & (0x80 >> column)) == 0) continue;
+                int x = x0 + column;
+                if (x > 63) {
+                    if (quirks.clipSprites) break;
+                    x &= 63;
+                }
+                int index = y * 64 + x;
+                if (display[index] == 1) v[0xF] = 1;
+                display[index] ^= 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package chip;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays input logs through headless chips as fast as possible.<br/>
+ * Usage: Replay [--rom path] log...
+ */
+public class Replay {
+
+    /**
+     * Outcome of one replay
+     */
+    public static class Result {
+        public final Path log;
+        public final long frames;
+        public final long displayHash;
+        public final long nanos;
+
+        Result(Path log, long frames, long displayHash, long nanos) {
+            this.log = log;
+            this.frames = frames;
+            this.displayHash = displayHash;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return log + ": " + frames + " frames, display " + Long.toHexString(displayHash)
+                    + ", " + (nanos / 1_000_000) + " ms";
+        }
+    }
+
+    /**
+     * Replays a log on a new headless chip
+     *
+     * @param log     The input log
+     * @param romPath The ROM to run, or null for the one named in the log
+     * @return The chip after the last recorded frame
+     * @throws IOException If the log or ROM can't be read, or the ROM is not the recorded one
+     */
+    public static Chip replay(Path log, String romPath) throws IOException {
+        try (InputLog.Player player = new InputLog.Player(log)) {
+            String romFile = romPath != null ? romPath : player.getRomPath();
+            RomImage rom = RomImage.load(romFile);
+            if (!Arrays.equals(player.getRomHash(), rom.getSha1()))
+                throw new IOException(romFile + " is not the ROM " + log + " was recorded with");
+
+            Chip chip = new Chip();
+            chip.setMuted(true);
+            chip.loadProgram(rom);
+            chip.setSeed(player.getSeed());
+            chip.setCyclesPerFrame(player.getCyclesPerFrame());
+            chip.setQuirks(player.getQuirks());
+            chip.setTiming(player.getTiming());
+            int[] keys = new int[16];
+            while (player.nextFrame(keys))
+                chip.runFrame(keys);
+            return chip;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String rom = null;
+        List<Path> logs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--rom")) rom = args[++i];
+            else logs.add(Path.of(args[i]));
+        }
+        if (logs.isEmpty()) {
+            System.err.println("Usage: Replay [--rom path] log...");
+            System.exit(1);
+        }
+
+        final String romPath = rom;
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<Result>> results = new ArrayList<>();
+        for (Path log : logs) {
+            results.add(pool.submit(() -> {
+                long start = System.nanoTime();
+                Chip chip = replay(log, romPath);
+                return new Result(log, chip.getFrameCount(), chip.displayHash(), System.nanoTime() - start);
+            }));
+        }
+        for (Future<Result> result : results)
+            System.out.println(result.get());
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,509 @@
+package chip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What a ROM's code looks like without running it.<br/>
+ * The reachable code is disassembled from 0x200 following jumps, calls and both sides of skips,
+ * everything else in the ROM is data (sprites, tables, or code only reached through BNNN).
+ * The instructions are grouped into the basic blocks of a control-flow graph, with the subroutines,
+ * the loops (branches back to an earlier address) and the FX33/FX55 stores whose I is known
+ * and points into code, i.e. where the program modifies itself.<br/>
+ * Analyses are kept on disk by ROM hash in ~/.chip8/analysis, so a ROM is only analysed once.<br/>
+ * Usage: RomAnalysis [--listing] rom...
+ */
+public class RomAnalysis {
+
+    private static final int MAGIC = 0x43384346; // "C8CF"
+    private static final int VERSION = 1;
+
+    private static final Map<String, RomAnalysis> analyses = new ConcurrentHashMap<>();
+
+    /**
+     * A run of instructions that is only entered at its first one and only left after its last one
+     */
+    public static class Block {
+        public final int start;
+        /**
+         * Address after the last instruction
+         */
+        public final int end;
+        /**
+         * Where execution can continue, a call lists its target and the address it returns to
+         */
+        public final int[] successors;
+
+        Block(int start, int end, int[] successors) {
+            this.start = start;
+            this.end = end;
+            this.successors = successors;
+        }
+    }
+
+    private final byte[] romSha1;
+    private final int romEnd;
+    /**
+     * Every byte that belongs to a reachable instruction
+     */
+    private final long[] code = new long[4096 / 64];
+    /**
+     * Every address a reachable instruction starts at
+     */
+    private final long[] starts = new long[4096 / 64];
+    /**
+     * ANNN targets, usually sprites
+     */
+    private final long[] dataReferences = new long[4096 / 64];
+    private final List<Block> blocks = new ArrayList<>();
+    private final TreeSet<Integer> subroutines = new TreeSet<>();
+    /**
+     * Pairs of the branch that goes back and the address it goes back to
+     */
+    private final List<int[]> loops = new ArrayList<>();
+    /**
+     * The store, then the first and last address it writes
+     */
+    private final List<int[]> selfModifying = new ArrayList<>();
+    /**
+     * BNNN, and opcodes the chip can't run, where the analysis loses track of the code
+     */
+    private final TreeSet<Integer> dynamicExits = new TreeSet<>();
+
+    private RomAnalysis(byte[] romSha1, int romEnd) {
+        this.romSha1 = romSha1;
+        this.romEnd = romEnd;
+    }
+
+    /**
+     * Returns the analysis of a ROM, from memory or the disk cache if it was analysed before
+     *
+     * @param rom The ROM
+     * @return Its analysis
+     */
+    public static RomAnalysis cached(RomImage rom) {
+        return analyses.computeIfAbsent(rom.getHash(), hash -> {
+            Path file = cacheFolder().resolve(hash + ".cfg");
+            try {
+                RomAnalysis stored = read(file);
+                if (stored != null && Arrays.equals(stored.romSha1, rom.getSha1()))
+                    return stored;
+            } catch (IOException e) {
+                //a damaged cache entry is replaced below
+            }
+            RomAnalysis analysis = analyze(rom);
+            try {
+                analysis.write(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return analysis;
+        });
+    }
+
+    /**
+     * @return Where analyses are cached, ~/.chip8/analysis
+     */
+    public static Path cacheFolder() {
+        return Path.of(System.getProperty("user.home"), ".chip8", "analysis");
+    }
+
+    /**
+     * Analyses a ROM, without looking at the cache
+     *
+     * @param rom The ROM
+     * @return The analysis
+     */
+    public static RomAnalysis analyze(RomImage rom) {
+        int[] ram = new int[4096];
+        for (int i = 0; i < rom.size(); i++)
+            ram[0x200 + i] = rom.byteAt(i);
+        RomAnalysis analysis = new RomAnalysis(rom.getSha1(), 0x200 + rom.size());
+        analysis.trace(ram);
+        analysis.buildBlocks(ram);
+        analysis.findSelfModifying(ram);
+        return analysis;
+    }
+
+    private static int opcode(int[] ram, int address) {
+        return ram[address] << 8 | ram[(address + 1) & 0xFFF];
+    }
+
+    private static boolean isSkip(int family) {
+        switch (Opcodes.NAMES[family]) {
+            case "3XNN": case "4XNN": case "5XY0": case "9XY0": case "EX9E": case "EXA1":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Follows every path from 0x200 and marks the instructions it meets
+     */
+    private void trace(int[] ram) {
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(0x200);
+        while (!work.isEmpty()) {
+            int address = work.pop();
+            //one path runs straight on until it branches away or meets code already seen
+            while (address >= 0x200 && address + 1 < romEnd && !isSet(starts, address)) {
+                set(starts, address);
+                set(code, address);
+                set(code, address + 1);
+                int opcode = opcode(ram, address);
+                int family = Opcodes.family(opcode);
+                String name = Opcodes.NAMES[family];
+                int nnn = opcode & 0xFFF;
+                if (name.equals("1NNN")) {
+                    work.push(nnn);
+                    break;
+                } else if (name.equals("2NNN")) {
+                    subroutines.add(nnn);
+                    work.push(nnn);
+                } else if (name.equals("00EE")) {
+                    break;
+                } else if (name.equals("BNNN") || name.equals("0NNN") || family == Opcodes.UNKNOWN) {
+                    dynamicExits.add(address);
+                    break;
+                } else if (isSkip(family)) {
+                    work.push(address + 4);
+                } else if (name.equals("ANNN")) {
+                    set(dataReferences, nnn);
+                }
+                address += 2;
+            }
+        }
+    }
+
+    /**
+     * Cuts the traced instructions into basic blocks at every branch and every branch target
+     */
+    private void buildBlocks(int[] ram) {
+        long[] leaders = new long[4096 / 64];
+        set(leaders, 0x200);
+        for (int address = 0x200; address < romEnd; address++) {
+            if (!isSet(starts, address)) continue;
+            int[] targets = successors(ram, address);
+            int family = Opcodes.family(opcode(ram, address));
+            if (targets.length == 1 && targets[0] == address + 2 && !Opcodes.NAMES[family].equals("2NNN"))
+                continue;
+            for (int target : targets)
+                set(leaders, target);
+            set(leaders, address + 2);
+        }
+
+        for (int address = 0x200; address < romEnd; address++) {
+            if (!isSet(starts, address) || (!isSet(leaders, address) && isSet(starts, address - 2)))
+                continue;
+            int start = address;
+            int last = address;
+            while (isSet(starts, last + 2) && !isSet(leaders, last + 2)) {
+                int[] targets = successors(ram, last);
+                if (targets.length != 1 || targets[0] != last + 2) break;
+                last += 2;
+            }
+            int[] targets = successors(ram, last);
+            blocks.add(new Block(start, last + 2, targets));
+            for (int target : targets) {
+                if (target <= last && target >= 0x200 && !(Opcodes.NAMES[Opcodes.family(opcode(ram, last))].equals("2NNN")))
+                    loops.add(new int[]{last, target});
+            }
+            address = last + 1;
+        }
+    }
+
+    private static int[] successors(int[] ram, int address) {
+        int opcode = opcode(ram, address);
+        int family = Opcodes.family(opcode);
+        switch (Opcodes.NAMES[family]) {
+            case "1NNN": return new int[]{opcode & 0xFFF};
+            case "2NNN": return new int[]{opcode & 0xFFF, address + 2};
+            case "00EE":
+            case "BNNN":
+            case "0NNN":
+                return new int[0];
+            default:
+                if (family == Opcodes.UNKNOWN) return new int[0];
+                if (isSkip(family)) return new int[]{address + 2, address + 4};
+                return new int[]{address + 2};
+        }
+    }
+
+    /**
+     * Finds the stores whose I was set by an ANNN earlier in the same block and that write into code
+     */
+    private void findSelfModifying(int[] ram) {
+        for (Block block : blocks) {
+            for (int address = block.start; address < block.end; address += 2) {
+                int opcode = opcode(ram, address);
+                String name = Opcodes.name(opcode);
+                int length;
+                if (name.equals("FX33")) length = 3;
+                else if (name.equals("FX55")) length = ((opcode >> 8) & 0xF) + 1;
+                else continue;
+                int i = registerI(ram, block.start, address);
+                if (i < 0) continue;
+                for (int target = i; target < i + length; target++) {
+                    if (isSet(code, target & 0xFFF)) {
+                        selfModifying.add(new int[]{address, i & 0xFFF, (i + length - 1) & 0xFFF});
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return I at an address, -1 unless an ANNN before it in the block set it and nothing changed it since
+     */
+    private static int registerI(int[] ram, int blockStart, int address) {
+        for (int before = address - 2; before >= blockStart; before -= 2) {
+            int opcode = opcode(ram, before);
+            switch (Opcodes.name(opcode)) {
+                case "ANNN": return opcode & 0xFFF;
+                //these move I, or do under some quirks
+                case "FX1E": case "FX29": case "FX55": case "FX65": return -1;
+                default:
+            }
+        }
+        return -1;
+    }
+
+    private static void set(long[] bits, int address) {
+        address &= 0xFFF;
+        bits[address >>> 6] |= 1L << address;
+    }
+
+    private static boolean isSet(long[] bits, int address) {
+        address &= 0xFFF;
+        return (bits[address >>> 6] & 1L << address) != 0;
+    }
+
+    /**
+     * @param address An address
+     * @return True if a reachable instruction starts there
+     */
+    public boolean isInstruction(int address) {
+        return isSet(starts, address);
+    }
+
+    /**
+     * @param address An address
+     * @return True if the byte belongs to a reachable instruction
+     */
+    public boolean isCode(int address) {
+        return isSet(code, address);
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    public TreeSet<Integer> getSubroutines() {
+        return subroutines;
+    }
+
+    /**
+     * @return Pairs of a branch and the earlier address it goes back to
+     */
+    public List<int[]> getLoops() {
+        return loops;
+    }
+
+    /**
+     * @return The store, then the first and last address it writes into code
+     */
+    public List<int[]> getSelfModifying() {
+        return selfModifying;
+    }
+
+    /**
+     * Counts the reachable instructions
+     */
+    public int instructionCount() {
+        int count = 0;
+        for (long word : starts)
+            count += Long.bitCount(word);
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        int codeBytes = 0;
+        for (long word : code)
+            codeBytes += Long.bitCount(word);
+        return instructionCount() + " instructions in " + blocks.size() + " blocks, "
+                + subroutines.size() + " subroutines, " + loops.size() + " loops, "
+                + (romEnd - 0x200 - codeBytes) + " data bytes, "
+                + selfModifying.size() + " self-modifying stores, " + dynamicExits.size() + " untraceable branches";
+    }
+
+    /**
+     * Disassembles the ROM: code as instructions with labels for blocks and subroutines,
+     * data as bytes with their pixels
+     *
+     * @param rom The ROM the analysis was made from
+     * @return One line per instruction or data byte
+     */
+    public String listing(RomImage rom) {
+        int[] ram = new int[4096];
+        for (int i = 0; i < rom.size(); i++)
+            ram[0x200 + i] = rom.byteAt(i);
+        TreeSet<Integer> loopHeads = new TreeSet<>();
+        for (int[] loop : loops)
+            loopHeads.add(loop[1]);
+        TreeSet<Integer> modified = new TreeSet<>();
+        for (int[] store : selfModifying)
+            for (int address = store[1]; address <= store[2]; address++)
+                modified.add(address);
+        TreeSet<Integer> blockStarts = new TreeSet<>();
+        for (Block block : blocks)
+            blockStarts.add(block.start);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("; ").append(this).append('\n');
+        for (int address = 0x200; address < romEnd; address++) {
+            if (isSet(starts, address) && address + 1 < romEnd) {
+                if (subroutines.contains(address))
+                    sb.append(String.format("%nsub_%03X:%n", address));
+                else if (blockStarts.contains(address))
+                    sb.append(String.format("%s_%03X:%n", loopHeads.contains(address) ? "loop" : "label", address));
+                int opcode = opcode(ram, address);
+                String note = modified.contains(address) || modified.contains(address + 1) ? "; modified at run time"
+                        : dynamicExits.contains(address) ? "; continues where the analysis can't follow" : "";
+                sb.append(String.format("  %03X  %04X  %-16s%s", address, opcode, Opcodes.disassemble(opcode), note)
+                        .stripTrailing()).append('\n');
+                address++;
+            } else if (!isSet(code, address)) {
+                int value = ram[address];
+                StringBuilder pixels = new StringBuilder();
+                for (int bit = 7; bit >= 0; bit--)
+                    pixels.append((value >> bit & 1) != 0 ? '#' : '.');
+                sb.append(String.format("  %03X  %02X    DB 0x%02X        ; %s%s%n", address, value, value, pixels,
+                        isSet(dataReferences, address) ? " <- I" : ""));
+            }
+        }
+        return sb.toString();
+    }
+
+    private void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.write(romSha1);
+            out.writeShort(romEnd);
+            for (long[] bits : new long[][]{code, starts, dataReferences})
+                for (long word : bits)
+                    out.writeLong(word);
+            out.writeShort(blocks.size());
+            for (Block block : blocks) {
+                out.writeShort(block.start);
+                out.writeShort(block.end);
+                out.writeByte(block.successors.length);
+                for (int successor : block.successors)
+                    out.writeShort(successor);
+            }
+            writeAddresses(out, subroutines);
+            writeAddresses(out, dynamicExits);
+            out.writeShort(loops.size());
+            for (int[] loop : loops) {
+                out.writeShort(loop[0]);
+                out.writeShort(loop[1]);
+            }
+            out.writeShort(selfModifying.size());
+            for (int[] store : selfModifying) {
+                out.writeShort(store[0]);
+                out.writeShort(store[1]);
+                out.writeShort(store[2]);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeAddresses(DataOutputStream out, TreeSet<Integer> addresses) throws IOException {
+        out.writeShort(addresses.size());
+        for (int address : addresses)
+            out.writeShort(address);
+    }
+
+    /**
+     * @return The cached analysis, null if there is none or it was made by another version
+     */
+    private static RomAnalysis read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION)
+                return null;
+            byte[] sha1 = new byte[20];
+            in.readFully(sha1);
+            RomAnalysis analysis = new RomAnalysis(sha1, in.readUnsignedShort());
+            for (long[] bits : new long[][]{analysis.code, analysis.starts, analysis.dataReferences})
+                for (int i = 0; i < bits.length; i++)
+                    bits[i] = in.readLong();
+            int blockCount = in.readUnsignedShort();
+            for (int i = 0; i < blockCount; i++) {
+                int start = in.readUnsignedShort();
+                int end = in.readUnsignedShort();
+                int[] successors = new int[in.readUnsignedByte()];
+                for (int j = 0; j < successors.length; j++)
+                    successors[j] = in.readUnsignedShort();
+                analysis.blocks.add(new Block(start, end, successors));
+            }
+            readAddresses(in, analysis.subroutines);
+            readAddresses(in, analysis.dynamicExits);
+            int loopCount = in.readUnsignedShort();
+            for (int i = 0; i < loopCount; i++)
+                analysis.loops.add(new int[]{in.readUnsignedShort(), in.readUnsignedShort()});
+            int storeCount = in.readUnsignedShort();
+            for (int i = 0; i < storeCount; i++)
+                analysis.selfModifying.add(new int[]{in.readUnsignedShort(), in.readUnsignedShort(), in.readUnsignedShort()});
+            return analysis;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void readAddresses(DataInputStream in, TreeSet<Integer> into) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++)
+            into.add(in.readUnsignedShort());
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean listing = false;
+        List<String> roms = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--listing")) listing = true;
+            else roms.add(arg);
+        }
+        if (roms.isEmpty()) {
+            System.err.println("Usage: RomAnalysis [--listing] rom...");
+            System.exit(1);
+        }
+        for (String file : roms) {
+            RomImage rom = RomImage.load(file);
+            RomAnalysis analysis = cached(rom);
+            if (listing)
+                System.out.println(analysis.listing(rom));
+            else
+                System.out.println(Path.of(file).getFileName() + ": " + analysis);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package chip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A ROM read once and shared, read-only, by every chip that runs it.<br/>
+ * Images are cached by path (checked against size and modification time)
+ * and interned by content hash, so the same ROM is only held once.
+ */
+public final class RomImage {
+
+    /**
+     * Largest program that fits between 0x200 and the end of the RAM
+     */
+    public static final int MAX_SIZE = 4096 - 0x200;
+
+    private static final class Cached {
+        final long size;
+        final long modified;
+        final RomImage image;
+
+        Cached(long size, long modified, RomImage image) {
+            this.size = size;
+            this.modified = modified;
+            this.image = image;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Cached> byPath = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, RomImage> byHash = new ConcurrentHashMap<>();
+
+    /**
+     * The ROM widened to the RAM's char cells, ready for a bulk copy
+     */
+    private final char[] data;
+    private final byte[] sha1;
+    private final String hash;
+
+    private RomImage(byte[] rom) {
+        data = new char[rom.length];
+        for (int i = 0; i < rom.length; i++)
+            data[i] = (char) (rom[i] & 0xFF);
+        sha1 = InputLog.sha1(rom);
+        hash = RomLibrary.hex(sha1);
+    }
+
+    /**
+     * Wraps ROM bytes that are already in memory
+     *
+     * @param rom The ROM bytes
+     * @return The interned image
+     * @throws IOException If the ROM does not fit in the RAM
+     */
+    public static RomImage of(byte[] rom) throws IOException {
+        if (rom.length > MAX_SIZE)
+            throw new IOException("The ROM is " + rom.length + " bytes, at most " + MAX_SIZE + " fit in memory");
+        RomImage image = new RomImage(rom);
+        RomImage interned = byHash.putIfAbsent(image.hash, image);
+        return interned != null ? interned : image;
+    }
+
+    /**
+     * Wraps ROM bytes without interning them, for programs that only live for one run
+     *
+     * @param rom The ROM bytes
+     * @return A private image
+     * @throws IOException If the ROM does not fit in the RAM
+     */
+    static RomImage unshared(byte[] rom) throws IOException {
+        if (rom.length > MAX_SIZE)
+            throw new IOException("The ROM is " + rom.length + " bytes, at most " + MAX_SIZE + " fit in memory");
+        return new RomImage(rom);
+    }
+
+    /**
+     * Returns the image of a ROM file, reading it only if it is not cached or changed on disk
+     *
+     * @param file Path of the ROM
+     * @return The interned image
+     */
+    public static RomImage load(String file) throws IOException {
+        Path path = Path.of(file).toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        Cached cached = byPath.get(path.toString());
+        if (cached != null && cached.size == size && cached.modified == modified)
+            return cached.image;
+
+        if (size > MAX_SIZE)
+            throw new IOException(file + " is " + size + " bytes, at most " + MAX_SIZE + " fit in memory");
+        byte[] rom = new byte[(int) size];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(rom);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    throw new IOException(file + " was truncated while reading it");
+            }
+        }
+        RomImage image = of(rom);
+        byPath.put(path.toString(), new Cached(size, modified, image));
+        return image;
+    }
+
+    /**
+     * Copies the ROM into a RAM at 0x200 and clears the rest of the program area
+     *
+     * @param ram The 4K RAM of a chip
+     */
+    public void copyInto(char[] ram) {
+        System.arraycopy(data, 0, ram, 0x200, data.length);
+        Arrays.fill(ram, 0x200 + data.length, ram.length, (char) 0);
+    }
+
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * @param offset Offset from the start of the ROM
+     * @return The byte at that offset
+     */
+    public int byteAt(int offset) {
+        return data[offset];
+    }
+
+    public byte[] getSha1() {
+        return sha1.clone();
+    }
+
+    /**
+     * @return The SHA-1 as lowercase hex
+     */
+    public String getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,385 @@
+package chip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Index of the ROMs found under a set of directories.<br/>
+ * ROMs are identified by SHA-1, and their metadata is kept in a small binary index file.
+ * A rescan only hashes files whose size or modification time changed.
+ */
+public class RomLibrary {
+
+    private static final int MAGIC = 0x43384958; // "C8IX"
+    private static final int VERSION = 1;
+    private static final String[] EXTENSIONS = {".ch8", ".c8", ".sc8", ".xo8"};
+
+    public enum Platform {
+        CHIP8("CHIP-8"), SCHIP("SCHIP"), XOCHIP("XO-CHIP");
+
+        public final String label;
+
+        Platform(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * One indexed ROM. The preferences (quirks, cycles, save state) follow the ROM's contents,
+     * so they survive the file being moved or renamed.
+     */
+    public static class Entry {
+        public final String path;
+        public final long size;
+        public final long modified;
+        public final byte[] sha1;
+        public final Platform platform;
+
+        private String quirks;
+        private int cyclesPerFrame;
+        private String lastSaveState;
+
+        Entry(String path, long size, long modified, byte[] sha1, Platform platform) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.sha1 = sha1;
+            this.platform = platform;
+            quirks = Quirks.forPlatform(platform).name;
+            cyclesPerFrame = Chip.DEFAULT_CYCLES_PER_FRAME;
+            lastSaveState = "";
+        }
+
+        private void copyPreferences(Entry other) {
+            quirks = other.quirks;
+            cyclesPerFrame = other.cyclesPerFrame;
+            lastSaveState = other.lastSaveState;
+        }
+
+        public String getName() {
+            return Path.of(path).getFileName().toString();
+        }
+
+        public String getHash() {
+            return hex(sha1);
+        }
+
+        public String getQuirks() {
+            return quirks;
+        }
+
+        public void setQuirks(String quirks) {
+            this.quirks = quirks;
+        }
+
+        public int getCyclesPerFrame() {
+            return cyclesPerFrame;
+        }
+
+        public void setCyclesPerFrame(int cyclesPerFrame) {
+            this.cyclesPerFrame = cyclesPerFrame;
+        }
+
+        /**
+         * @return Path of the last state saved while playing this ROM, or null
+         */
+        public String getLastSaveState() {
+            return lastSaveState.isEmpty() ? null : lastSaveState;
+        }
+
+        public void setLastSaveState(String lastSaveState) {
+            this.lastSaveState = lastSaveState == null ? "" : lastSaveState;
+        }
+
+        @Override
+        public String toString() {
+            return getName() + " (" + platform.label + ", " + size + " bytes)";
+        }
+    }
+
+    /**
+     * What a scan did
+     */
+    public static class ScanResult {
+        public final int hashed;
+        public final int unchanged;
+        public final int removed;
+
+        ScanResult(int hashed, int unchanged, int removed) {
+            this.hashed = hashed;
+            this.unchanged = unchanged;
+            this.removed = removed;
+        }
+
+        @Override
+        public String toString() {
+            return hashed + " hashed, " + unchanged + " unchanged, " + removed + " removed";
+        }
+    }
+
+    private final Path indexFile;
+    private final List<Path> roots = new ArrayList<>();
+    private Map<String, Entry> entries = new HashMap<>();
+
+    private RomLibrary(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * @return Where the index of the user's library is kept
+     */
+    public static Path defaultIndex() {
+        return Path.of(System.getProperty("user.home"), ".chip8", "library.idx");
+    }
+
+    /**
+     * Loads a library from its index, an empty library is returned if the index doesn't exist
+     *
+     * @param indexFile The index file
+     * @return The library
+     */
+    public static RomLibrary load(Path indexFile) throws IOException {
+        RomLibrary library = new RomLibrary(indexFile);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION)
+                throw new IOException(indexFile + " is not a ROM library index");
+            int rootCount = in.readInt();
+            for (int i = 0; i < rootCount; i++)
+                library.roots.add(Path.of(in.readUTF()));
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] sha1 = new byte[20];
+                in.readFully(sha1);
+                Platform platform = Platform.values()[in.readUnsignedByte()];
+                Entry entry = new Entry(path, size, modified, sha1, platform);
+                entry.quirks = in.readUTF();
+                entry.cyclesPerFrame = in.readUnsignedShort();
+                entry.lastSaveState = in.readUTF();
+                library.entries.put(path, entry);
+            }
+        } catch (NoSuchFileException e) {
+            //First run, nothing indexed yet
+        }
+        return library;
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it over the old one
+     */
+    public synchronized void save() throws IOException {
+        if (indexFile.getParent() != null)
+            Files.createDirectories(indexFile.getParent());
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(roots.size());
+            for (Path root : roots)
+                out.writeUTF(root.toString());
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.write(entry.sha1);
+                out.writeByte(entry.platform.ordinal());
+                out.writeUTF(entry.quirks);
+                out.writeShort(entry.cyclesPerFrame);
+                out.writeUTF(entry.lastSaveState);
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized List<Path> getRoots() {
+        return new ArrayList<>(roots);
+    }
+
+    public synchronized void addRoot(Path root) {
+        Path normalized = root.toAbsolutePath().normalize();
+        if (!roots.contains(normalized))
+            roots.add(normalized);
+    }
+
+    public synchronized void removeRoot(Path root) {
+        roots.remove(root.toAbsolutePath().normalize());
+    }
+
+    /**
+     * @return Every indexed ROM, sorted by name
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>(entries.values());
+        result.sort(Comparator.comparing(Entry::getName, String.CASE_INSENSITIVE_ORDER));
+        return result;
+    }
+
+    /**
+     * @param path Path of a ROM
+     * @return Its entry, or null if it is not indexed
+     */
+    public synchronized Entry find(String path) {
+        return entries.get(Path.of(path).toAbsolutePath().normalize().toString());
+    }
+
+    /**
+     * Walks every root and indexes the ROMs found, hashing new and modified files in parallel
+     *
+     * @return What the scan did
+     */
+    public ScanResult scan() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path root : getRoots()) {
+            if (!Files.isDirectory(root)) continue;
+            try (Stream<Path> walk = Files.walk(root)) {
+                walk.filter(Files::isRegularFile).filter(RomLibrary::isRom).forEach(files::add);
+            }
+        }
+
+        Map<String, Entry> previous;
+        synchronized (this) {
+            previous = new HashMap<>(entries);
+        }
+        Map<String, Entry> byHash = new HashMap<>();
+        for (Entry entry : previous.values())
+            byHash.put(entry.getHash(), entry);
+
+        List<Entry> scanned;
+        try {
+            scanned = files.parallelStream().map(file -> {
+                try {
+                    String path = file.toAbsolutePath().normalize().toString();
+                    long size = Files.size(file);
+                    long modified = Files.getLastModifiedTime(file).toMillis();
+                    Entry old = previous.get(path);
+                    if (old != null && old.size == size && old.modified == modified)
+                        return old;
+                    byte[] rom = Files.readAllBytes(file);
+                    return new Entry(path, size, modified, InputLog.sha1(rom), detectPlatform(rom));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        int hashed = 0;
+        Map<String, Entry> updated = new HashMap<>();
+        for (Entry entry : scanned) {
+            if (previous.get(entry.path) != entry) {
+                hashed++;
+                Entry known = byHash.get(entry.getHash());
+                if (known != null)
+                    entry.copyPreferences(known);
+            }
+            updated.put(entry.path, entry);
+        }
+        int removed = 0;
+        for (String path : previous.keySet()) {
+            if (!updated.containsKey(path)) removed++;
+        }
+        synchronized (this) {
+            entries = updated;
+        }
+        return new ScanResult(hashed, scanned.size() - hashed, removed);
+    }
+
+    private static boolean isRom(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Guesses the platform a ROM was written for from the opcodes reachable from 0x200,
+     * so sprite data that happens to look like an extended opcode is not counted
+     *
+     * @param rom The ROM bytes
+     * @return The most capable platform the ROM seems to need
+     */
+    public static Platform detectPlatform(byte[] rom) {
+        //Anything past 0xFFF only fits in XO-CHIP's 64K of memory
+        if (rom.length > 0x1000 - 0x200)
+            return Platform.XOCHIP;
+        boolean schip = false;
+        boolean[] visited = new boolean[rom.length];
+        int[] work = new int[rom.length + 1];
+        int pending = 0;
+        work[pending++] = 0;
+        while (pending > 0) {
+            int offset = work[--pending];
+            while (offset >= 0 && offset + 1 < rom.length && !visited[offset]) {
+                visited[offset] = true;
+                int opcode = (rom[offset] & 0xFF) << 8 | (rom[offset + 1] & 0xFF);
+                int nnn = (opcode & 0x0FFF) - 0x200;
+                if (opcode == 0xF000 || opcode == 0xF002 || (opcode & 0xF0FF) == 0xF001 || (opcode & 0xF0FF) == 0xF03A
+                        || (opcode & 0xF00E) == 0x5002 || (opcode & 0xFFF0) == 0x00D0)
+                    return Platform.XOCHIP;
+                boolean schipOpcode = (opcode & 0xFFF0) == 0x00C0 || (opcode >= 0x00FB && opcode <= 0x00FF)
+                        || (opcode & 0xF0FF) == 0xF030 || (opcode & 0xF0FF) == 0xF075 || (opcode & 0xF0FF) == 0xF085
+                        || (opcode & 0xF00F) == 0xD000;
+                if (schipOpcode)
+                    schip = true;
+
+                int family = Opcodes.family(opcode);
+                boolean unsupported = family == Opcodes.UNKNOWN || family == Opcodes.family(0x0000);
+                if (opcode == 0x00EE || opcode == 0x00FD || (opcode & 0xF000) == 0xB000 || unsupported && !schipOpcode) {
+                    break;
+                } else if ((opcode & 0xF000) == 0x1000) {
+                    offset = nnn;
+                } else if ((opcode & 0xF000) == 0x2000) {
+                    if (nnn >= 0 && pending < work.length) work[pending++] = nnn;
+                    offset += 2;
+                } else if (isSkip(opcode)) {
+                    if (pending < work.length) work[pending++] = offset + 4;
+                    offset += 2;
+                } else {
+                    offset += 2;
+                }
+            }
+        }
+        return schip ? Platform.SCHIP : Platform.CHIP8;
+    }
+
+    private static boolean isSkip(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x3000:
+            case 0x4000:
+            case 0x5000:
+            case 0x9000:
+            case 0xE000:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
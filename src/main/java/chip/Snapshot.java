@@ -0,0 +1,69 @@
+package chip;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A preallocated copy of the machine state, filled by {@link Chip#copyState(Snapshot)}.<br/>
+ * The fields carry the names of the matching {@link Chip} fields, so a written snapshot
+ * is a save state that {@link Chip#loadState(String)} reads.
+ */
+public class Snapshot {
+
+    final Memory memory = new Memory();
+    char I;
+    char pc;
+    final char[] stack = new char[16];
+    int sp;
+    int delay_timer;
+    int sound_timer;
+    final byte[] keys = new byte[16];
+    final byte[] display = new byte[64 * 32];
+    final byte[] keysAtWait = new byte[16];
+    boolean waitingForKey;
+    long seed;
+    int random;
+    boolean drawFlag;
+    long frames;
+
+    /**
+     * Where the writer puts this snapshot, not part of the state
+     */
+    transient Path target;
+
+    /**
+     * Serialises the snapshot and replaces a file with it atomically:
+     * the state goes to a temporary file next to the target, which is then renamed over it
+     *
+     * @param file The save state file
+     */
+    public void writeTo(Path file) throws IOException {
+        byte[] json = new Gson().toJson(this).getBytes(StandardCharsets.UTF_8);
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(json);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+}
@@ -0,0 +1,105 @@
+package chip;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of 128-bit state hashes that any number of threads add to without locks, for {@link Explorer}.<br/>
+ * The hashes live outside the Java heap in an open addressing table of 16-byte slots, so tens of millions
+ * of them cost the collector nothing. A slot is claimed by swapping its first word in from 0, the second word is
+ * written right after and a thread that finds the first word of its own hash waits for it. Neither word of a
+ * stored hash is ever 0, so the table holds 2^126 distinct values, which is plenty.<br/>
+ * The table never grows, it is sized for a number of states up front and the memory goes with the set.
+ * It counts against -XX:MaxDirectMemorySize, which is the heap size unless it is set.
+ */
+public class StateSet {
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int SLOT_SIZE = 16;
+    /**
+     * Slots of one buffer, 1 GiB, a buffer can't be 2 GiB
+     */
+    private static final int SEGMENT_BITS = 26;
+
+    private final ByteBuffer[] segments;
+    private final int segmentBits;
+    private final long mask;
+    private final long capacity;
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * @param capacity States the set is meant to hold, the table gets room for a third more
+     */
+    public StateSet(long capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("A state set needs room for a state");
+        long slots = Long.highestOneBit(capacity + capacity / 3 + 64) << 1;
+        segmentBits = Math.min(SEGMENT_BITS, Long.numberOfTrailingZeros(slots));
+        segments = new ByteBuffer[(int) (slots >>> segmentBits)];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = ByteBuffer.allocateDirect(SLOT_SIZE << segmentBits).order(ByteOrder.nativeOrder());
+        this.mask = slots - 1;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a hash
+     *
+     * @param high First half of the hash
+     * @param low  Second half
+     * @return True if the hash was not in the set yet
+     */
+    public boolean add(long high, long low) {
+        //0 marks an empty slot
+        if (high == 0) high = 1;
+        if (low == 0) low = 1;
+        long slot = (high ^ high >>> 29) & mask;
+        for (long probe = 0; probe <= mask; probe++, slot = (slot + 1) & mask) {
+            ByteBuffer segment = segments[(int) (slot >>> segmentBits)];
+            int offset = (int) (slot & ((1L << segmentBits) - 1)) * SLOT_SIZE;
+            long first = (long) LONGS.getAcquire(segment, offset);
+            if (first == 0) {
+                if (LONGS.compareAndSet(segment, offset, 0L, high)) {
+                    LONGS.setRelease(segment, offset + 8, low);
+                    size.incrementAndGet();
+                    return true;
+                }
+                first = (long) LONGS.getAcquire(segment, offset);
+            }
+            if (first != high)
+                continue;
+            long second;
+            while ((second = (long) LONGS.getAcquire(segment, offset + 8)) == 0)
+                Thread.onSpinWait();
+            if (second == low)
+                return false;
+        }
+        throw new IllegalStateException("The state set is full");
+    }
+
+    public long size() {
+        return size.get();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return True once the set holds as many states as it was sized for, it still takes more until
+     * the extra third runs out
+     */
+    public boolean isFull() {
+        return size.get() >= capacity;
+    }
+
+    /**
+     * @return Bytes of memory the table takes
+     */
+    public long getBytes() {
+        return (mask + 1) * SLOT_SIZE;
+    }
+}
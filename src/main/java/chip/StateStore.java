@@ -0,0 +1,632 @@
+package chip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A folder of save states where identical content is stored once.<br/>
+ * A state is cut into chunks, the 16 pages of RAM and the framebuffer in bands of 8 rows,
+ * every chunk is kept once in a pack file under its SHA-1 and the state only lists the hashes.
+ * Thousands of states of the same ROM then share their font, program and mostly empty screens.<br/>
+ * The pack and the journal of states are append only, so a crash loses at most the record being written.
+ * The chunk index is a cache of the pack, rebuilt from it when missing or stale.<br/>
+ * Usage: StateStore store-folder list|stats|gc|import file...|export name file|delete name...
+ */
+public class StateStore implements Closeable {
+
+    private static final int PACK_MAGIC = 0x43385043; // "C8PC"
+    private static final int INDEX_MAGIC = 0x43385049; // "C8PI"
+    private static final int JOURNAL_MAGIC = 0x43385353; // "C8SS"
+    private static final int VERSION = 1;
+
+    private static final int HASH_SIZE = 20;
+    private static final int PAGE_SIZE = 256;
+    private static final int PAGES = 4096 / PAGE_SIZE;
+    private static final int BAND_ROWS = 8;
+    private static final int BANDS = 32 / BAND_ROWS;
+    /**
+     * Bytes of a band, its pixels are packed 8 to a byte
+     */
+    private static final int BAND_SIZE = 64 * BAND_ROWS / 8;
+    private static final int CHUNKS = PAGES + BANDS;
+    /**
+     * What the chunked part of a state takes unshared, one byte per pixel like a save state file
+     */
+    private static final long LOGICAL_STATE_SIZE = PAGES * PAGE_SIZE + BANDS * 64 * BAND_ROWS;
+
+    private static final int PUT = 1;
+    private static final int DELETE = 2;
+
+    /**
+     * Where a chunk is in the pack
+     */
+    private static class Location {
+        final long offset;
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A stored state, everything but its chunks is held in memory so listing never touches the pack
+     */
+    public static class Info {
+        private final String name;
+        private final long created;
+        private final String romSha1;
+        private final long frames;
+        private final byte[] registers;
+        private final byte[][] chunks;
+
+        Info(String name, long created, String romSha1, long frames, byte[] registers, byte[][] chunks) {
+            this.name = name;
+            this.created = created;
+            this.romSha1 = romSha1;
+            this.frames = frames;
+            this.registers = registers;
+            this.chunks = chunks;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return When the state was stored, in milliseconds since the epoch
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return Hex SHA-1 of the ROM the state was taken from, empty if unknown
+         */
+        public String getRomSha1() {
+            return romSha1;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+    }
+
+    /**
+     * Sizes of the store
+     */
+    public static class Stats {
+        public final int states;
+        public final int chunks;
+        public final long packBytes;
+        /**
+         * What the chunks of every state would take without sharing
+         */
+        public final long logicalBytes;
+
+        Stats(int states, int chunks, long packBytes, long logicalBytes) {
+            this.states = states;
+            this.chunks = chunks;
+            this.packBytes = packBytes;
+            this.logicalBytes = logicalBytes;
+        }
+
+        @Override
+        public String toString() {
+            return states + " states, " + chunks + " chunks, " + packBytes + " bytes in the pack for "
+                    + logicalBytes + " bytes of state"
+                    + (packBytes > 0 ? String.format(" (%.1fx)", (double) logicalBytes / packBytes) : "");
+        }
+    }
+
+    private final Path packFile;
+    private final Path indexFile;
+    private final Path journalFile;
+    private FileChannel pack;
+    private DataOutputStream journal;
+    private final Map<ByteBuffer, Location> index = new HashMap<>();
+    private final Map<String, Info> states = new LinkedHashMap<>();
+    private boolean indexDirty;
+
+    private StateStore(Path folder) {
+        packFile = folder.resolve("chunks.pack");
+        indexFile = folder.resolve("chunks.idx");
+        journalFile = folder.resolve("states.journal");
+    }
+
+    /**
+     * Opens a store, creating it if the folder is empty
+     *
+     * @param folder Folder of the store
+     * @return The open store
+     */
+    public static StateStore open(Path folder) throws IOException {
+        Files.createDirectories(folder);
+        StateStore store = new StateStore(folder);
+        store.openPack();
+        store.openJournal();
+        return store;
+    }
+
+    /**
+     * @return The store of the user's save states, ~/.chip8/states
+     */
+    public static Path defaultFolder() {
+        return Path.of(System.getProperty("user.home"), ".chip8", "states");
+    }
+
+    private void openPack() throws IOException {
+        pack = FileChannel.open(packFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (pack.size() == 0) {
+            writeHeader(pack, PACK_MAGIC);
+            return;
+        }
+        checkHeader(pack, PACK_MAGIC);
+        long indexed = loadIndex();
+        if (indexed < 0 || indexed > pack.size()) {
+            index.clear();
+            indexed = 5;
+        }
+        if (indexed < pack.size()) {
+            scanPack(indexed);
+            indexDirty = true;
+        }
+    }
+
+    /**
+     * @return Length of the pack the index file covers, -1 if there is no usable index
+     */
+    private long loadIndex() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readUnsignedByte() != VERSION)
+                return -1;
+            long covered = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] hash = new byte[HASH_SIZE];
+                in.readFully(hash);
+                index.put(ByteBuffer.wrap(hash), new Location(in.readLong(), in.readUnsignedShort()));
+            }
+            return covered;
+        } catch (NoSuchFileException | EOFException e) {
+            index.clear();
+            return -1;
+        }
+    }
+
+    /**
+     * Indexes the records past the end of the index file, a torn or damaged last record is cut off
+     */
+    private void scanPack(long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HASH_SIZE + 2);
+        long size = pack.size();
+        while (position < size) {
+            header.clear();
+            if (readFully(pack, header, position) < header.capacity())
+                break;
+            int length = header.getShort(HASH_SIZE) & 0xFFFF;
+            if (position + header.capacity() + length > size)
+                break;
+            byte[] hash = Arrays.copyOf(header.array(), HASH_SIZE);
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(pack, data, position + header.capacity());
+            if (!Arrays.equals(InputLog.sha1(data.array()), hash))
+                break;
+            index.put(ByteBuffer.wrap(hash), new Location(position + header.capacity(), length));
+            position += header.capacity() + length;
+        }
+        if (position < size)
+            pack.truncate(position);
+    }
+
+    private void openJournal() throws IOException {
+        if (Files.exists(journalFile)) {
+            byte[] bytes = Files.readAllBytes(journalFile);
+            ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+            DataInputStream in = new DataInputStream(buffer);
+            if (bytes.length < 5 || in.readInt() != JOURNAL_MAGIC || in.readUnsignedByte() != VERSION)
+                throw new IOException(journalFile + " is not a save state journal");
+            //Only whole records count, what follows the last one was being written when the program stopped
+            int valid = 5;
+            while (true) {
+                int type = in.read();
+                if (type == -1) break;
+                try {
+                    readRecord(type, in);
+                } catch (EOFException e) {
+                    break;
+                }
+                valid = bytes.length - buffer.available();
+            }
+            if (valid < bytes.length) {
+                try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+        } else {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(journalFile))) {
+                out.writeInt(JOURNAL_MAGIC);
+                out.writeByte(VERSION);
+            }
+        }
+        journal = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(journalFile, StandardOpenOption.APPEND)));
+    }
+
+    /**
+     * Applies one journal record
+     */
+    private void readRecord(int type, DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        if (type == DELETE) {
+            states.remove(name);
+            return;
+        }
+        if (type != PUT)
+            throw new IOException(journalFile + " has an unknown record " + type);
+        long created = in.readLong();
+        String romSha1 = in.readUTF();
+        long frames = in.readLong();
+        byte[] registers = new byte[in.readUnsignedShort()];
+        in.readFully(registers);
+        byte[][] chunks = new byte[in.readUnsignedByte()][HASH_SIZE];
+        for (byte[] hash : chunks)
+            in.readFully(hash);
+        states.remove(name); //a state put again moves to the end of the list
+        states.put(name, new Info(name, created, romSha1, frames, registers, chunks));
+    }
+
+    private static void writeRecord(DataOutputStream out, Info info) throws IOException {
+        out.writeByte(PUT);
+        out.writeUTF(info.name);
+        out.writeLong(info.created);
+        out.writeUTF(info.romSha1);
+        out.writeLong(info.frames);
+        out.writeShort(info.registers.length);
+        out.write(info.registers);
+        out.writeByte(info.chunks.length);
+        for (byte[] hash : info.chunks)
+            out.write(hash);
+    }
+
+    /**
+     * Stores a state, replacing the state of the same name. Only chunks the store doesn't hold yet are written
+     *
+     * @param name     Name of the state
+     * @param snapshot The state
+     * @param romSha1  Hex SHA-1 of the ROM, empty if unknown
+     */
+    public synchronized void put(String name, Snapshot snapshot, String romSha1) throws IOException {
+        byte[][] chunks = new byte[CHUNKS][];
+        byte[] page = new byte[PAGE_SIZE];
+        for (int i = 0; i < PAGES; i++) {
+            for (int j = 0; j < PAGE_SIZE; j++)
+                page[j] = (byte) snapshot.memory.RAM[i * PAGE_SIZE + j];
+            chunks[i] = storeChunk(page);
+        }
+        byte[] band = new byte[BAND_SIZE];
+        for (int i = 0; i < BANDS; i++) {
+            Arrays.fill(band, (byte) 0);
+            int first = i * BAND_ROWS * 64;
+            for (int pixel = 0; pixel < BAND_ROWS * 64; pixel++) {
+                if (snapshot.display[first + pixel] != 0)
+                    band[pixel >> 3] |= 0x80 >> (pixel & 7);
+            }
+            chunks[PAGES + i] = storeChunk(band);
+        }
+        //The chunks are on disk before the state that refers to them
+        pack.force(false);
+
+        Info info = new Info(name, System.currentTimeMillis(), romSha1, snapshot.frames, registers(snapshot), chunks);
+        writeRecord(journal, info);
+        journal.flush();
+        states.remove(name);
+        states.put(name, info);
+    }
+
+    private byte[] storeChunk(byte[] data) throws IOException {
+        byte[] hash = InputLog.sha1(data);
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        if (index.containsKey(key))
+            return hash;
+        long position = pack.size();
+        ByteBuffer record = ByteBuffer.allocate(HASH_SIZE + 2 + data.length);
+        record.put(hash).putShort((short) data.length).put(data).flip();
+        while (record.hasRemaining())
+            position += pack.write(record, position);
+        index.put(key, new Location(position - data.length, data.length));
+        indexDirty = true;
+        return hash;
+    }
+
+    /**
+     * Everything of a snapshot that isn't chunked, it is small enough to keep with the state
+     */
+    private static byte[] registers(Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (char register : snapshot.memory.V)
+            out.writeByte(register);
+        out.writeShort(snapshot.I);
+        out.writeShort(snapshot.pc);
+        for (char address : snapshot.stack)
+            out.writeShort(address);
+        out.writeByte(snapshot.sp);
+        out.writeByte(snapshot.delay_timer);
+        out.writeByte(snapshot.sound_timer);
+        out.write(snapshot.keys);
+        out.write(snapshot.keysAtWait);
+        out.writeBoolean(snapshot.waitingForKey);
+        out.writeLong(snapshot.seed);
+        out.writeInt(snapshot.random);
+        out.writeBoolean(snapshot.drawFlag);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a state back
+     *
+     * @param name Name of the state
+     * @param into Snapshot filled with it
+     * @return False if there is no such state
+     */
+    public synchronized boolean load(String name, Snapshot into) throws IOException {
+        Info info = states.get(name);
+        if (info == null)
+            return false;
+        for (int i = 0; i < PAGES; i++) {
+            byte[] page = readChunk(info.chunks[i]);
+            for (int j = 0; j < PAGE_SIZE; j++)
+                into.memory.RAM[i * PAGE_SIZE + j] = (char) (page[j] & 0xFF);
+        }
+        for (int i = 0; i < BANDS; i++) {
+            byte[] band = readChunk(info.chunks[PAGES + i]);
+            int first = i * BAND_ROWS * 64;
+            for (int pixel = 0; pixel < BAND_ROWS * 64; pixel++)
+                into.display[first + pixel] = (byte) ((band[pixel >> 3] >> (7 - (pixel & 7))) & 1);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(info.registers));
+        for (int i = 0; i < into.memory.V.length; i++)
+            into.memory.V[i] = (char) in.readUnsignedByte();
+        into.I = in.readChar();
+        into.pc = in.readChar();
+        for (int i = 0; i < into.stack.length; i++)
+            into.stack[i] = in.readChar();
+        into.sp = in.readUnsignedByte();
+        into.delay_timer = in.readUnsignedByte();
+        into.sound_timer = in.readUnsignedByte();
+        in.readFully(into.keys);
+        in.readFully(into.keysAtWait);
+        into.waitingForKey = in.readBoolean();
+        into.seed = in.readLong();
+        into.random = in.readInt();
+        into.drawFlag = in.readBoolean();
+        into.frames = info.frames;
+        return true;
+    }
+
+    private byte[] readChunk(byte[] hash) throws IOException {
+        Location location = index.get(ByteBuffer.wrap(hash));
+        if (location == null)
+            throw new IOException("Chunk " + RomLibrary.hex(hash) + " is missing from " + packFile);
+        ByteBuffer data = ByteBuffer.allocate(location.length);
+        readFully(pack, data, location.offset);
+        if (!Arrays.equals(InputLog.sha1(data.array()), hash))
+            throw new IOException("Chunk " + RomLibrary.hex(hash) + " is damaged in " + packFile);
+        return data.array();
+    }
+
+    /**
+     * @return Every state, oldest first
+     */
+    public synchronized List<Info> list() {
+        return new ArrayList<>(states.values());
+    }
+
+    /**
+     * Forgets a state, its chunks stay in the pack until {@link #gc()}
+     *
+     * @param name Name of the state
+     * @return False if there is no such state
+     */
+    public synchronized boolean delete(String name) throws IOException {
+        if (states.remove(name) == null)
+            return false;
+        journal.writeByte(DELETE);
+        journal.writeUTF(name);
+        journal.flush();
+        return true;
+    }
+
+    /**
+     * Copies the chunks still referenced to a new pack and rewrites the journal with only the live states
+     *
+     * @return Bytes freed
+     */
+    public synchronized long gc() throws IOException {
+        Set<ByteBuffer> live = new HashSet<>();
+        for (Info info : states.values())
+            for (byte[] hash : info.chunks)
+                live.add(ByteBuffer.wrap(hash));
+
+        long before = pack.size() + Files.size(journalFile);
+        if (live.size() < index.size()) {
+            Path temp = packFile.resolveSibling(packFile.getFileName() + ".tmp");
+            Map<ByteBuffer, Location> moved = new HashMap<>();
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeHeader(out, PACK_MAGIC);
+                for (ByteBuffer key : live) {
+                    Location location = index.get(key);
+                    long position = out.size();
+                    //The hash and length are right before the data
+                    long copied = 0;
+                    long length = HASH_SIZE + 2 + location.length;
+                    while (copied < length)
+                        copied += pack.transferTo(location.offset - HASH_SIZE - 2 + copied, length - copied, out);
+                    moved.put(key, new Location(position + HASH_SIZE + 2, location.length));
+                }
+                out.force(true);
+            }
+            pack.close();
+            //The old index would point into the new pack, without one the pack is scanned instead
+            Files.deleteIfExists(indexFile);
+            Files.move(temp, packFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            pack = FileChannel.open(packFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index.clear();
+            index.putAll(moved);
+            indexDirty = true;
+        }
+        saveIndex();
+
+        journal.close();
+        Path temp = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeByte(VERSION);
+            for (Info info : states.values())
+                writeRecord(out, info);
+        }
+        Files.move(temp, journalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        journal = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(journalFile, StandardOpenOption.APPEND)));
+        return before - pack.size() - Files.size(journalFile);
+    }
+
+    public synchronized Stats getStats() throws IOException {
+        return new Stats(states.size(), index.size(), pack.size(), states.size() * LOGICAL_STATE_SIZE);
+    }
+
+    private void saveIndex() throws IOException {
+        if (!indexDirty)
+            return;
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(pack.size());
+            out.writeInt(index.size());
+            for (Map.Entry<ByteBuffer, Location> entry : index.entrySet()) {
+                out.write(entry.getKey().array());
+                out.writeLong(entry.getValue().offset);
+                out.writeShort(entry.getValue().length);
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        indexDirty = false;
+    }
+
+    /**
+     * Writes the chunk index so the next open doesn't scan the pack
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            saveIndex();
+        } finally {
+            journal.close();
+            pack.close();
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, int magic) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5).putInt(magic).put((byte) VERSION);
+        header.flip();
+        channel.position(channel.size());
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    private void checkHeader(FileChannel channel, int magic) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        if (readFully(channel, header, 0) < 5 || header.getInt(0) != magic || header.get(4) != VERSION)
+            throw new IOException(packFile + " is not a save state pack");
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: StateStore store-folder list|stats|gc|import file...|export name file|delete name...");
+            System.exit(1);
+        }
+        try (StateStore store = open(Path.of(args[0]))) {
+            switch (args[1]) {
+                case "list":
+                    for (Info info : store.list())
+                        System.out.printf("%s\t%tF %<tT\t%d frames\t%s%n", info.getName(), info.getCreated(),
+                                info.getFrames(), info.getRomSha1());
+                    break;
+                case "stats":
+                    System.out.println(store.getStats());
+                    break;
+                case "gc":
+                    System.out.println(store.gc() + " bytes freed, " + store.getStats());
+                    break;
+                case "import": {
+                    //Going through a chip reads every format loadState understands
+                    Chip chip = new Chip();
+                    chip.setMuted(true);
+                    Snapshot snapshot = new Snapshot();
+                    for (int i = 2; i < args.length; i++) {
+                        Path file = Path.of(args[i]);
+                        chip.loadState(file.toString());
+                        chip.copyState(snapshot);
+                        store.put(file.getFileName().toString(), snapshot, "");
+                    }
+                    System.out.println(store.getStats());
+                    break;
+                }
+                case "export": {
+                    Snapshot snapshot = new Snapshot();
+                    if (!store.load(args[2], snapshot)) {
+                        System.err.println("No state named " + args[2]);
+                        System.exit(1);
+                    }
+                    snapshot.writeTo(Path.of(args[3]));
+                    break;
+                }
+                case "delete":
+                    for (int i = 2; i < args.length; i++)
+                        if (!store.delete(args[i]))
+                            System.err.println("No state named " + args[i]);
+                    break;
+                default:
+                    System.err.println("Unknown command " + args[1]);
+                    System.exit(1);
+            }
+        }
+    }
+}
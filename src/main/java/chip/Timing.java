@@ -0,0 +1,125 @@
+package chip;
+
+/**
+ * How long each opcode takes on a real machine, in machine cycles.<br/>
+ * With a timing model attached, {@link Chip#runFrame(int[])} runs opcodes until the frame's cycles are spent
+ * instead of a fixed number of opcodes, so a clear screen or a tall sprite slows a program down like it did on
+ * the hardware. An opcode that runs past the end of a frame takes the overshoot out of the next one.
+ */
+public final class Timing {
+
+    /**
+     * The original interpreter on the COSMAC VIP: a 1.76 MHz CDP1802 takes 8 clocks per machine cycle,
+     * 3668 machine cycles per 60 Hz frame, of which the CDP1861 display DMA and its interrupt take about 1024.
+     * The costs are those of the interpreter's routines, rounded, with 40 cycles of fetch and decode on top.
+     */
+    public static final Timing COSMAC_VIP = new Timing("cosmac-vip", 3668 - 1024, 40);
+
+    /**
+     * Timing models by name
+     */
+    public static final Timing[] MODELS = {COSMAC_VIP};
+
+    public final String name;
+    private final int cyclesPerFrame;
+    /**
+     * Cycles of every opcode, taken skips and waits excluded
+     */
+    private final int[] costs = new int[0x10000];
+
+    private Timing(String name, int cyclesPerFrame, int fetch) {
+        this.name = name;
+        this.cyclesPerFrame = cyclesPerFrame;
+        for (int opcode = 0; opcode < costs.length; opcode++)
+            costs[opcode] = fetch + execution(opcode);
+    }
+
+    private static int execution(int opcode) {
+        int x = (opcode >> 8) & 0xF;
+        int n = opcode & 0xF;
+        switch (opcode >> 12) {
+            case 0x0:
+                if (opcode == 0x00E0) return 3078; //clears the 256 display bytes one at a time
+                if (opcode == 0x00EE) return 10;
+                return 0;
+            case 0x1: return 12;
+            case 0x2: return 26;
+            case 0x3:
+            case 0x4: return 10;
+            case 0x5:
+            case 0x9: return 14;
+            case 0x6: return 6;
+            case 0x7: return 10;
+            case 0x8: return 44;
+            case 0xA: return 12;
+            case 0xB: return 22;
+            case 0xC: return 36;
+            case 0xD: return 26 + n * 46; //every row is shifted into place and XORed into two display bytes
+            case 0xE: return 14;
+            default:
+                switch (opcode & 0xFF) {
+                    case 0x07:
+                    case 0x15:
+                    case 0x18: return 10;
+                    case 0x0A: return 19; //one pass of the key wait
+                    case 0x1E: return 12;
+                    case 0x29: return 16;
+                    case 0x33: return 84; //the digits are found by repeated subtraction
+                    case 0x55:
+                    case 0x65: return 14 + 14 * (x + 1);
+                    default: return 0;
+                }
+        }
+    }
+
+    /**
+     * Cycles an opcode took
+     *
+     * @param opcode The opcode that ran
+     * @param from   Address it ran at
+     * @param to     Address of the next opcode
+     */
+    int cost(int opcode, int from, int to) {
+        int cost = costs[opcode];
+        //A taken skip loads the next opcode's address once more
+        if (((to - from) & 0xFFF) == 4 && isSkip(opcode))
+            cost += 4;
+        return cost;
+    }
+
+    private static boolean isSkip(int opcode) {
+        switch (opcode >> 12) {
+            case 0x3:
+            case 0x4:
+            case 0x5:
+            case 0x9:
+            case 0xE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return Machine cycles the interpreter gets in a 60 Hz frame
+     */
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    /**
+     * @param name Name of a model, empty for none
+     * @return The model, null for an empty or unknown name
+     */
+    public static Timing named(String name) {
+        for (Timing model : MODELS)
+            if (model.name.equals(name))
+                return model;
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
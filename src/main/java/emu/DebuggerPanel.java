@@ -0,0 +1,185 @@
+package emu;
+
+import chip.Chip;
+import chip.Debugger;
+import chip.Opcodes;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+public class DebuggerPanel extends JFrame implements Debugger.Listener {
+    private static final long serialVersionUID = 1L;
+
+    private final Chip chip;
+    private final DisplayFrame displayFrame;
+    private final Debugger debugger;
+
+    private JTextArea registers;
+    private JLabel status;
+
+    private DefaultListModel<Debugger.Breakpoint> breakpointModel;
+    private JList<Debugger.Breakpoint> breakpointList;
+    private JTextField breakpointAddress;
+    private JTextField breakpointCondition;
+
+    private DefaultListModel<Debugger.Watchpoint> watchpointModel;
+    private JList<Debugger.Watchpoint> watchpointList;
+    private JTextField watchpointRange;
+    private JCheckBox watchReads;
+    private JCheckBox watchWrites;
+
+    DebuggerPanel(DisplayFrame displayFrame, Chip chip) {
+        this.displayFrame = displayFrame;
+        this.chip = chip;
+        debugger = new Debugger(chip);
+        debugger.setListener(this);
+        chip.setDebugger(debugger);
+
+        setTitle("Debugger");
+        setSize(520, 480);
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                chip.setDebugger(null);
+                chip.isPaused = false;
+            }
+        });
+
+        Container contentPane = getContentPane();
+        contentPane.setLayout(new BorderLayout());
+
+        JPanel controls = new JPanel(new GridLayout(1, 5, 3, 3));
+        controls.add(button("Pause", debugger::pause));
+        controls.add(button("Resume", debugger::resume));
+        controls.add(button("Step", debugger::step));
+        controls.add(button("Step Over", debugger::stepOver));
+        controls.add(button("Run to Return", debugger::runToReturn));
+        contentPane.add(controls, "North");
+
+        registers = new JTextArea(10, 24);
+        registers.setEditable(false);
+        registers.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        contentPane.add(new JScrollPane(registers), "West");
+
+        JPanel points = new JPanel(new GridLayout(2, 1, 3, 3));
+        points.add(breakpointsPanel());
+        points.add(watchpointsPanel());
+        contentPane.add(points, "Center");
+
+        status = new JLabel(" ");
+        contentPane.add(status, "South");
+
+        refresh();
+    }
+
+    private JPanel breakpointsPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(BorderFactory.createTitledBorder("Breakpoints"));
+        breakpointModel = new DefaultListModel<>();
+        breakpointList = new JList<>(breakpointModel);
+        panel.add(new JScrollPane(breakpointList), "Center");
+
+        JPanel input = new JPanel(new GridLayout(2, 2, 3, 3));
+        input.add(breakpointAddress = new JTextField("0x200"));
+        input.add(breakpointCondition = new JTextField());
+        breakpointCondition.setToolTipText("Optional, e.g. V3 == 5 or I >= 0x300");
+        input.add(button("Add", this::addBreakpoint));
+        input.add(button("Remove", () -> {
+            Debugger.Breakpoint selected = breakpointList.getSelectedValue();
+            if (selected != null) debugger.removeBreakpoint(selected.address);
+        }));
+        panel.add(input, "South");
+        return panel;
+    }
+
+    private JPanel watchpointsPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(BorderFactory.createTitledBorder("Watchpoints"));
+        watchpointModel = new DefaultListModel<>();
+        watchpointList = new JList<>(watchpointModel);
+        panel.add(new JScrollPane(watchpointList), "Center");
+
+        JPanel input = new JPanel(new GridLayout(2, 3, 3, 3));
+        input.add(watchpointRange = new JTextField("0x300-0x30F"));
+        input.add(watchReads = new JCheckBox("Read"));
+        input.add(watchWrites = new JCheckBox("Write", true));
+        input.add(button("Add", this::addWatchpoint));
+        input.add(button("Remove", () -> {
+            Debugger.Watchpoint selected = watchpointList.getSelectedValue();
+            if (selected != null) debugger.removeWatchpoint(selected);
+        }));
+        panel.add(input, "South");
+        return panel;
+    }
+
+    private JButton button(String text, Runnable action) {
+        JButton button = new JButton(text);
+        button.addActionListener(actionEvent -> {
+            try {
+                action.run();
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (Chip.Fault fault) {
+                //the chip is left paused before the faulting opcode
+                status.setText(fault.getMessage());
+            }
+            refresh();
+        });
+        return button;
+    }
+
+    private void addBreakpoint() {
+        int address = Debugger.parseNumber(breakpointAddress.getText());
+        String condition = breakpointCondition.getText().trim();
+        debugger.addBreakpoint(new Debugger.Breakpoint(address & 0xFFF,
+                condition.isEmpty() ? null : Debugger.Condition.parse(condition)));
+    }
+
+    private void addWatchpoint() {
+        String[] range = watchpointRange.getText().split("-");
+        int start = Debugger.parseNumber(range[0]);
+        int end = range.length > 1 ? Debugger.parseNumber(range[1]) : start;
+        debugger.addWatchpoint(new Debugger.Watchpoint(start & 0xFFF, end & 0xFFF,
+                watchReads.isSelected(), watchWrites.isSelected()));
+    }
+
+    @Override
+    public void onBreak(String reason) {
+        SwingUtilities.invokeLater(() -> {
+            status.setText(reason);
+            refresh();
+        });
+    }
+
+    private void refresh() {
+        StringBuilder sb = new StringBuilder();
+        char[] v = chip.getMemory().V;
+        for (int i = 0; i < v.length; i++) {
+            sb.append("V").append(Integer.toHexString(i).toUpperCase()).append(" = ")
+                    .append(String.format("%02X", (int) v[i])).append(i % 2 == 1 ? "\n" : "    ");
+        }
+        sb.append("\nI  = ").append(String.format("%03X", (int) chip.getI())).append("\n");
+        sb.append("PC = ").append(String.format("%03X", (int) chip.getPc()));
+        int opcode = chip.opcodeAt(chip.getPc());
+        sb.append("  ").append(String.format("%04X", opcode)).append(" ").append(Opcodes.name(opcode)).append("\n");
+        sb.append("DT = ").append(chip.getDelay_timer()).append("  ST = ").append(chip.getSound_timer()).append("\n");
+        sb.append("Stack:");
+        for (char address : chip.getStack())
+            sb.append(" ").append(String.format("%03X", (int) address));
+        sb.append("\n").append(chip.isPaused ? "Paused" : "Running");
+        registers.setText(sb.toString());
+
+        breakpointModel.clear();
+        for (Debugger.Breakpoint breakpoint : debugger.getBreakpoints())
+            breakpointModel.addElement(breakpoint);
+        watchpointModel.clear();
+        for (Debugger.Watchpoint watchpoint : debugger.getWatchpoints())
+            watchpointModel.addElement(watchpoint);
+
+        if (chip.needsRedraw()) {
+            displayFrame.drawUpdates();
+            chip.removeDrawFlag();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package emu;
+
+import chip.RomAnalysis;
+import chip.RomImage;
+
+import javax.swing.*;
+import java.awt.*;
+import java.nio.file.Path;
+
+/**
+ * The disassembly of a ROM from its static analysis, with the code split into labelled blocks
+ * and the data shown as sprite pixels
+ */
+public class DisassemblyFrame extends JFrame {
+    private static final long serialVersionUID = 1L;
+
+    DisassemblyFrame(String romPath, RomImage rom) {
+        RomAnalysis analysis = RomAnalysis.cached(rom);
+        setTitle("Disassembly - " + Path.of(romPath).getFileName());
+
+        JTextArea listing = new JTextArea(analysis.listing(rom));
+        listing.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        listing.setEditable(false);
+        listing.setCaretPosition(0);
+
+        JLabel summary = new JLabel(" " + analysis);
+        getContentPane().setLayout(new BorderLayout());
+        getContentPane().add(summary, "North");
+        getContentPane().add(new JScrollPane(listing), "Center");
+        setSize(560, 700);
+    }
+}
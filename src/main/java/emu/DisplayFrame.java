@@ -1,6 +1,7 @@
 package emu;
 
 import chip.Chip;
+import chip.InputLatency;
 
 import javax.swing.*;
 import java.awt.*;
@@ -8,6 +9,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.WindowEvent;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -33,7 +35,7 @@ public class DisplayFrame extends JFrame implements KeyListener, ActionListener
         fillKeyIds();
         topMenu = new TopMenu(this, this.chip);
         pack();
-        setResizable(false);
+        setResizable(true);
         setPreferredSize(new Dimension(640 + getInsets().left + getInsets().right,
                     340 + getInsets().top + getInsets().bottom));
         panel = new DisplayPanel(chip);
@@ -45,6 +47,15 @@ public class DisplayFrame extends JFrame implements KeyListener, ActionListener
         topMenu.addTopMenuBar();
         setVisible(true);
         addKeyListener(this);
+        //the power saver follows the window state, and whether any window of the emulator has the focus
+        addWindowStateListener(e -> MainLoop.powerSaver.setMinimised((e.getNewState() & ICONIFIED) != 0));
+        Toolkit.getDefaultToolkit().addAWTEventListener(event -> {
+            WindowEvent e = (WindowEvent) event;
+            if (e.getID() == WindowEvent.WINDOW_GAINED_FOCUS)
+                MainLoop.powerSaver.setFocused(true);
+            else if (e.getID() == WindowEvent.WINDOW_LOST_FOCUS && e.getOppositeWindow() == null)
+                MainLoop.powerSaver.setFocused(false);
+        }, AWTEvent.WINDOW_FOCUS_EVENT_MASK);
     }
 
     private void fillKeyIds() {
@@ -67,15 +78,32 @@ public class DisplayFrame extends JFrame implements KeyListener, ActionListener
     }
 
     public void drawUpdates(){
-        panel.repaint();
+        panel.render();
+    }
+
+    public ScaleFilter getFilter() {
+        return panel.getFilter();
+    }
+
+    public void setFilter(ScaleFilter filter) {
+        panel.setFilter(filter);
+    }
+
+    public void setLatencyOverlay(boolean latencyOverlay) {
+        panel.setLatencyOverlay(latencyOverlay);
     }
 
     @Override
     public void keyPressed(KeyEvent e) {
         try{
-            keyIdToKey.get((char)e.getKeyCode());
-            DisplayFrame.keyBuffer[keyIdToKey.get((char)e.getKeyCode())] = 1;
+            int key = keyIdToKey.get((char)e.getKeyCode());
+            //auto repeat presses a held key again, only the first press is an input
+            InputLatency latency = chip.getLatency();
+            if (latency != null && DisplayFrame.keyBuffer[key] == 0)
+                latency.press(key, System.nanoTime());
+            DisplayFrame.keyBuffer[key] = 1;
             DisplayFrame.keyPressed = true;
+            MainLoop.powerSaver.onInput();
         }catch (Exception ex){
 
         }
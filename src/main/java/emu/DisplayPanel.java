@@ -1,32 +1,132 @@
 package emu;
 
 import chip.Chip;
+import chip.InputLatency;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 
+/**
+ * Shows the display through a {@link ScaleFilter}, scaled by the largest factor that fits and centered.<br/>
+ * Frames are upscaled by the thread that calls {@link #render()}, the event thread only draws the finished image
+ * 1:1, except after a resize or a color change while the chip doesn't redraw.
+ */
 public class DisplayPanel extends JPanel {
     private static final long serialVersionUID = 1L;
     public static Color primaryColor = Color.WHITE;
     public static Color secondaryColor = Color.BLACK;
     private Chip chip;
+    private volatile ScaleFilter filter = ScaleFilter.NEAREST;
+
+    /**
+     * One upscaler per buffer, the one not on screen is rendered into while the other is painted
+     */
+    private Upscaler back = new Upscaler();
+    private Upscaler front = new Upscaler();
+    private BufferedImage frontImage;
+    private ScaleFilter frontFilter;
+    private Color frontPrimary;
+    private Color frontSecondary;
+    /**
+     * Frames rendered, the one on screen is frontFrame
+     */
+    private long renderedFrames;
+    private long frontFrame;
+    private volatile boolean latencyOverlay;
+    private final Object renderLock = new Object();
+    private final Object frameLock = new Object();
 
     public DisplayPanel(Chip chip) {
         this.chip = chip;
+        setPreferredSize(new Dimension(640, 320));
+    }
+
+    public ScaleFilter getFilter() {
+        return filter;
     }
 
-    public void paint(Graphics g) {
-        byte[] display = chip.getDisplay();
-        for(int i = 0; i < display.length; i++) {
-            if(display[i] == 1)
-                g.setColor(primaryColor);
-            else
-                g.setColor(secondaryColor);
+    public boolean isLatencyOverlay() {
+        return latencyOverlay;
+    }
 
-            int x = (i % 64);
-            int y = (int)Math.floor(i / 64);
+    /**
+     * @param latencyOverlay True to show the input latency over the display while it is measured
+     */
+    public void setLatencyOverlay(boolean latencyOverlay) {
+        this.latencyOverlay = latencyOverlay;
+        repaint();
+    }
+
+    public void setFilter(ScaleFilter filter) {
+        this.filter = filter;
+        render();
+    }
 
-            g.fillRect(x * 10, y * 10, 10, 10);
+    /**
+     * Upscales the current display and shows it, called after the chip drew
+     */
+    public void render() {
+        synchronized (renderLock) {
+            ScaleFilter filter = this.filter;
+            Color primary = primaryColor;
+            Color secondary = secondaryColor;
+            int factor = Upscaler.factorFor(filter, getWidth(), getHeight());
+            BufferedImage image = back.render(chip.getDisplay(), filter, factor,
+                    primary.getRGB() & 0xFFFFFF, secondary.getRGB() & 0xFFFFFF);
+            //before the swap, so a paint of the frame before doesn't count for the reads of this one
+            InputLatency latency = chip.getLatency();
+            renderedFrames++;
+            if (latency != null)
+                latency.published(renderedFrames);
+            synchronized (frameLock) {
+                frontFrame = renderedFrames;
+                Upscaler shown = front;
+                front = back;
+                back = shown;
+                frontImage = image;
+                frontFilter = filter;
+                frontPrimary = primary;
+                frontSecondary = secondary;
+            }
         }
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        boolean stale;
+        synchronized (frameLock) {
+            stale = frontImage == null || frontFilter != filter
+                    || frontImage.getWidth() != 64 * Upscaler.factorFor(filter, getWidth(), getHeight())
+                    || !primaryColor.equals(frontPrimary) || !secondaryColor.equals(frontSecondary);
+        }
+        if (stale)
+            render();
+        synchronized (frameLock) {
+            g.setColor(secondaryColor);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            int x = (getWidth() - frontImage.getWidth()) / 2;
+            int y = (getHeight() - frontImage.getHeight()) / 2;
+            g.drawImage(frontImage, Math.max(0, x), Math.max(0, y), null);
+            InputLatency latency = chip.getLatency();
+            if (latency != null) {
+                latency.painted(frontFrame);
+                if (latencyOverlay)
+                    paintLatency(g, latency);
+            }
+        }
+    }
+
+    private void paintLatency(Graphics g, InputLatency latency) {
+        String text = latency.getSamples() == 0 ? "Latency: press a key"
+                : String.format("Latency %.1f ms  p50 %.1f  p99 %.1f  (%d)", latency.getLastMillis(),
+                latency.percentile(0.5), latency.percentile(0.99), latency.getSamples());
+        g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        int width = g.getFontMetrics().stringWidth(text);
+        g.setColor(new Color(0, 0, 0, 160));
+        g.fillRect(4, 4, width + 8, 18);
+        g.setColor(Color.YELLOW);
+        g.drawString(text, 8, 17);
     }
 }
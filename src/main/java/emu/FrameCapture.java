@@ -0,0 +1,154 @@
+package emu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records published frames on a background thread.<br/>
+ * The emulation thread copies each frame into a preallocated buffer and queues it,
+ * a full queue drops the frame instead of waiting. The encoder thread drops
+ * consecutive duplicates and hands the rest to an {@link Encoder} with their duration.
+ */
+public class FrameCapture implements Closeable {
+
+    /**
+     * Writes frames to disk, only ever called from the capture thread
+     */
+    public interface Encoder extends Closeable {
+        /**
+         * @param display     The 64x32 display
+         * @param centiseconds How long the frame stays on screen
+         */
+        void writeFrame(byte[] display, int centiseconds) throws IOException;
+    }
+
+    private static final class Frame {
+        final byte[] display = new byte[64 * 32];
+        long nanos;
+    }
+
+    private static final Frame END = new Frame();
+    /**
+     * Most viewers slow down frames shorter than this, so they are merged into the next one
+     */
+    private static final int MIN_CENTISECONDS = 2;
+
+    private final Encoder encoder;
+    private final BlockingQueue<Frame> free;
+    private final BlockingQueue<Frame> filled;
+    private final Thread thread;
+    private final long start = System.nanoTime();
+
+    private volatile long dropped;
+    private long written;
+    private IOException failure;
+
+    /**
+     * @param encoder   Where the frames go
+     * @param queueSize How many frames may wait for the encoder
+     */
+    public FrameCapture(Encoder encoder, int queueSize) {
+        this.encoder = encoder;
+        free = new ArrayBlockingQueue<>(queueSize + 1);
+        filled = new ArrayBlockingQueue<>(queueSize + 1);
+        for (int i = 0; i < queueSize; i++)
+            free.add(new Frame());
+        thread = new Thread(this::encodeLoop, "frame-capture");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a copy of the display, never blocks
+     *
+     * @param display The 64x32 display
+     * @return False if the frame was dropped because the encoder is behind
+     */
+    public boolean publish(byte[] display) {
+        Frame frame = free.poll();
+        if (frame == null) {
+            dropped++;
+            return false;
+        }
+        System.arraycopy(display, 0, frame.display, 0, frame.display.length);
+        frame.nanos = System.nanoTime();
+        filled.add(frame);
+        return true;
+    }
+
+    private void encodeLoop() {
+        //The frame on screen, written once the next different frame tells how long it lasted
+        byte[] held = new byte[64 * 32];
+        long heldNanos = -1;
+        try {
+            while (true) {
+                Frame frame = filled.take();
+                if (frame == END) break;
+                if (heldNanos < 0) {
+                    System.arraycopy(frame.display, 0, held, 0, held.length);
+                    heldNanos = frame.nanos;
+                } else if (!Arrays.equals(held, frame.display)) {
+                    int centiseconds = centiseconds(frame.nanos) - centiseconds(heldNanos);
+                    if (centiseconds >= MIN_CENTISECONDS) {
+                        encoder.writeFrame(held, centiseconds);
+                        written++;
+                        heldNanos = frame.nanos;
+                    }
+                    System.arraycopy(frame.display, 0, held, 0, held.length);
+                }
+                free.add(frame);
+            }
+            if (heldNanos >= 0) {
+                encoder.writeFrame(held, Math.max(MIN_CENTISECONDS, centiseconds(System.nanoTime()) - centiseconds(heldNanos)));
+                written++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failure = e;
+            e.printStackTrace();
+            //Keep the emulation thread from filling up the queue
+            free.clear();
+        }
+    }
+
+    private int centiseconds(long nanos) {
+        return (int) ((nanos - start) / 10_000_000);
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Waits for the queued frames to be encoded, then closes the encoder
+     *
+     * @throws IOException If a frame could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        //there is always room for END, the queue holds one more than there are frames
+        filled.add(END);
+        //the encoder is only closed once the capture thread is done with it, however long it takes
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        encoder.close();
+        if (failure != null)
+            throw failure;
+    }
+}
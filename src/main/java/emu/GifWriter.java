@@ -0,0 +1,202 @@
+package emu;
+
+import java.awt.*;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Streams frames into an animated GIF.<br/>
+ * Every frame after the first only covers the rectangle that changed since the previous one,
+ * the rest of the picture is left in place by the "do not dispose" method.
+ */
+public class GifWriter implements FrameCapture.Encoder {
+
+    private static final int MIN_CODE_SIZE = 2;
+    private static final int CLEAR = 1 << MIN_CODE_SIZE;
+    private static final int END_OF_INFORMATION = CLEAR + 1;
+    private static final int MAX_CODES = 4096;
+
+    private final OutputStream out;
+    private final int scale;
+    private final byte[] previous = new byte[64 * 32];
+    private boolean first = true;
+
+    //LZW state, child[code * 2 + pixel] is the code extending code by pixel
+    private final int[] child = new int[MAX_CODES * 2];
+    private int nextCode;
+    private int codeSize;
+    private int maxCode;
+    private boolean clearing;
+
+    //Bit packing and sub-block output
+    private final byte[] block = new byte[255];
+    private int blockLength;
+    private int bitBuffer;
+    private int bitCount;
+
+    /**
+     * Writes the GIF header
+     *
+     * @param file      Where to write the GIF
+     * @param scale     Size in pixels of one CHIP-8 pixel
+     * @param primary   Color of lit pixels
+     * @param secondary Color of unlit pixels
+     */
+    public GifWriter(Path file, int scale, Color primary, Color secondary) throws IOException {
+        this.scale = scale;
+        out = new BufferedOutputStream(Files.newOutputStream(file));
+        out.write(new byte[]{'G', 'I', 'F', '8', '9', 'a'});
+        writeShort(64 * scale);
+        writeShort(32 * scale);
+        out.write(0x80); //global color table of 2 entries
+        out.write(0);
+        out.write(0);
+        out.write(secondary.getRed());
+        out.write(secondary.getGreen());
+        out.write(secondary.getBlue());
+        out.write(primary.getRed());
+        out.write(primary.getGreen());
+        out.write(primary.getBlue());
+        //NETSCAPE2.0 extension, loop forever
+        out.write(new byte[]{0x21, (byte) 0xFF, 11, 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1, 0, 0, 0});
+    }
+
+    @Override
+    public void writeFrame(byte[] display, int centiseconds) throws IOException {
+        int left = 0, top = 0, right = 63, bottom = 31;
+        if (!first) {
+            left = 64;
+            top = 32;
+            right = -1;
+            bottom = -1;
+            for (int i = 0; i < display.length; i++) {
+                if (display[i] == previous[i]) continue;
+                int x = i % 64, y = i / 64;
+                left = Math.min(left, x);
+                right = Math.max(right, x);
+                top = Math.min(top, y);
+                bottom = Math.max(bottom, y);
+            }
+            if (right < 0) {
+                //Nothing changed, a single pixel keeps the delay in the file
+                left = right = top = bottom = 0;
+            }
+        }
+        first = false;
+        System.arraycopy(display, 0, previous, 0, display.length);
+
+        //Graphic control extension: do not dispose, delay
+        out.write(0x21);
+        out.write(0xF9);
+        out.write(4);
+        out.write(1 << 2);
+        writeShort(centiseconds);
+        out.write(0);
+        out.write(0);
+
+        //Image descriptor
+        int width = (right - left + 1) * scale;
+        int height = (bottom - top + 1) * scale;
+        out.write(0x2C);
+        writeShort(left * scale);
+        writeShort(top * scale);
+        writeShort(width);
+        writeShort(height);
+        out.write(0);
+
+        out.write(MIN_CODE_SIZE);
+        compress(display, left * scale, top * scale, width, height);
+        out.write(0);
+    }
+
+    private void compress(byte[] display, int x0, int y0, int width, int height) throws IOException {
+        resetTable();
+        codeSize = MIN_CODE_SIZE + 1;
+        maxCode = (1 << codeSize) - 1;
+        output(CLEAR);
+
+        int prefix = -1;
+        for (int y = y0; y < y0 + height; y++) {
+            int row = (y / scale) * 64;
+            for (int x = x0; x < x0 + width; x++) {
+                int pixel = display[row + x / scale] & 1;
+                if (prefix < 0) {
+                    prefix = pixel;
+                    continue;
+                }
+                int code = child[prefix * 2 + pixel];
+                if (code != 0) {
+                    prefix = code;
+                    continue;
+                }
+                output(prefix);
+                if (nextCode < MAX_CODES) {
+                    child[prefix * 2 + pixel] = nextCode++;
+                } else {
+                    resetTable();
+                    clearing = true;
+                    output(CLEAR);
+                }
+                prefix = pixel;
+            }
+        }
+        output(prefix);
+        output(END_OF_INFORMATION);
+        if (bitCount > 0)
+            writeByte(bitBuffer & 0xFF);
+        bitBuffer = 0;
+        bitCount = 0;
+        flushBlock();
+    }
+
+    private void resetTable() {
+        Arrays.fill(child, 0);
+        nextCode = END_OF_INFORMATION + 1;
+    }
+
+    private void output(int code) throws IOException {
+        bitBuffer |= code << bitCount;
+        bitCount += codeSize;
+        while (bitCount >= 8) {
+            writeByte(bitBuffer & 0xFF);
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+        if (clearing) {
+            codeSize = MIN_CODE_SIZE + 1;
+            maxCode = (1 << codeSize) - 1;
+            clearing = false;
+        } else if (nextCode > maxCode) {
+            codeSize++;
+            maxCode = codeSize == 12 ? MAX_CODES : (1 << codeSize) - 1;
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == block.length)
+            flushBlock();
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockLength == 0) return;
+        out.write(blockLength);
+        out.write(block, 0, blockLength);
+        blockLength = 0;
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.write(0x3B);
+        out.close();
+    }
+}
@@ -0,0 +1,167 @@
+package emu;
+
+import chip.Quirks;
+import chip.RomLibrary;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.util.Locale;
+
+public class LibraryFrame extends JFrame {
+    private static final long serialVersionUID = 1L;
+
+    private final RomLibrary library;
+    private final TopMenu topMenu;
+
+    private DefaultListModel<RomLibrary.Entry> model;
+    private JList<RomLibrary.Entry> list;
+    private JTextField filter;
+    private JComboBox<String> quirks;
+    private JSpinner cycles;
+    private JLabel status;
+
+    LibraryFrame(RomLibrary library, TopMenu topMenu) {
+        this.library = library;
+        this.topMenu = topMenu;
+        setTitle("ROM Library");
+        setSize(520, 420);
+
+        Container contentPane = getContentPane();
+        contentPane.setLayout(new BorderLayout());
+
+        filter = new JTextField();
+        filter.addActionListener(action -> refresh());
+        contentPane.add(filter, "North");
+
+        model = new DefaultListModel<>();
+        list = new JList<>(model);
+        list.addListSelectionListener(event -> showPreferences());
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) play(false);
+            }
+        });
+        contentPane.add(new JScrollPane(list), "Center");
+
+        JPanel south = new JPanel(new GridLayout(3, 1, 3, 3));
+
+        JPanel preferences = new JPanel(new GridLayout(1, 4, 3, 3));
+        preferences.add(new JLabel("Quirks"));
+        quirks = new JComboBox<>();
+        for (Quirks preset : Quirks.PRESETS)
+            quirks.addItem(preset.name);
+        preferences.add(quirks);
+        preferences.add(new JLabel("Cycles per frame"));
+        preferences.add(cycles = new JSpinner(new SpinnerNumberModel(1, 1, 1000, 1)));
+        quirks.addActionListener(action -> savePreferences());
+        cycles.addChangeListener(event -> savePreferences());
+        south.add(preferences);
+
+        JPanel buttons = new JPanel(new GridLayout(1, 4, 3, 3));
+        JButton addFolder = new JButton("Add Folder");
+        addFolder.addActionListener(action -> addFolder());
+        JButton rescan = new JButton("Rescan");
+        rescan.addActionListener(action -> rescan());
+        JButton play = new JButton("Play");
+        play.addActionListener(action -> play(false));
+        JButton resume = new JButton("Load Last State");
+        resume.addActionListener(action -> play(true));
+        buttons.add(addFolder);
+        buttons.add(rescan);
+        buttons.add(play);
+        buttons.add(resume);
+        south.add(buttons);
+
+        south.add(status = new JLabel(" "));
+        contentPane.add(south, "South");
+
+        refresh();
+        rescan();
+    }
+
+    private void refresh() {
+        String text = filter.getText().trim().toLowerCase(Locale.ROOT);
+        model.clear();
+        for (RomLibrary.Entry entry : library.getEntries()) {
+            if (text.isEmpty() || entry.getName().toLowerCase(Locale.ROOT).contains(text))
+                model.addElement(entry);
+        }
+    }
+
+    private void showPreferences() {
+        RomLibrary.Entry entry = list.getSelectedValue();
+        if (entry == null) return;
+        quirks.setSelectedItem(entry.getQuirks());
+        cycles.setValue(entry.getCyclesPerFrame());
+    }
+
+    private void savePreferences() {
+        RomLibrary.Entry entry = list.getSelectedValue();
+        if (entry == null) return;
+        String selectedQuirks = (String) quirks.getSelectedItem();
+        int selectedCycles = (Integer) cycles.getValue();
+        if (selectedQuirks.equals(entry.getQuirks()) && selectedCycles == entry.getCyclesPerFrame())
+            return;
+        entry.setQuirks(selectedQuirks);
+        entry.setCyclesPerFrame(selectedCycles);
+        save();
+    }
+
+    private void addFolder() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+        library.addRoot(fileChooser.getSelectedFile().toPath());
+        rescan();
+    }
+
+    /**
+     * Rescans in the background, the cached index stays usable meanwhile
+     */
+    private void rescan() {
+        status.setText("Scanning...");
+        new SwingWorker<RomLibrary.ScanResult, Void>() {
+            @Override
+            protected RomLibrary.ScanResult doInBackground() throws IOException {
+                RomLibrary.ScanResult result = library.scan();
+                library.save();
+                return result;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    status.setText(get().toString());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    status.setText("Scan failed: " + e.getMessage());
+                }
+                refresh();
+            }
+        }.execute();
+    }
+
+    private void play(boolean lastState) {
+        RomLibrary.Entry entry = list.getSelectedValue();
+        if (entry == null) return;
+        if (lastState && entry.getLastSaveState() == null) {
+            JOptionPane.showMessageDialog(this, "No state was saved for this ROM", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        topMenu.playRom(entry, lastState);
+    }
+
+    private void save() {
+        try {
+            library.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+            status.setText("Could not save the library: " + e.getMessage());
+        }
+    }
+}
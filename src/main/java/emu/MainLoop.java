@@ -1,34 +1,115 @@
 package emu;
 
+import chip.Autosaver;
 import chip.Chip;
+import chip.FrameServer;
+import chip.RomAnalysis;
+import chip.RomImage;
+
+import java.io.IOException;
+import java.nio.file.Path;
 
 public class MainLoop extends Thread{
     private Chip chip8;
     private DisplayPanel frame;
     private DisplayFrame DisplayFrame;
     static int rate = 16;
+    /**
+     * Running gameplay capture, fed with every redrawn frame
+     */
+    static volatile FrameCapture capture;
+    /**
+     * Running stream to spectators, offered every redrawn frame
+     */
+    static volatile FrameServer server;
+    /**
+     * Decides what runs and what is drawn while the window is in the background
+     */
+    static final PowerSaver powerSaver = new PowerSaver();
+    /**
+     * The chip drew while the window was minimised, it is drawn when the window comes back
+     */
+    private boolean missedRedraw;
+    /**
+     * Saves the state every 600 frames and whenever the user saves, without blocking the loop
+     */
+    static final Autosaver autosaver =
+            new Autosaver(Path.of(System.getProperty("user.home"), ".chip8", "autosave.state"), 600);
+    /**
+     * Analysis of the ROM just loaded, the loop prewarms the chip with it before the next frame
+     */
+    private static volatile RomAnalysis analysis;
+    private final int[] keys = new int[16];
 
     public MainLoop()
     {
         chip8 = new Chip();
         chip8.init();
+        chip8.setFusion(true);
         DisplayFrame = new DisplayFrame(chip8);
         chip8.loadProgram("ROMS/IBM Logo.ch8");
+        prewarm("ROMS/IBM Logo.ch8");
+
+    }
 
+    /**
+     * Looks up the analysis of a ROM on a background thread, since it may read or write the disk cache.<br/>
+     * Call it once the ROM is loaded and its quirks are set, the loop then prewarms the chip between frames
+     *
+     * @param romPath The ROM just loaded
+     */
+    static void prewarm(String romPath) {
+        Thread thread = new Thread(() -> {
+            try {
+                analysis = RomAnalysis.cached(RomImage.load(romPath));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "rom-analysis");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     public void run(){
         while (true){
+            powerSaver.awaitFrame(chip8);
+            if (missedRedraw && powerSaver.shouldRender()) {
+                missedRedraw = false;
+                DisplayFrame.drawUpdates();
+            }
             if(!chip8.isPaused) {
-                chip8.run();
-                chip8.setKeyBuffer(DisplayFrame.getKeyBuffer());
+                //copy first so the recorded keys are the ones the chip sees
+                System.arraycopy(DisplayFrame.getKeyBuffer(), 0, keys, 0, keys.length);
+                RomAnalysis loaded = analysis;
+                if (loaded != null) {
+                    analysis = null;
+                    chip8.prewarm(loaded);
+                }
+                try {
+                    chip8.runFrame(keys);
+                } catch (Chip.Fault fault) {
+                    //Stop the program instead of the emulator, another ROM can still be loaded
+                    System.err.println(fault.getMessage());
+                    chip8.isPaused = true;
+                }
                 if (chip8.needsRedraw()) {
-                    DisplayFrame.drawUpdates();
+                    if (powerSaver.shouldRender())
+                        DisplayFrame.drawUpdates();
+                    else
+                        missedRedraw = true;
+                    FrameCapture capture = MainLoop.capture;
+                    if (capture != null)
+                        capture.publish(chip8.getDisplay());
+                    FrameServer server = MainLoop.server;
+                    if (server != null)
+                        server.publish(chip8.getDisplay());
                     chip8.removeDrawFlag();
                 }
                 }
+                //between frames, so the copy is consistent
+                autosaver.onFrame(chip8);
                 try {
-                    Thread.sleep(MainLoop.rate);
+                    Thread.sleep(powerSaver.frameDelay(MainLoop.rate));
                 } catch (InterruptedException e) {
                     e.printStackTrace();
             }
@@ -0,0 +1,201 @@
+package emu;
+
+import chip.Chip;
+import chip.Memory;
+import chip.MemoryWatch;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+
+/**
+ * A live hex view of the RAM and the V registers with a heat map of recent reads and writes.<br/>
+ * The chip marks the addresses it touches in a {@link MemoryWatch}, every refresh only redraws
+ * those cells and the ones still cooling down into a backing image, and repaints just their area.
+ * Writes glow red and data reads glow green, fading out over about a second.
+ */
+public class MemoryInspector extends JFrame {
+    private static final long serialVersionUID = 1L;
+
+    private static final int REFRESH_MILLIS = 33;
+    /**
+     * Heat kept per refresh, 0.9 fades a cell out in about a second
+     */
+    private static final float DECAY = 0.9f;
+    private static final float COLD = 0.03f;
+
+    private static final int COLUMNS = 32;
+    private static final int ROWS = 4096 / COLUMNS;
+    private static final int CELL_WIDTH = 22;
+    private static final int CELL_HEIGHT = 15;
+    private static final int LABEL_WIDTH = 40;
+    /**
+     * The V registers are the cells after the RAM
+     */
+    private static final int CELLS = 4096 + 16;
+    /**
+     * The V registers take the first row, the RAM starts after an empty one
+     */
+    private static final int RAM_TOP = 2 * CELL_HEIGHT;
+
+    private static final Color BACKGROUND = new Color(24, 24, 24);
+    private static final Color TEXT = new Color(200, 200, 200);
+    private static final Color LABEL = new Color(120, 120, 120);
+    private static final String[] HEX = new String[256];
+
+    static {
+        for (int i = 0; i < HEX.length; i++)
+            HEX[i] = String.format("%02X", i);
+    }
+
+    private final Chip chip;
+    private final MemoryWatch watch = new MemoryWatch();
+    private final long[] written = new long[4096 / 64];
+    private final long[] read = new long[4096 / 64];
+    /**
+     * Cells with heat left, they are redrawn every refresh until they are cold
+     */
+    private final long[] warm = new long[(CELLS + 63) / 64];
+    private final float[] writeHeat = new float[CELLS];
+    private final float[] readHeat = new float[CELLS];
+    private final char[] lastV = new char[16];
+
+    private final BufferedImage image;
+    private final Graphics2D graphics;
+    private final JComponent grid;
+    private final JLabel registers;
+    private final Timer timer;
+    private int dirtyTop;
+    private int dirtyBottom;
+
+    MemoryInspector(Chip chip) {
+        this.chip = chip;
+        setTitle("Memory Inspector");
+
+        image = new BufferedImage(LABEL_WIDTH + COLUMNS * CELL_WIDTH, RAM_TOP + ROWS * CELL_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        graphics = image.createGraphics();
+        graphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        graphics.setColor(BACKGROUND);
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        graphics.setColor(LABEL);
+        graphics.drawString("V", 4, CELL_HEIGHT - 4);
+        for (int row = 0; row < ROWS; row++)
+            graphics.drawString(String.format("%03X", row * COLUMNS), 4, RAM_TOP + (row + 1) * CELL_HEIGHT - 4);
+
+        grid = new JComponent() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void paintComponent(Graphics g) {
+                g.drawImage(image, 0, 0, null);
+            }
+        };
+        grid.setPreferredSize(new Dimension(image.getWidth(), image.getHeight()));
+        JScrollPane scroll = new JScrollPane(grid);
+        scroll.getVerticalScrollBar().setUnitIncrement(CELL_HEIGHT);
+
+        registers = new JLabel(" ");
+        registers.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        getContentPane().setLayout(new BorderLayout());
+        getContentPane().add(registers, "North");
+        getContentPane().add(scroll, "Center");
+        setSize(image.getWidth() + 40, 600);
+
+        //Everything is drawn once, from then on only what the chip touched
+        for (int cell = 0; cell < CELLS; cell++)
+            drawCell(cell, chip.getMemory());
+        System.arraycopy(chip.getMemory().V, 0, lastV, 0, lastV.length);
+
+        timer = new Timer(REFRESH_MILLIS, action -> refresh());
+        chip.setMemoryWatch(watch);
+        timer.start();
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                timer.stop();
+                if (chip.getMemoryWatch() == watch)
+                    chip.setMemoryWatch(null);
+            }
+        });
+    }
+
+    private void refresh() {
+        Memory memory = chip.getMemory();
+        dirtyTop = Integer.MAX_VALUE;
+        dirtyBottom = -1;
+
+        boolean anyWrites = watch.drainWrites(written);
+        boolean anyReads = watch.drainReads(read);
+        if (anyWrites || anyReads) {
+            for (int word = 0; word < written.length; word++) {
+                long bits = written[word] | read[word];
+                while (bits != 0) {
+                    int bit = Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    int address = word * 64 + bit;
+                    if ((written[word] & 1L << bit) != 0) writeHeat[address] = 1;
+                    if ((read[word] & 1L << bit) != 0) readHeat[address] = 1;
+                    warm[address >>> 6] |= 1L << address;
+                }
+            }
+        }
+        //Sixteen registers are cheaper to compare than to track in every opcode that sets one
+        for (int i = 0; i < lastV.length; i++) {
+            if (memory.V[i] != lastV[i]) {
+                lastV[i] = memory.V[i];
+                writeHeat[4096 + i] = 1;
+                warm[(4096 + i) >>> 6] |= 1L << (4096 + i);
+            }
+        }
+
+        for (int word = 0; word < warm.length; word++) {
+            long bits = warm[word];
+            while (bits != 0) {
+                int cell = word * 64 + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                drawCell(cell, memory);
+                writeHeat[cell] *= DECAY;
+                readHeat[cell] *= DECAY;
+                if (writeHeat[cell] < COLD && readHeat[cell] < COLD) {
+                    writeHeat[cell] = 0;
+                    readHeat[cell] = 0;
+                    warm[word] &= ~(1L << cell);
+                    //drawn once more without heat so no tint is left behind
+                    drawCell(cell, memory);
+                }
+            }
+        }
+        if (dirtyBottom >= 0)
+            grid.repaint(0, dirtyTop, image.getWidth(), dirtyBottom - dirtyTop);
+
+        registers.setText(String.format(" I=%03X  PC=%03X  SP=%d  DT=%02X  ST=%02X  %s",
+                (int) chip.getI(), (int) chip.getPc(), chip.getStackDepth(),
+                chip.getDelay_timer(), chip.getSound_timer(), chip.isPaused ? "Paused" : "Running"));
+    }
+
+    private void drawCell(int cell, Memory memory) {
+        int x;
+        int y;
+        int value;
+        if (cell >= 4096) {
+            x = LABEL_WIDTH + (cell - 4096) * CELL_WIDTH;
+            y = 0;
+            value = memory.V[cell - 4096];
+        } else {
+            x = LABEL_WIDTH + (cell % COLUMNS) * CELL_WIDTH;
+            y = RAM_TOP + (cell / COLUMNS) * CELL_HEIGHT;
+            value = memory.RAM[cell];
+        }
+        int red = BACKGROUND.getRed() + (int) (writeHeat[cell] * 200);
+        int green = BACKGROUND.getGreen() + (int) (readHeat[cell] * 160);
+        graphics.setColor(new Color(Math.min(255, red), Math.min(255, green), BACKGROUND.getBlue()));
+        graphics.fillRect(x, y, CELL_WIDTH, CELL_HEIGHT);
+        graphics.setColor(TEXT);
+        graphics.drawString(HEX[value & 0xFF], x + 3, y + CELL_HEIGHT - 4);
+        dirtyTop = Math.min(dirtyTop, y);
+        dirtyBottom = Math.max(dirtyBottom, y + CELL_HEIGHT);
+    }
+}
@@ -0,0 +1,59 @@
+package emu;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes every frame as a numbered PNG, with a frames.txt listing how long each one lasts
+ */
+public class PngSequenceWriter implements FrameCapture.Encoder {
+
+    private final Path directory;
+    private final int scale;
+    private final BufferedImage image;
+    private final int[] row;
+    private final PrintWriter durations;
+    private int index;
+
+    /**
+     * @param directory Where the PNGs go, created if needed
+     * @param scale     Size in pixels of one CHIP-8 pixel
+     * @param primary   Color of lit pixels
+     * @param secondary Color of unlit pixels
+     */
+    public PngSequenceWriter(Path directory, int scale, Color primary, Color secondary) throws IOException {
+        this.directory = directory;
+        this.scale = scale;
+        Files.createDirectories(directory);
+        IndexColorModel colors = new IndexColorModel(1, 2,
+                new byte[]{(byte) secondary.getRed(), (byte) primary.getRed()},
+                new byte[]{(byte) secondary.getGreen(), (byte) primary.getGreen()},
+                new byte[]{(byte) secondary.getBlue(), (byte) primary.getBlue()});
+        image = new BufferedImage(64 * scale, 32 * scale, BufferedImage.TYPE_BYTE_BINARY, colors);
+        row = new int[64 * scale];
+        durations = new PrintWriter(Files.newBufferedWriter(directory.resolve("frames.txt")));
+    }
+
+    @Override
+    public void writeFrame(byte[] display, int centiseconds) throws IOException {
+        for (int y = 0; y < 32 * scale; y++) {
+            for (int x = 0; x < row.length; x++)
+                row[x] = display[(y / scale) * 64 + x / scale] & 1;
+            image.getRaster().setPixels(0, y, row.length, 1, row);
+        }
+        String name = String.format("frame_%06d.png", index++);
+        ImageIO.write(image, "png", directory.resolve(name).toFile());
+        durations.println(name + " " + centiseconds * 10 + "ms");
+    }
+
+    @Override
+    public void close() throws IOException {
+        durations.close();
+    }
+}
@@ -0,0 +1,114 @@
+package emu;
+
+import chip.Chip;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What the main loop does while the emulator is in the background, minimised or without a focused window.<br/>
+ * A minimised window is never rendered. Beyond that the {@link Policy} decides, and whatever it is a program
+ * that sits in FX0A with its timers run down parks the loop until a key goes down or the window comes back,
+ * since until then no frame can change anything.
+ */
+public class PowerSaver {
+
+    public enum Policy {
+        KEEP_RUNNING("Keep Running"),
+        /**
+         * Runs a frame every {@link #SLOW_DIVIDER} frame times
+         */
+        SLOW_DOWN("Run Slowly"),
+        PAUSE("Pause");
+
+        public final String label;
+
+        Policy(String label) {
+            this.label = label;
+        }
+    }
+
+    static final int SLOW_DIVIDER = 4;
+    /**
+     * A parked loop still looks around this often, in case a wake up was missed
+     */
+    private static final long PARK_NANOS = 1_000_000_000L;
+
+    private volatile Policy policy = Policy.KEEP_RUNNING;
+    private volatile boolean minimised;
+    private volatile boolean focused = true;
+    private volatile Thread loop;
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+        wake();
+    }
+
+    void setMinimised(boolean minimised) {
+        this.minimised = minimised;
+        wake();
+    }
+
+    /**
+     * @param focused True if one of the emulator's windows has the focus
+     */
+    void setFocused(boolean focused) {
+        this.focused = focused;
+        wake();
+    }
+
+    /**
+     * A key went down, a program waiting for one has to run
+     */
+    void onInput() {
+        wake();
+    }
+
+    private void wake() {
+        Thread loop = this.loop;
+        if (loop != null)
+            LockSupport.unpark(loop);
+    }
+
+    public boolean isBackground() {
+        return minimised || !focused;
+    }
+
+    /**
+     * @return False while there is nothing to see
+     */
+    public boolean shouldRender() {
+        return !minimised;
+    }
+
+    /**
+     * Called by the main loop before a frame, returns once the frame should run
+     *
+     * @param chip The chip about to run
+     */
+    void awaitFrame(Chip chip) {
+        loop = Thread.currentThread();
+        while (isBackground() && (policy == Policy.PAUSE || isIdle(chip)))
+            LockSupport.parkNanos(this, PARK_NANOS);
+    }
+
+    /**
+     * @return True if frames can be skipped without the program noticing: it is paused, or it waits for a key
+     * and there is no timer to count down or input log to keep in step
+     */
+    private static boolean isIdle(Chip chip) {
+        return chip.isPaused || chip.isWaitingForKey() && chip.getDelay_timer() == 0 && chip.getSound_timer() == 0
+                && chip.getRecorder() == null;
+    }
+
+    /**
+     * @param rate Milliseconds between frames in the foreground
+     * @return Milliseconds to wait after a frame
+     */
+    int frameDelay(int rate) {
+        return isBackground() && policy == Policy.SLOW_DOWN ? rate * SLOW_DIVIDER : rate;
+    }
+}
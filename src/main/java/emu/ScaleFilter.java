@@ -0,0 +1,120 @@
+package emu;
+
+import java.util.Arrays;
+
+/**
+ * How the 64x32 display is blown up to the window.<br/>
+ * Every filter is a table from the 3x3 neighbourhood of a pixel, 9 bits from the top left one down to the
+ * bottom right one, to the subpixels it becomes, plus a shading of the pixels inside a cell.
+ */
+public enum ScaleFilter {
+    NEAREST("Nearest", 1),
+    /**
+     * Rounds off diagonal steps by copying a neighbour into a corner, AdvMAME2x
+     */
+    SCALE2X("Scale2x", 2),
+    SCALE3X("Scale3x", 3),
+    /**
+     * Dims the bottom third of every lit pixel like the gaps between CRT lines
+     */
+    SCANLINES("Scanlines", 1),
+    /**
+     * Blends the last row and column of every pixel into the other color
+     */
+    GRID("Pixel Grid", 1);
+
+    private static final int A = 1 << 8, B = 1 << 7, C = 1 << 6, D = 1 << 5, E = 1 << 4, F = 1 << 3, G = 1 << 2, H = 1 << 1, I = 1;
+
+    public final String label;
+    /**
+     * Subpixels per side a pixel becomes, the output is scaled by a multiple of it
+     */
+    public final int scale;
+    /**
+     * Subpixels of every neighbourhood, bit y * scale + x is set for a lit subpixel
+     */
+    final int[] subpixels = new int[512];
+
+    ScaleFilter(String label, int scale) {
+        this.label = label;
+        this.scale = scale;
+        for (int neighbourhood = 0; neighbourhood < subpixels.length; neighbourhood++)
+            subpixels[neighbourhood] = subpixels(neighbourhood);
+    }
+
+    private int subpixels(int n) {
+        boolean a = (n & A) != 0, b = (n & B) != 0, c = (n & C) != 0;
+        boolean d = (n & D) != 0, e = (n & E) != 0, f = (n & F) != 0;
+        boolean g = (n & G) != 0, h = (n & H) != 0, i = (n & I) != 0;
+        if (scale == 1)
+            return e ? 1 : 0;
+        boolean[] out = new boolean[scale * scale];
+        Arrays.fill(out, e);
+        if (b != h && d != f) {
+            if (scale == 2) {
+                out[0] = d == b ? d : e;
+                out[1] = b == f ? f : e;
+                out[2] = d == h ? d : e;
+                out[3] = h == f ? f : e;
+            } else {
+                out[0] = d == b ? d : e;
+                out[1] = (d == b && e != c) || (b == f && e != a) ? b : e;
+                out[2] = b == f ? f : e;
+                out[3] = (d == b && e != g) || (d == h && e != a) ? d : e;
+                out[5] = (b == f && e != i) || (h == f && e != c) ? f : e;
+                out[6] = d == h ? d : e;
+                out[7] = (d == h && e != i) || (h == f && e != g) ? h : e;
+                out[8] = h == f ? f : e;
+            }
+        }
+        int bits = 0;
+        for (int k = 0; k < out.length; k++)
+            if (out[k])
+                bits |= 1 << k;
+        return bits;
+    }
+
+    /**
+     * Color of a pixel inside a cell
+     *
+     * @param lit       Whether the subpixel it belongs to is on
+     * @param x         Column in the cell of one source pixel
+     * @param y         Row in the cell
+     * @param size      Width and height of the cell
+     * @param primary   Color of lit pixels
+     * @param secondary Color of the rest
+     */
+    int shade(boolean lit, int x, int y, int size, int primary, int secondary) {
+        int color = lit ? primary : secondary;
+        switch (this) {
+            case SCANLINES:
+                if (lit && size >= 2 && y >= size - Math.max(1, size / 3))
+                    return mix(primary, secondary, 128);
+                return color;
+            case GRID:
+                if (size >= 3 && (x == size - 1 || y == size - 1))
+                    return mix(color, lit ? secondary : primary, 64);
+                return color;
+            default:
+                return color;
+        }
+    }
+
+    /**
+     * @param weight How much of the second color, out of 256
+     */
+    private static int mix(int first, int second, int weight) {
+        int mixed = 0;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int from = (first >> shift) & 0xFF;
+            int to = (second >> shift) & 0xFF;
+            mixed |= (from + ((to - from) * weight >> 8)) << shift;
+        }
+        return mixed;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
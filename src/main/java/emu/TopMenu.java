@@ -1,11 +1,24 @@
 package emu;
 
 import chip.Chip;
+import chip.FrameServer;
+import chip.InputLatency;
+import chip.InputLog;
+import chip.Quirks;
+import chip.Timing;
+import chip.RomImage;
+import chip.RomLibrary;
+import chip.Profiler;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
 import java.text.NumberFormat;
@@ -20,11 +33,19 @@ public class TopMenu {
     private JMenuBar topMenu;
     private String currentRom = "ROMS/IBM Logo.ch8";
 
-    private JMenu file, options, memoryView;
-    private JMenuItem openRom, saveState, loadState, changeControls, changeColors, changeClockSpeed, resetRom, viewRam;
+    private JMenu file, options, memoryView, tools;
+    private JMenuItem openRom, romLibrary, saveState, loadState, loadAutosave, changeControls, changeColors, changeClockSpeed, resetRom, viewRam, inspectMemory;
+    private JCheckBoxMenuItem vipTiming, measureLatency, latencyOverlay;
+    private JMenuItem latencyHistogram;
+    private JMenu filters;
+    private final List<JRadioButtonMenuItem> filterItems = new ArrayList<>();
+    private JMenu background;
+    private final List<JRadioButtonMenuItem> backgroundItems = new ArrayList<>();
+    private JMenuItem toggleProfiler, exportFlameGraph, exportProfileCsv, openDebugger, toggleRecording, toggleCapture, toggleStreaming, openWall, openDisassembly;
 
     private DisplayFrame displayFrame;
     private Chip chip;
+    private RomLibrary library;
 
     List<Character> controls;
 
@@ -39,18 +60,24 @@ public class TopMenu {
         topMenu = new JMenuBar();
         file = new JMenu("File");
         openRom = new JMenuItem("Open ROM");
+        romLibrary = new JMenuItem("ROM Library");
         resetRom = new JMenuItem("Reset ROM");
         saveState = new JMenuItem("Save State");
         loadState = new JMenuItem("Load State");
+        loadAutosave = new JMenuItem("Load Autosave");
 
         file.add(openRom);
+        file.add(romLibrary);
         file.add(saveState);
         file.add(loadState);
+        file.add(loadAutosave);
         file.add(resetRom);
 
         openRom.addActionListener(displayFrame);
+        romLibrary.addActionListener(displayFrame);
         saveState.addActionListener(displayFrame);
         loadState.addActionListener(displayFrame);
+        loadAutosave.addActionListener(displayFrame);
         resetRom.addActionListener(displayFrame);
 
         options = new JMenu("Options");
@@ -60,21 +87,91 @@ public class TopMenu {
 
         options.add(changeControls);
         options.add(changeColors);
+        vipTiming = new JCheckBoxMenuItem("COSMAC VIP Timing");
         options.add(changeClockSpeed);
+        options.add(vipTiming);
+
+        filters = new JMenu("Filter");
+        ButtonGroup filterGroup = new ButtonGroup();
+        for (ScaleFilter filter : ScaleFilter.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(filter.label, filter == displayFrame.getFilter());
+            filterGroup.add(item);
+            filters.add(item);
+            filterItems.add(item);
+            item.addActionListener(displayFrame);
+        }
+        options.add(filters);
+
+        background = new JMenu("In Background");
+        ButtonGroup backgroundGroup = new ButtonGroup();
+        for (PowerSaver.Policy policy : PowerSaver.Policy.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(policy.label, policy == MainLoop.powerSaver.getPolicy());
+            backgroundGroup.add(item);
+            background.add(item);
+            backgroundItems.add(item);
+            item.addActionListener(displayFrame);
+        }
+        options.add(background);
 
         changeControls.addActionListener(displayFrame);
         changeClockSpeed.addActionListener(displayFrame);
         changeColors.addActionListener(displayFrame);
+        vipTiming.addActionListener(displayFrame);
 
         memoryView = new JMenu("Memory View");
         viewRam = new JMenuItem("RAM usage");
 
+        inspectMemory = new JMenuItem("Inspector");
+
         memoryView.add(viewRam);
+        memoryView.add(inspectMemory);
         viewRam.addActionListener(displayFrame);
+        inspectMemory.addActionListener(displayFrame);
+
+        tools = new JMenu("Tools");
+        toggleProfiler = new JMenuItem("Start Profiler");
+        exportFlameGraph = new JMenuItem("Export Flame Graph");
+        exportProfileCsv = new JMenuItem("Export Profile CSV");
+        openDebugger = new JMenuItem("Debugger");
+        toggleRecording = new JMenuItem("Record Input");
+        toggleCapture = new JMenuItem("Start Capture");
+        toggleStreaming = new JMenuItem("Start Streaming");
+        openWall = new JMenuItem("ROM Wall");
+        openDisassembly = new JMenuItem("Disassembly");
+
+        tools.add(toggleProfiler);
+        tools.add(exportFlameGraph);
+        tools.add(exportProfileCsv);
+        tools.add(openDebugger);
+        tools.add(toggleRecording);
+        tools.add(toggleCapture);
+        tools.add(toggleStreaming);
+        tools.add(openWall);
+        measureLatency = new JCheckBoxMenuItem("Measure Input Latency");
+        latencyOverlay = new JCheckBoxMenuItem("Latency Overlay");
+        latencyHistogram = new JMenuItem("Latency Histogram");
+        tools.add(measureLatency);
+        tools.add(latencyOverlay);
+        tools.add(latencyHistogram);
+        measureLatency.addActionListener(displayFrame);
+        latencyOverlay.addActionListener(displayFrame);
+        latencyHistogram.addActionListener(displayFrame);
+        tools.add(openDisassembly);
+
+        toggleProfiler.addActionListener(displayFrame);
+        exportFlameGraph.addActionListener(displayFrame);
+        exportProfileCsv.addActionListener(displayFrame);
+        openDebugger.addActionListener(displayFrame);
+        toggleRecording.addActionListener(displayFrame);
+        toggleCapture.addActionListener(displayFrame);
+        toggleStreaming.addActionListener(displayFrame);
+        openWall.addActionListener(displayFrame);
+        openDisassembly.addActionListener(displayFrame);
 
         topMenu.add(file);
         topMenu.add(options);
         topMenu.add(memoryView);
+        topMenu.add(tools);
         displayFrame.setJMenuBar(topMenu);
     }
 
@@ -120,7 +217,8 @@ public class TopMenu {
         List<Component> children = Arrays.asList(file.getMenuComponents());
         JFileChooser fileChooser = null;
         int option = 0;
-        if (children.contains(actionEvent.getSource())) {
+        if (children.contains(actionEvent.getSource()) && actionEvent.getSource() != romLibrary
+                && actionEvent.getSource() != loadAutosave) {
             if(actionEvent.getSource() != resetRom) {
                 chip.isPaused = true;
                 fileChooser = new JFileChooser();
@@ -138,13 +236,17 @@ public class TopMenu {
                     if (actionEvent.getSource() == openRom) {
                         currentRom = filepath;
                         chip.loadProgram(filepath);
+                        MainLoop.prewarm(filepath);
                         displayFrame.drawUpdates();
                     } else if (actionEvent.getSource() == saveState) {
-                        chip.saveState(fileChooser.getSelectedFile().getPath());
+                        //Written by the autosave thread once the current frame is done
+                        MainLoop.autosaver.requestSave(fileChooser.getSelectedFile().toPath());
+                        rememberSaveState(fileChooser.getSelectedFile().getPath());
                     } else if (actionEvent.getSource() == loadState) {
                         chip.loadState(fileChooser.getSelectedFile().getPath());
                     } else if (actionEvent.getSource() == resetRom) {
                         chip.loadProgram(currentRom);
+                        MainLoop.prewarm(currentRom);
                     }
                 } catch (Exception ex) {
                     ex.printStackTrace();
@@ -154,7 +256,11 @@ public class TopMenu {
             chip.isPaused = false;
         }
 
-        if (actionEvent.getSource() == changeControls) {
+        if (actionEvent.getSource() == romLibrary) {
+            openLibrary();
+        } else if (actionEvent.getSource() == loadAutosave) {
+            loadAutosave();
+        } else if (actionEvent.getSource() == changeControls) {
             openControlsWindow();
         } else if (actionEvent.getSource() == changeClockSpeed) {
             openClockDialog();
@@ -162,6 +268,255 @@ public class TopMenu {
             openColorPicker();
         } else if (actionEvent.getSource() == viewRam){
             viewRamUsage();
+        } else if (actionEvent.getSource() == vipTiming) {
+            //the model decides how much runs in a frame, the loop only has to keep 60 frames a second
+            chip.setTiming(vipTiming.isSelected() ? Timing.COSMAC_VIP : null);
+            //the model runs opcodes one by one instead of fused
+            MainLoop.prewarm(currentRom);
+            if (vipTiming.isSelected())
+                MainLoop.rate = 1000 / 60;
+        } else if (filterItems.contains(actionEvent.getSource())) {
+            displayFrame.setFilter(ScaleFilter.values()[filterItems.indexOf(actionEvent.getSource())]);
+        } else if (backgroundItems.contains(actionEvent.getSource())) {
+            MainLoop.powerSaver.setPolicy(PowerSaver.Policy.values()[backgroundItems.indexOf(actionEvent.getSource())]);
+        } else if (actionEvent.getSource() == inspectMemory) {
+            new MemoryInspector(chip).setVisible(true);
+        } else if (actionEvent.getSource() == toggleProfiler) {
+            toggleProfiler();
+        } else if (actionEvent.getSource() == exportFlameGraph || actionEvent.getSource() == exportProfileCsv) {
+            exportProfile(actionEvent.getSource() == exportFlameGraph);
+        } else if (actionEvent.getSource() == openDebugger) {
+            openDebugger();
+        } else if (actionEvent.getSource() == toggleRecording) {
+            toggleRecording();
+        } else if (actionEvent.getSource() == toggleCapture) {
+            toggleCapture();
+        } else if (actionEvent.getSource() == toggleStreaming) {
+            toggleStreaming();
+        } else if (actionEvent.getSource() == measureLatency) {
+            chip.setLatency(measureLatency.isSelected() ? new InputLatency() : null);
+        } else if (actionEvent.getSource() == latencyOverlay) {
+            displayFrame.setLatencyOverlay(latencyOverlay.isSelected());
+        } else if (actionEvent.getSource() == latencyHistogram) {
+            showLatencyHistogram();
+        } else if (actionEvent.getSource() == openWall) {
+            openWall();
+        } else if (actionEvent.getSource() == openDisassembly) {
+            openDisassembly();
+        }
+    }
+
+    /**
+     * Starts streaming the display to spectators on a TCP port, they connect with chip.FrameClient
+     */
+    private void toggleStreaming() {
+        try {
+            FrameServer server = MainLoop.server;
+            if (server != null) {
+                MainLoop.server = null;
+                server.close();
+                toggleStreaming.setText("Start Streaming");
+                return;
+            }
+            String port = JOptionPane.showInputDialog(displayFrame, "Port", FrameServer.DEFAULT_PORT);
+            if (port == null)
+                return;
+            server = new FrameServer(Integer.parseInt(port.trim()));
+            server.publish(chip.getDisplay());
+            MainLoop.server = server;
+            toggleStreaming.setText("Stop Streaming (port " + server.getPort() + ")");
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(displayFrame, "Could not start streaming: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Shows the disassembly of the loaded ROM
+     */
+    private void openDisassembly() {
+        try {
+            new DisassemblyFrame(currentRom, RomImage.load(currentRom)).setVisible(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(displayFrame, "Could not read " + currentRom + ": " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Opens a wall of machines, one per chosen ROM or input log, or per file of a chosen folder
+     */
+    private void openWall() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        fileChooser.setMultiSelectionEnabled(true);
+        if (fileChooser.showOpenDialog(displayFrame) != JFileChooser.APPROVE_OPTION)
+            return;
+        try {
+            List<Path> roots = new ArrayList<>();
+            for (File selected : fileChooser.getSelectedFiles())
+                roots.add(selected.toPath());
+            new WallFrame(WallFrame.collect(roots), WallFrame.DEFAULT_CYCLES_PER_FRAME).setVisible(true);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(displayFrame, "Could not open the ROM wall: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Starts capturing to a .gif file, or to a directory of PNGs for any other name
+     */
+    private void toggleCapture() {
+        try {
+            FrameCapture capture = MainLoop.capture;
+            if (capture != null) {
+                MainLoop.capture = null;
+                capture.close();
+                toggleCapture.setText("Start Capture");
+                return;
+            }
+            JFileChooser fileChooser = new JFileChooser();
+            if (fileChooser.showSaveDialog(displayFrame) != JFileChooser.APPROVE_OPTION)
+                return;
+            File target = fileChooser.getSelectedFile();
+            FrameCapture.Encoder encoder = target.getName().toLowerCase(Locale.ROOT).endsWith(".gif")
+                    ? new GifWriter(target.toPath(), 4, DisplayPanel.primaryColor, DisplayPanel.secondaryColor)
+                    : new PngSequenceWriter(target.toPath(), 4, DisplayPanel.primaryColor, DisplayPanel.secondaryColor);
+            MainLoop.capture = new FrameCapture(encoder, 64);
+            MainLoop.capture.publish(chip.getDisplay());
+            toggleCapture.setText("Stop Capture");
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(displayFrame, "Could not write the capture", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Restarts the current ROM and records its input, or stops the running recording
+     */
+    private void toggleRecording() {
+        chip.isPaused = true;
+        try {
+            InputLog.Recorder recorder = chip.getRecorder();
+            if (recorder != null) {
+                chip.setRecorder(null);
+                recorder.close();
+                toggleRecording.setText("Record Input");
+                return;
+            }
+            JFileChooser fileChooser = new JFileChooser();
+            if (fileChooser.showSaveDialog(displayFrame) != JFileChooser.APPROVE_OPTION)
+                return;
+            chip.loadProgram(currentRom);
+            MainLoop.prewarm(currentRom);
+            chip.setSeed(System.nanoTime());
+            chip.setRecorder(new InputLog.Recorder(fileChooser.getSelectedFile().toPath(), currentRom, chip));
+            toggleRecording.setText("Stop Recording");
+            displayFrame.drawUpdates();
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(displayFrame, "Could not write the input log", "Error", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            chip.isPaused = false;
+        }
+    }
+
+    private void loadAutosave() {
+        Path autosave = MainLoop.autosaver.getAutosaveFile();
+        if (!Files.exists(autosave)) {
+            JOptionPane.showMessageDialog(displayFrame, "Nothing was autosaved yet", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        chip.isPaused = true;
+        chip.loadState(autosave.toString());
+        displayFrame.drawUpdates();
+        chip.isPaused = false;
+    }
+
+    private void openDebugger() {
+        if (chip.getDebugger() != null)
+            return;
+        JFrame debugger = new DebuggerPanel(displayFrame, chip);
+        debugger.setVisible(true);
+    }
+
+    private void toggleProfiler() {
+        if (chip.getProfiler() == null) {
+            chip.setProfiler(new Profiler());
+            toggleProfiler.setText("Stop Profiler");
+        } else {
+            chip.setProfiler(null);
+            toggleProfiler.setText("Start Profiler");
+        }
+    }
+
+    private void exportProfile(boolean collapsed) {
+        Profiler profiler = chip.getProfiler();
+        if (profiler == null) {
+            JOptionPane.showMessageDialog(displayFrame, "The profiler is not running", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        if (fileChooser.showSaveDialog(displayFrame) != JFileChooser.APPROVE_OPTION)
+            return;
+        try (Writer out = new FileWriter(fileChooser.getSelectedFile())) {
+            if (collapsed) profiler.writeCollapsed(out);
+            else profiler.writeCsv(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(displayFrame, "Could not write the profile", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Loads the ROM library index from the user's home, on first use
+     */
+    private RomLibrary getLibrary() throws IOException {
+        if (library == null) {
+            library = RomLibrary.load(RomLibrary.defaultIndex());
+            if (library.getRoots().isEmpty())
+                library.addRoot(Path.of("ROMS"));
+        }
+        return library;
+    }
+
+    private void openLibrary() {
+        try {
+            JFrame libraryFrame = new LibraryFrame(getLibrary(), this);
+            libraryFrame.setVisible(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(displayFrame, "Could not read the ROM library", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Starts a ROM from the library with its stored preferences
+     *
+     * @param entry     The ROM
+     * @param lastState True to continue from the last state saved for it
+     */
+    void playRom(RomLibrary.Entry entry, boolean lastState) {
+        chip.isPaused = true;
+        currentRom = entry.path;
+        chip.loadProgram(entry.path);
+        chip.setCyclesPerFrame(entry.getCyclesPerFrame());
+        chip.setQuirks(Quirks.named(entry.getQuirks()));
+        MainLoop.prewarm(entry.path);
+        if (lastState)
+            chip.loadState(entry.getLastSaveState());
+        displayFrame.drawUpdates();
+        chip.isPaused = false;
+    }
+
+    private void rememberSaveState(String path) {
+        try {
+            RomLibrary.Entry entry = getLibrary().find(currentRom);
+            if (entry == null) return;
+            entry.setLastSaveState(path);
+            library.save();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -187,6 +542,24 @@ public class TopMenu {
         chip.isPaused = false;
     }
 
+    /**
+     * Shows the key press to paint latencies measured so far
+     */
+    private void showLatencyHistogram() {
+        InputLatency latency = chip.getLatency();
+        if (latency == null) {
+            JOptionPane.showMessageDialog(displayFrame, "Turn on Tools > Measure Input Latency and press some keys first",
+                    "Input Latency", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        JTextArea text = new JTextArea(latency.histogram());
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        text.setEditable(false);
+        JScrollPane scroll = new JScrollPane(text);
+        scroll.setPreferredSize(new Dimension(720, 400));
+        JOptionPane.showMessageDialog(displayFrame, scroll, "Input Latency", JOptionPane.PLAIN_MESSAGE);
+    }
+
     private void viewRamUsage(){
         JFrame ramMessage = new JFrame();
         Runtime runtime = Runtime.getRuntime();
@@ -0,0 +1,141 @@
+package emu;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Renders the display through a {@link ScaleFilter} straight into the pixels of an image.<br/>
+ * Every row of every cell the filter can produce is built once into a table when the filter, the scale or
+ * the colors change, so a frame is one table lookup per pixel and one array copy per output row of it.
+ * Large outputs are split into bands of source rows rendered on a small shared pool.
+ */
+public class Upscaler {
+
+    /**
+     * Below this many output pixels one thread is faster than handing out bands
+     */
+    private static final int PARALLEL_PIXELS = 256 * 1024;
+    private static final int THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService pool = Executors.newFixedThreadPool(THREADS, task -> {
+        Thread thread = new Thread(task, "upscaler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ScaleFilter filter;
+    private int factor;
+    private int primary;
+    private int secondary;
+    /**
+     * Output row y of a cell whose subpixel row y / (factor / scale) has the given bits, factor pixels long
+     */
+    private int[][][] spans;
+
+    private final long[] rows = new long[32];
+    private final List<Callable<Void>> bands = new ArrayList<>();
+    private BufferedImage image;
+    private int[] pixels;
+
+    /**
+     * @return The largest factor of the filter's scale that fits the area, at least the scale
+     */
+    public static int factorFor(ScaleFilter filter, int width, int height) {
+        int fit = Math.max(1, Math.min(width / 64, height / 32));
+        return Math.max(filter.scale, fit - fit % filter.scale);
+    }
+
+    /**
+     * Renders a display
+     *
+     * @param display   The 64x32 display
+     * @param filter    The filter
+     * @param factor    Output pixels per display pixel, a multiple of the filter's scale
+     * @param primary   RGB of lit pixels
+     * @param secondary RGB of the rest
+     * @return An image of 64 * factor by 32 * factor, reused by the next call with the same factor
+     */
+    public BufferedImage render(byte[] display, ScaleFilter filter, int factor, int primary, int secondary) {
+        if (filter != this.filter || factor != this.factor || primary != this.primary || secondary != this.secondary)
+            buildSpans(filter, factor, primary, secondary);
+        if (image == null || image.getWidth() != 64 * factor) {
+            image = new BufferedImage(64 * factor, 32 * factor, BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+
+        for (int row = 0; row < 32; row++) {
+            long bits = 0;
+            for (int column = 0; column < 64; column++)
+                bits = bits << 1 | (display[row * 64 + column] & 1);
+            rows[row] = bits;
+        }
+
+        int threads = Math.min(THREADS, pixels.length / PARALLEL_PIXELS + 1);
+        if (threads == 1) {
+            renderRows(0, 32);
+            return image;
+        }
+        bands.clear();
+        for (int band = 0; band < threads; band++) {
+            int from = 32 * band / threads;
+            int to = 32 * (band + 1) / threads;
+            bands.add(() -> {
+                renderRows(from, to);
+                return null;
+            });
+        }
+        try {
+            pool.invokeAll(bands);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return image;
+    }
+
+    private void buildSpans(ScaleFilter filter, int factor, int primary, int secondary) {
+        int scale = filter.scale;
+        int cell = factor / scale;
+        int[][][] spans = new int[1 << scale][factor][factor];
+        for (int bits = 0; bits < 1 << scale; bits++)
+            for (int y = 0; y < factor; y++)
+                for (int x = 0; x < factor; x++)
+                    spans[bits][y][x] = filter.shade((bits >> (x / cell) & 1) != 0, x, y, factor, primary, secondary);
+        this.spans = spans;
+        this.filter = filter;
+        this.factor = factor;
+        this.primary = primary;
+        this.secondary = secondary;
+    }
+
+    /**
+     * Renders source rows [from, to)
+     */
+    private void renderRows(int from, int to) {
+        int scale = filter.scale;
+        int cell = factor / scale;
+        int subrowMask = (1 << scale) - 1;
+        int width = 64 * factor;
+        for (int row = from; row < to; row++) {
+            //off the edge the border pixels repeat
+            long above = rows[Math.max(0, row - 1)];
+            long middle = rows[row];
+            long below = rows[Math.min(31, row + 1)];
+            for (int column = 0; column < 64; column++) {
+                int shift = 63 - column;
+                int left = column == 0 ? shift : shift + 1;
+                int right = column == 63 ? shift : shift - 1;
+                int neighbourhood = (int) ((above >>> left & 1) << 8 | (above >>> shift & 1) << 7 | (above >>> right & 1) << 6
+                        | (middle >>> left & 1) << 5 | (middle >>> shift & 1) << 4 | (middle >>> right & 1) << 3
+                        | (below >>> left & 1) << 2 | (below >>> shift & 1) << 1 | (below >>> right & 1));
+                int subpixels = filter.subpixels[neighbourhood];
+                int offset = row * factor * width + column * factor;
+                for (int y = 0; y < factor; y++, offset += width)
+                    System.arraycopy(spans[subpixels >> (y / cell * scale) & subrowMask][y], 0, pixels, offset, factor);
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package emu;
+
+import chip.Chip;
+import chip.InputLog;
+import chip.Quirks;
+import chip.RomImage;
+import chip.RomLibrary;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Runs many machines at once and shows them as a wall of tiles.<br/>
+ * The machines are split over a few emulation threads, each publishes a copy of its display
+ * when it changed. One render thread copies only the tiles that were published since the last refresh
+ * into a single image, which is drawn with one drawImage, so a wall of 64 machines costs
+ * about as much to show as one.<br/>
+ * Input logs replay their recorded keys, ROMs run without input.<br/>
+ * Usage: WallFrame [--cycles n] [rom, input log or folder...]
+ */
+public class WallFrame extends JFrame {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Opcodes per frame of ROMs started without a recording, enough for most games to move
+     */
+    static final int DEFAULT_CYCLES_PER_FRAME = 10;
+    private static final long FRAME_NANOS = 1_000_000_000L / 60;
+    /**
+     * Pixels between two tiles
+     */
+    private static final int GAP = 1;
+    private static final int GAP_COLOR = 0x404040;
+
+    /**
+     * One machine of the wall
+     */
+    private static final class Tile {
+        final String name;
+        final Chip chip = new Chip();
+        final InputLog.Player player;
+        final int[] keys = new int[16];
+        final int x;
+        final int y;
+        /**
+         * Last display the machine published, guarded by the tile
+         */
+        final byte[] published = new byte[64 * 32];
+        volatile long sequence;
+        /**
+         * Sequence the render thread last drew, only used by the render thread
+         */
+        long drawn = -1;
+        boolean stopped;
+
+        Tile(String name, InputLog.Player player, int x, int y) {
+            this.name = name;
+            this.player = player;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * Runs one frame, called by the emulation thread that owns the tile
+         */
+        void runFrame() {
+            if (stopped) return;
+            try {
+                if (player != null && !player.nextFrame(keys)) {
+                    stopped = true; //the recording ended, its last frame stays on the wall
+                    return;
+                }
+                chip.runFrame(keys);
+            } catch (Chip.Fault fault) {
+                System.err.println(name + ": " + fault.getMessage());
+                stopped = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                stopped = true;
+            }
+            if (chip.needsRedraw()) {
+                synchronized (this) {
+                    System.arraycopy(chip.getDisplay(), 0, published, 0, published.length);
+                }
+                sequence++;
+                chip.removeDrawFlag();
+            }
+        }
+    }
+
+    private final List<Tile> tiles = new ArrayList<>();
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param files          ROMs and input logs, one tile each
+     * @param cyclesPerFrame Opcodes per frame of the ROMs, input logs use the recorded speed
+     */
+    public WallFrame(List<Path> files, int cyclesPerFrame) throws IOException {
+        if (files.isEmpty())
+            throw new IllegalArgumentException("No ROMs to show");
+        int columns = (int) Math.ceil(Math.sqrt(files.size()));
+        int rows = (files.size() + columns - 1) / columns;
+        image = new BufferedImage(columns * (64 + GAP) - GAP, rows * (32 + GAP) - GAP, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, GAP_COLOR);
+
+        for (Path file : files) {
+            int index = tiles.size();
+            Tile tile = file.toString().endsWith(".log") ? replayTile(file, index, columns)
+                    : romTile(file, index, columns, cyclesPerFrame);
+            tiles.add(tile);
+        }
+
+        JPanel panel = new JPanel() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void paintComponent(Graphics g) {
+                synchronized (image) {
+                    g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+                }
+            }
+        };
+        //As large as fits, in whole multiples of the image so the pixels stay square
+        Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+        int scale = Math.max(1, Math.min(10, Math.min(screen.width * 9 / 10 / image.getWidth(),
+                screen.height * 8 / 10 / image.getHeight())));
+        panel.setPreferredSize(new Dimension(image.getWidth() * scale, image.getHeight() * scale));
+        add(panel);
+        setTitle("ROM Wall - " + tiles.size() + " machines");
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                stop();
+            }
+        });
+        pack();
+
+        int workers = Math.max(1, Math.min(tiles.size(), Runtime.getRuntime().availableProcessors() - 1));
+        for (int i = 0; i < workers; i++) {
+            int first = i;
+            threads.add(new Thread(() -> emulate(first, workers), "wall-emulation-" + i));
+        }
+        threads.add(new Thread(() -> render(panel), "wall-render"));
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static Tile romTile(Path file, int index, int columns, int cyclesPerFrame) throws IOException {
+        RomImage rom = RomImage.load(file.toString());
+        Tile tile = new Tile(file.getFileName().toString(), null, index % columns, index / columns);
+        tile.chip.setMuted(true);
+        tile.chip.setFusion(true);
+        tile.chip.loadProgram(rom);
+        tile.chip.setSeed(index);
+        tile.chip.setQuirks(Quirks.forPlatform(RomLibrary.detectPlatform(Files.readAllBytes(file))));
+        tile.chip.setCyclesPerFrame(cyclesPerFrame);
+        return tile;
+    }
+
+    private static Tile replayTile(Path log, int index, int columns) throws IOException {
+        InputLog.Player player = new InputLog.Player(log);
+        RomImage rom = RomImage.load(player.getRomPath());
+        if (!Arrays.equals(player.getRomHash(), rom.getSha1()))
+            throw new IOException(player.getRomPath() + " is not the ROM " + log + " was recorded with");
+        Tile tile = new Tile(log.getFileName().toString(), player, index % columns, index / columns);
+        tile.chip.setMuted(true);
+        tile.chip.setFusion(true);
+        tile.chip.loadProgram(rom);
+        tile.chip.setSeed(player.getSeed());
+        tile.chip.setQuirks(player.getQuirks());
+        tile.chip.setTiming(player.getTiming());
+        tile.chip.setCyclesPerFrame(player.getCyclesPerFrame());
+        return tile;
+    }
+
+    /**
+     * Runs every tile whose index is first plus a multiple of step, 60 frames a second
+     */
+    private void emulate(int first, int step) {
+        long next = System.nanoTime();
+        while (running) {
+            for (int i = first; i < tiles.size(); i += step)
+                tiles.get(i).runFrame();
+            next = pace(next);
+        }
+    }
+
+    /**
+     * Copies the tiles published since the last refresh into the image and repaints once if any changed
+     */
+    private void render(JPanel panel) {
+        int primary = DisplayPanel.primaryColor.getRGB();
+        int secondary = DisplayPanel.secondaryColor.getRGB();
+        int stride = image.getWidth();
+        long next = System.nanoTime();
+        while (running) {
+            //the colors can be changed from the options menu while the wall is open
+            boolean recolor = primary != DisplayPanel.primaryColor.getRGB() || secondary != DisplayPanel.secondaryColor.getRGB();
+            primary = DisplayPanel.primaryColor.getRGB();
+            secondary = DisplayPanel.secondaryColor.getRGB();
+            boolean changed = false;
+            for (Tile tile : tiles) {
+                long sequence = tile.sequence;
+                if (sequence == tile.drawn && !recolor) continue;
+                tile.drawn = sequence;
+                changed = true;
+                int origin = tile.y * (32 + GAP) * stride + tile.x * (64 + GAP);
+                synchronized (image) {
+                    synchronized (tile) {
+                        for (int y = 0; y < 32; y++) {
+                            int row = origin + y * stride;
+                            for (int x = 0; x < 64; x++)
+                                pixels[row + x] = tile.published[y * 64 + x] == 1 ? primary : secondary;
+                        }
+                    }
+                }
+            }
+            if (changed)
+                panel.repaint();
+            next = pace(next);
+        }
+    }
+
+    /**
+     * Waits for the next frame, a thread that fell far behind starts counting again instead of racing to catch up
+     *
+     * @param next When the frame that just ran was due
+     * @return When the next frame is due
+     */
+    private static long pace(long next) {
+        next += FRAME_NANOS;
+        long wait = next - System.nanoTime();
+        if (wait > 0)
+            LockSupport.parkNanos(wait);
+        else if (wait < -FRAME_NANOS * 10)
+            next = System.nanoTime();
+        return next;
+    }
+
+    /**
+     * Stops the machines, called when the window is closed
+     */
+    private void stop() {
+        running = false;
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Tile tile : tiles) {
+            if (tile.player == null) continue;
+            try {
+                tile.player.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Lists the ROMs and input logs of files and folders, in name order within a folder
+     *
+     * @param roots Files or folders
+     * @return One entry per tile
+     */
+    static List<Path> collect(List<Path> roots) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path root : roots) {
+            try (Stream<Path> list = Files.isDirectory(root) ? Files.list(root).sorted() : Stream.of(root)) {
+                for (Path file : (Iterable<Path>) list::iterator) {
+                    if (!Files.isRegularFile(file)) continue;
+                    if (file.toString().endsWith(".log") || Files.size(file) <= RomImage.MAX_SIZE)
+                        files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cycles = DEFAULT_CYCLES_PER_FRAME;
+        List<Path> roots = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--cycles"))
+                cycles = Integer.parseInt(args[++i]);
+            else
+                roots.add(Path.of(args[i]));
+        }
+        if (roots.isEmpty())
+            roots.add(Path.of("ROMS"));
+        List<Path> files = collect(roots);
+        int cyclesPerFrame = cycles;
+        SwingUtilities.invokeLater(() -> {
+            try {
+                WallFrame wall = new WallFrame(files, cyclesPerFrame);
+                wall.setDefaultCloseOperation(EXIT_ON_CLOSE);
+                wall.setVisible(true);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        });
+    }
+}
@@ -0,0 +1,96 @@
+package chip;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that the emulation loop allocates nothing once it is warmed up.<br/>
+ * Every bundled ROM runs on a headless chip with scripted keys, the bytes the thread allocates
+ * while it runs the measured frames must stay at zero.
+ */
+class AllocationBudgetTest {
+
+    private static final int WARMUP = 2000;
+    private static final int FRAMES = 5000;
+    private static final int CYCLES = 10;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @BeforeAll
+    static void enableCounter() {
+        assumeTrue(THREADS.isThreadAllocatedMemorySupported(), "This JVM can't measure allocations per thread");
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @TestFactory
+    Stream<DynamicTest> romsRunWithoutAllocating() throws IOException {
+        List<Path> roms;
+        try (Stream<Path> files = Files.list(Path.of("ROMS"))) {
+            roms = files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        return roms.stream().map(file -> DynamicTest.dynamicTest(file.getFileName().toString(),
+                () -> assertEquals(0, measure(RomImage.load(file.toString())),
+                        "Bytes allocated in " + FRAMES + " frames")));
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs a ROM and measures what the measured frames allocated
+     *
+     * @return Bytes allocated by the measured frames
+     */
+    private static long measure(RomImage rom) {
+        Chip chip = new Chip();
+        chip.setMuted(true);
+        chip.loadProgram(rom);
+        chip.setSeed(rom.getHash().hashCode());
+        chip.setCyclesPerFrame(CYCLES);
+
+        //Keys are scripted up front so producing them allocates nothing
+        SplittableRandom random = new SplittableRandom(rom.getHash().hashCode());
+        int[] masks = new int[WARMUP + FRAMES];
+        for (int frame = 0; frame < masks.length; frame += 1 + random.nextInt(30)) {
+            int mask = random.nextInt(3) == 0 ? 0 : 1 << random.nextInt(16);
+            for (int i = frame; i < Math.min(masks.length, frame + 10); i++)
+                masks[i] = mask;
+        }
+        int[] keys = new int[16];
+
+        //The warm-up fills the decode cache and lets the JIT compile the loop
+        run(chip, masks, 0, WARMUP, keys);
+        long bytes = run(chip, masks, WARMUP, masks.length, keys);
+        if (bytes > 0) {
+            //A one-off such as the JIT recompiling the loop doesn't happen twice, an allocation in the loop does
+            bytes = run(chip, masks, WARMUP, masks.length, keys);
+        }
+        return bytes;
+    }
+
+    private static long run(Chip chip, int[] masks, int from, int to, int[] keys) {
+        //What reading the counter itself costs, so it is not blamed on the chip
+        long overhead = -allocatedBytes() + allocatedBytes();
+        long before = allocatedBytes();
+        for (int frame = from; frame < to; frame++) {
+            InputLog.unmask(masks[frame], keys);
+            chip.runFrame(keys);
+        }
+        return Math.max(0, allocatedBytes() - before - overhead);
+    }
+}
@@ -0,0 +1,98 @@
+package chip;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Streams a ROM run to two viewers over loopback, one that keeps up and one that doesn't read for a while
+ */
+class FrameServerTest {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int FRAMES = 2000;
+    /**
+     * Frames the idle viewer's byte count has to stay still for before it counts as stalled
+     */
+    private static final int STALLED = 50;
+    private static final int MAX_BURST = 200_000;
+
+    @Test
+    @Timeout(120)
+    void viewersFollowTheNewestFrame() throws Exception {
+        try (FrameServer server = new FrameServer(new InetSocketAddress(HOST, 0))) {
+            FrameClient live = new FrameClient(HOST, server.getPort());
+            FrameClient idle = new FrameClient(HOST, server.getPort());
+            awaitViewers(server, 2);
+
+            //A viewer starts with a keyframe of what is on screen, nothing has been published yet
+            live.next();
+            long[] expected = new long[FrameServer.ROWS];
+            assertArrayEquals(expected, live.getRows());
+
+            Chip chip = new Chip();
+            chip.setMuted(true);
+            chip.setSeed(1);
+            chip.loadProgram(RomImage.load("ROMS/Space Invaders [David Winter].ch8"));
+            int[] keys = new int[16];
+            int changes = 0;
+            for (int frame = 0; frame < FRAMES; frame++) {
+                Arrays.fill(keys, 0);
+                //fire, then walk left and right
+                keys[frame / 40 % 3 == 0 ? 5 : frame / 40 % 3 == 1 ? 4 : 6] = 1;
+                chip.runFrame(keys);
+                server.publish(chip.getDisplay());
+                FrameServer.pack(chip.getDisplay(), expected);
+                if (!Arrays.equals(expected, live.getRows())) {
+                    live.next();
+                    changes++;
+                    assertArrayEquals(expected, live.getRows(), "Frame " + frame);
+                }
+            }
+            assertTrue(changes > 100, "Only " + changes + " frames changed");
+
+            //Every pixel flipping makes each frame a keyframe, until the idle viewer's socket is full
+            byte[] display = chip.getDisplay().clone();
+            long idleSent = -1;
+            for (int burst = 0, still = 0; still < STALLED; burst++) {
+                assertTrue(burst < MAX_BURST, "The idle viewer's socket never filled");
+                for (int pixel = 0; pixel < display.length; pixel++)
+                    display[pixel] ^= 1;
+                server.publish(display);
+                FrameServer.pack(display, expected);
+                live.next();
+                assertArrayEquals(expected, live.getRows(), "Burst frame " + burst);
+                long sent = server.getBytesSent() - live.getBytesReceived();
+                still = sent == idleSent ? still + 1 : 0;
+                idleSent = sent;
+            }
+
+            //A checkerboard no game frame or its inverse draws, the idle viewer catches up to it
+            for (int pixel = 0; pixel < display.length; pixel++)
+                display[pixel] = (byte) ((pixel + pixel / 64) & 1);
+            server.publish(display);
+            FrameServer.pack(display, expected);
+            live.next();
+            assertArrayEquals(expected, live.getRows());
+            while (!Arrays.equals(expected, idle.getRows()))
+                idle.next();
+            assertTrue(idle.getFrames() < live.getFrames(),
+                    "The idle viewer got all " + idle.getFrames() + " frames instead of skipping to the newest");
+
+            live.close();
+            idle.close();
+            awaitViewers(server, 0);
+        }
+    }
+
+    private static void awaitViewers(FrameServer server, int viewers) throws InterruptedException {
+        while (server.getViewers() != viewers)
+            Thread.sleep(10);
+    }
+
+}